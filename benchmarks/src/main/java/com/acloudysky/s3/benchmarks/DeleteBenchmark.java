@@ -0,0 +1,70 @@
+package com.acloudysky.s3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acloudysky.s3.BucketPurger;
+import com.acloudysky.s3.LocalS3Client;
+import com.acloudysky.s3.TransferSettings;
+
+/***
+ * Measures the purge of a bucket with the {@link BucketPurger}, as done before deleting a bucket.
+ * The bucket is filled again before each invocation.
+ * @author Michael Miele
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class DeleteBenchmark {
+
+	@Param({"1000", "10000"})
+	public int objectCount;
+
+	@Param({"1", "8", "32"})
+	public int concurrency;
+
+	@Param({"0"})
+	public long latencyMillis;
+
+	@Param({"0"})
+	public long bandwidth;
+
+	private LocalS3Client s3Client;
+	private TransferSettings settings;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		s3Client = new LocalS3Client();
+		s3Client.createBucket(Fixtures.BUCKET);
+		settings = new TransferSettings().withConcurrency(concurrency);
+	}
+
+	@Setup(Level.Invocation)
+	public void fill() {
+		// Fill at full speed, only the purge is slowed down.
+		s3Client.withLatency(0, 0).withBandwidth(0);
+		Fixtures.populate(s3Client, Fixtures.BUCKET, objectCount, 0);
+		s3Client.withLatency(latencyMillis, 0).withBandwidth(bandwidth);
+	}
+
+	@Benchmark
+	public long purge() throws InterruptedException {
+		return new BucketPurger(s3Client, settings).purge(Fixtures.BUCKET);
+	}
+}
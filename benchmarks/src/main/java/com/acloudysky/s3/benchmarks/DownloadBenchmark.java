@@ -0,0 +1,68 @@
+package com.acloudysky.s3.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acloudysky.s3.LocalS3Client;
+import com.acloudysky.s3.RangedDownloader;
+import com.acloudysky.s3.TransferSettings;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/***
+ * Measures the download of an object to a local file with the {@link RangedDownloader}.
+ * @author Michael Miele
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+	@Param({"1048576", "16777216", "67108864"})
+	public long objectSize;
+
+	@Param({"1", "8", "32"})
+	public int concurrency;
+
+	@Param({"0"})
+	public long latencyMillis;
+
+	@Param({"0"})
+	public long bandwidth;
+
+	private LocalS3Client s3Client;
+	private TransferSettings settings;
+	private File target;
+
+	@Setup
+	public void setUp() throws IOException {
+		s3Client = new LocalS3Client();
+		s3Client.createBucket(Fixtures.BUCKET);
+		s3Client.putObject(new PutObjectRequest(Fixtures.BUCKET, "download", Fixtures.randomFile(objectSize)));
+		settings = new TransferSettings().withConcurrency(concurrency);
+		target = File.createTempFile("benchmark", ".out");
+		target.deleteOnExit();
+		s3Client.withLatency(latencyMillis, 0).withBandwidth(bandwidth);
+	}
+
+	@Benchmark
+	public long download() throws IOException, InterruptedException {
+		return new RangedDownloader(s3Client, settings).download(Fixtures.BUCKET, "download", target);
+	}
+}
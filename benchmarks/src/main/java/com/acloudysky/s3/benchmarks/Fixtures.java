@@ -0,0 +1,72 @@
+package com.acloudysky.s3.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/***
+ * Data shared by the benchmarks: local files and bucket contents.
+ * @author Michael Miele
+ *
+ */
+final class Fixtures {
+
+	// Bucket used by all the benchmarks.
+	static final String BUCKET = "benchmark-bucket";
+
+	// Number of top level prefixes the listed keys are spread over.
+	private static final int PREFIXES = 32;
+
+	private Fixtures() {
+	}
+
+	/***
+	 * Creates a temporary file filled with random bytes. It is deleted when the JVM exits.
+	 * @param size The size of the file in bytes.
+	 * @return The file.
+	 * @throws IOException Error encountered while writing the file
+	 */
+	static File randomFile(long size) throws IOException {
+		File file = File.createTempFile("benchmark", ".bin");
+		file.deleteOnExit();
+		byte[] chunk = new byte[1024 * 1024];
+		new Random(size).nextBytes(chunk);
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			for (long written = 0; written < size; written += chunk.length)
+				out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+		}
+		return file;
+	}
+
+	/***
+	 * Gets the key of the n-th listed object. The keys are spread over several prefixes
+	 * so that the partitioned listing has work to share.
+	 * @param n The index of the object.
+	 * @return The key.
+	 */
+	static String key(int n) {
+		return String.format("dir%02d/object%07d", n % PREFIXES, n);
+	}
+
+	/***
+	 * Stores small objects in a bucket.
+	 * @param s3Client The client.
+	 * @param bucketName The name of the bucket.
+	 * @param count The number of objects.
+	 * @param size The size of each object in bytes.
+	 */
+	static void populate(AmazonS3 s3Client, String bucketName, int count, int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < count; i++) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(size);
+			s3Client.putObject(new PutObjectRequest(bucketName, key(i), new ByteArrayInputStream(data), metadata));
+		}
+	}
+}
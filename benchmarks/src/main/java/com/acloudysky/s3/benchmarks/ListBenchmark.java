@@ -0,0 +1,79 @@
+package com.acloudysky.s3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acloudysky.s3.LocalS3Client;
+import com.acloudysky.s3.ObjectListings;
+import com.acloudysky.s3.ParallelLister;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Measures the listing of a bucket, page by page with {@link ObjectListings}
+ * and partitioned with the {@link ParallelLister}.
+ * @author Michael Miele
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int objectCount;
+
+	@Param({"1", "8", "32"})
+	public int concurrency;
+
+	@Param({"0"})
+	public long latencyMillis;
+
+	@Param({"0"})
+	public long bandwidth;
+
+	private LocalS3Client s3Client;
+
+	@Setup
+	public void setUp() {
+		s3Client = new LocalS3Client();
+		s3Client.createBucket(Fixtures.BUCKET);
+		Fixtures.populate(s3Client, Fixtures.BUCKET, objectCount, 0);
+		s3Client.withLatency(latencyMillis, 0).withBandwidth(bandwidth);
+	}
+
+	@Benchmark
+	public long listSequential() {
+		try (Stream<S3ObjectSummary> objects = ObjectListings.stream(s3Client, Fixtures.BUCKET)) {
+			return objects.count();
+		}
+	}
+
+	@Benchmark
+	public long listParallelOrdered() {
+		try (Stream<S3ObjectSummary> objects = new ParallelLister(s3Client, concurrency).list(Fixtures.BUCKET, "", true)) {
+			return objects.count();
+		}
+	}
+
+	@Benchmark
+	public long listParallelUnordered() {
+		try (Stream<S3ObjectSummary> objects = new ParallelLister(s3Client, concurrency).list(Fixtures.BUCKET, "", false)) {
+			return objects.count();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.acloudysky.s3.benchmarks;
+
+import java.net.URL;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acloudysky.s3.LocalS3Client;
+import com.acloudysky.s3.UrlSigningService;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+
+/***
+ * Measures the generation of pre-signed URLs. The signature is computed locally,
+ * so the benchmark measures the signing cost only: for each request, and through
+ * the {@link UrlSigningService}, which reuses the recent URLs of a set of popular objects.
+ * @author Michael Miele
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class PresignBenchmark {
+
+	@Param({"GET", "PUT"})
+	public String method;
+
+	// Number of distinct objects whose URLs are requested through the service.
+	private static final int POPULAR_OBJECTS = 1000;
+
+	private LocalS3Client s3Client;
+	private Date expiration;
+	private UrlSigningService urlSigner;
+	private String[] keys;
+
+	@Setup
+	public void setUp() {
+		s3Client = new LocalS3Client();
+		expiration = new Date(System.currentTimeMillis() + 60 * 60 * 1000);
+		urlSigner = new UrlSigningService(s3Client);
+		keys = new String[POPULAR_OBJECTS];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = "presign/" + i;
+	}
+
+	@Benchmark
+	public URL presign() {
+		return s3Client.generatePresignedUrl(new GeneratePresignedUrlRequest(Fixtures.BUCKET, "presign")
+				.withMethod(HttpMethod.valueOf(method))
+				.withExpiration(expiration));
+	}
+
+	@Benchmark
+	public URL presignCached() {
+		return urlSigner.presign(Fixtures.BUCKET, keys[ThreadLocalRandom.current().nextInt(keys.length)],
+				HttpMethod.valueOf(method), 1, TimeUnit.HOURS);
+	}
+}
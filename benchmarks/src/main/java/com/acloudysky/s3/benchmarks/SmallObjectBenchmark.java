@@ -0,0 +1,103 @@
+package com.acloudysky.s3.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acloudysky.s3.LocalS3Client;
+import com.acloudysky.s3.RequestExecutor;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/***
+ * Measures the throughput of many small-object uploads and deletes run concurrently by a
+ * {@link RequestExecutor}, on a pool of platform threads and on virtual threads.
+ * <p>
+ * The operations are dominated by the round-trip latency, so the throughput grows with the
+ * number of requests in flight. Virtual threads need Java 21; on older JVMs both modes run on
+ * platform threads.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmallObjectBenchmark {
+
+	// Number of objects uploaded and deleted by each invocation.
+	private static final int OBJECTS = 2000;
+
+	@Param({"false", "true"})
+	public boolean virtualThreads;
+
+	@Param({"8", "256", "2048"})
+	public int maxInFlight;
+
+	@Param({"4096"})
+	public int objectSize;
+
+	@Param({"10"})
+	public long latencyMillis;
+
+	private LocalS3Client s3Client;
+	private RequestExecutor executor;
+	private byte[] data;
+
+	@Setup
+	public void setUp() {
+		s3Client = new LocalS3Client();
+		s3Client.createBucket(Fixtures.BUCKET);
+		s3Client.withLatency(latencyMillis, 0);
+		executor = new RequestExecutor(maxInFlight, virtualThreads);
+		data = new byte[objectSize];
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OBJECTS)
+	public void upload() {
+		CompletableFuture<?>[] requests = new CompletableFuture<?>[OBJECTS];
+		for (int i = 0; i < OBJECTS; i++) {
+			String key = Fixtures.key(i);
+			requests[i] = CompletableFuture.runAsync(() -> {
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setContentLength(data.length);
+				s3Client.putObject(new PutObjectRequest(Fixtures.BUCKET, key, new ByteArrayInputStream(data), metadata));
+			}, executor);
+		}
+		CompletableFuture.allOf(requests).join();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OBJECTS)
+	public void delete() {
+		CompletableFuture<?>[] requests = new CompletableFuture<?>[OBJECTS];
+		for (int i = 0; i < OBJECTS; i++) {
+			String key = Fixtures.key(i);
+			requests[i] = CompletableFuture.runAsync(() -> s3Client.deleteObject(Fixtures.BUCKET, key), executor);
+		}
+		CompletableFuture.allOf(requests).join();
+	}
+}
@@ -0,0 +1,69 @@
+package com.acloudysky.s3.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acloudysky.s3.LocalS3Client;
+import com.acloudysky.s3.MultipartUploader;
+import com.acloudysky.s3.TransferSettings;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/***
+ * Measures the upload of a local file, with a single PUT below the multipart threshold
+ * and with the {@link MultipartUploader} above it, as done by <i>ObjectOperations.uploadFile</i>.
+ * @author Michael Miele
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+	@Param({"1048576", "16777216", "67108864"})
+	public long objectSize;
+
+	@Param({"1", "8", "32"})
+	public int concurrency;
+
+	@Param({"0"})
+	public long latencyMillis;
+
+	@Param({"0"})
+	public long bandwidth;
+
+	private LocalS3Client s3Client;
+	private TransferSettings settings;
+	private File file;
+
+	@Setup
+	public void setUp() throws IOException {
+		s3Client = new LocalS3Client();
+		s3Client.createBucket(Fixtures.BUCKET);
+		settings = new TransferSettings().withConcurrency(concurrency);
+		file = Fixtures.randomFile(objectSize);
+		s3Client.withLatency(latencyMillis, 0).withBandwidth(bandwidth);
+	}
+
+	@Benchmark
+	public Object upload() throws InterruptedException {
+		if (file.length() >= settings.getMultipartThreshold())
+			return new MultipartUploader(s3Client, settings).upload(Fixtures.BUCKET, "upload", file);
+		return s3Client.putObject(new PutObjectRequest(Fixtures.BUCKET, "upload", file));
+	}
+}
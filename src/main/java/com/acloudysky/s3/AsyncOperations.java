@@ -0,0 +1,309 @@
+package com.acloudysky.s3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.net.URL;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+
+/***
+ * Asynchronous counterpart of {@link BucketOperations} and {@link ObjectOperations}.
+ * <p>
+ * Unlike the static operations, which print their outcome, each method returns a
+ * {@link CompletableFuture} holding the result of the request, so calls can be overlapped
+ * and composed, for example:
+ * </p>
+ * <pre>
+ *   async.getObjectMetadata(bucket, key)
+ *        .thenCompose(metadata -&gt; async.downloadFile(bucket, key, file));
+ * </pre>
+ * <p>
+ * The requests run on the executor given at creation. Cancelling a future interrupts its
+ * request, and a future that is not complete within the timeout fails with a
+ * {@link TimeoutException} and is interrupted the same way. The SDK client is blocking, so a
+ * request in flight holds a thread of the executor; the thread of the caller is never blocked.
+ * With a {@link RequestExecutor} in virtual-thread mode that thread is a virtual thread.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class AsyncOperations implements Closeable {
+
+	// Fires the timeouts of all the instances.
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "s3-async-timer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Authorized client, used when there is no client pool.
+	private final AmazonS3 s3Client;
+
+	// Regional clients, or null to send all the requests through the authorized client.
+	private final S3ClientPool clientPool;
+
+	// Part size and concurrency settings used by the transfer operations.
+	private final TransferSettings settings;
+
+	// Runs the requests.
+	private final ExecutorService executor;
+
+	// true if the executor was created by this object and must be shut down on close.
+	private final boolean ownsExecutor;
+
+	// Time allowed to each request in milliseconds, or 0 for no limit.
+	private volatile long timeoutMillis;
+
+	/***
+	 * Creates the operations with their own executor.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param settings The settings used by the transfer operations. The concurrency is also the number of requests run at the same time.
+	 */
+	public AsyncOperations(AmazonS3 authorizedClient, TransferSettings settings) {
+		this(authorizedClient, null, settings, Executors.newFixedThreadPool(settings.getConcurrency()), true);
+	}
+
+	/***
+	 * Creates the operations.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param settings The settings used by the transfer operations.
+	 * @param executor The executor running the requests. It is not shut down on close.
+	 */
+	public AsyncOperations(AmazonS3 authorizedClient, TransferSettings settings, ExecutorService executor) {
+		this(authorizedClient, null, settings, executor, false);
+	}
+
+	/***
+	 * Creates the operations. Each request is sent to the client of the region that holds the bucket.
+	 * @param pool The regional clients.
+	 * @param settings The settings used by the transfer operations.
+	 * @param executor The executor running the requests. It is not shut down on close.
+	 */
+	public AsyncOperations(S3ClientPool pool, TransferSettings settings, ExecutorService executor) {
+		this(pool.getClient(pool.getHomeRegion()), pool, settings, executor, false);
+	}
+
+	private AsyncOperations(AmazonS3 authorizedClient, S3ClientPool pool, TransferSettings settings,
+			ExecutorService executor, boolean ownsExecutor) {
+		this.s3Client = authorizedClient;
+		this.clientPool = pool;
+		this.settings = settings;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	/***
+	 * Sets the time allowed to each request. The requests already started keep their timeout.
+	 * @param timeout The timeout, or 0 for no limit.
+	 * @param unit The unit of the timeout.
+	 * @return This object, for chaining.
+	 */
+	public AsyncOperations withTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Timeout must not be negative");
+		this.timeoutMillis = unit.toMillis(timeout);
+		return this;
+	}
+
+	/*
+	 * Gets the client to use for the specified bucket.
+	 */
+	private AmazonS3 client(String bucketName) {
+		return clientPool == null ? s3Client : clientPool.getClientForBucket(bucketName);
+	}
+
+	/***
+	 * Creates a bucket.
+	 * @param bucketName The name of the bucket
+	 * @return The future bucket.
+	 */
+	public CompletableFuture<Bucket> createBucket(String bucketName) {
+		return submit(() -> s3Client.createBucket(bucketName));
+	}
+
+	/***
+	 * Lists the buckets in the account.
+	 * @return The future bucket list.
+	 */
+	public CompletableFuture<List<Bucket>> listBuckets() {
+		return submit(() -> s3Client.listBuckets());
+	}
+
+	/***
+	 * Deletes a bucket after removing all its object versions, see {@link BucketPurger}.
+	 * @param bucketName The name of the bucket
+	 * @return The future number of object versions deleted.
+	 */
+	public CompletableFuture<Long> deleteBucket(String bucketName) {
+		return submit(() -> {
+			long deleted = new BucketPurger(client(bucketName), settings).purge(bucketName);
+			client(bucketName).deleteBucket(bucketName);
+			if (clientPool != null)
+				clientPool.forgetBucket(bucketName);
+			return deleted;
+		});
+	}
+
+	/***
+	 * Lists the first page of objects under a prefix.
+	 * @param bucketName The name of the bucket
+	 * @param prefix The prefix of the keys, or an empty string for the whole bucket
+	 * @return The future page. Use {@link #listNextBatchOfObjects(ObjectListing)} while it is truncated.
+	 */
+	public CompletableFuture<ObjectListing> listObjects(String bucketName, String prefix) {
+		return listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+	}
+
+	/***
+	 * Lists the first page of objects of a request.
+	 * @param request The listing request
+	 * @return The future page.
+	 */
+	public CompletableFuture<ObjectListing> listObjects(ListObjectsRequest request) {
+		return submit(() -> client(request.getBucketName()).listObjects(request));
+	}
+
+	/***
+	 * Lists the page of objects following a truncated page.
+	 * @param previous The previous page
+	 * @return The future page.
+	 */
+	public CompletableFuture<ObjectListing> listNextBatchOfObjects(ObjectListing previous) {
+		return submit(() -> client(previous.getBucketName()).listNextBatchOfObjects(previous));
+	}
+
+	/***
+	 * Gets the metadata of an object.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @return The future metadata.
+	 */
+	public CompletableFuture<ObjectMetadata> getObjectMetadata(String bucketName, String keyName) {
+		return submit(() -> client(bucketName).getObjectMetadata(bucketName, keyName));
+	}
+
+	/***
+	 * Uploads a local file. Files at or above the multipart threshold are uploaded in parts, see {@link MultipartUploader}.
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name of the object
+	 * @param file The file to upload
+	 * @return The future result, holding the ETag and version of the object.
+	 */
+	public CompletableFuture<UploadResult> uploadFile(String bucketName, String keyName, File file) {
+		return submit(() -> {
+			if (!file.isFile())
+				throw new FileNotFoundException(String.format("File %s not found", file));
+			UploadResult result = new UploadResult();
+			result.setBucketName(bucketName);
+			result.setKey(keyName);
+			if (file.length() >= settings.getMultipartThreshold()) {
+				CompleteMultipartUploadResult completed = new MultipartUploader(client(bucketName), settings)
+						.upload(bucketName, keyName, file);
+				result.setETag(completed.getETag());
+				result.setVersionId(completed.getVersionId());
+			}
+			else {
+				PutObjectResult put = client(bucketName).putObject(new PutObjectRequest(bucketName, keyName, file));
+				result.setETag(put.getETag());
+				result.setVersionId(put.getVersionId());
+			}
+			return result;
+		});
+	}
+
+	/***
+	 * Downloads an object to a local file in concurrent byte ranges, see {@link RangedDownloader}.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @param file The destination file. An existing file is overwritten.
+	 * @return The future number of bytes downloaded.
+	 */
+	public CompletableFuture<Long> downloadFile(String bucketName, String keyName, File file) {
+		return submit(() -> new RangedDownloader(client(bucketName), settings).download(bucketName, keyName, file));
+	}
+
+	/***
+	 * Deletes an object.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @return A future completed when the object is deleted.
+	 */
+	public CompletableFuture<Void> deleteObject(String bucketName, String keyName) {
+		return submit(() -> {
+			client(bucketName).deleteObject(new DeleteObjectRequest(bucketName, keyName));
+			return null;
+		});
+	}
+
+	/***
+	 * Generates a presigned URL giving temporary access to an object.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @param method The HTTP method allowed by the URL
+	 * @param expiration The time at which the URL expires
+	 * @return The future URL.
+	 */
+	public CompletableFuture<URL> generatePresignedUrl(String bucketName, String keyName, HttpMethod method, Date expiration) {
+		return submit(() -> client(bucketName).generatePresignedUrl(
+				new GeneratePresignedUrlRequest(bucketName, keyName, method).withExpiration(expiration)));
+	}
+
+	/*
+	 * Runs a request on the executor. Cancelling the returned future, or its timeout,
+	 * interrupts the request.
+	 */
+	private <T> CompletableFuture<T> submit(Callable<T> request) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		Future<?> task = executor.submit(() -> {
+			try {
+				result.complete(request.call());
+			}
+			catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		});
+		long timeout = timeoutMillis;
+		if (timeout > 0) {
+			ScheduledFuture<?> timer = TIMER.schedule(() -> result.completeExceptionally(
+					new TimeoutException(String.format("Request not complete after %d ms", timeout))), timeout, TimeUnit.MILLISECONDS);
+			result.whenComplete((value, error) -> timer.cancel(false));
+		}
+		result.whenComplete((value, error) -> {
+			if (result.isCancelled() || error instanceof TimeoutException)
+				task.cancel(true);
+		});
+		return result;
+	}
+
+	/***
+	 * Shuts down the executor if it was created by this object. The requests in flight are interrupted.
+	 */
+	@Override
+	public void close() {
+		if (ownsExecutor)
+			executor.shutdownNow();
+	}
+}
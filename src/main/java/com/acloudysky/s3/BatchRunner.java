@@ -0,0 +1,336 @@
+package com.acloudysky.s3;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.HttpMethod;
+
+/***
+ * Runs a script of operations without user interaction.
+ * <p>
+ * Each line of the script holds one command: the menu code of the operation followed
+ * by its arguments, separated by blanks. Empty lines and lines starting with <i>#</i>
+ * are ignored. For example:
+ * </p>
+ * <pre>
+ *   cb my-bucket
+ *   sync
+ *   uf my-bucket photos/luigi.jpeg /home/me/luigi.jpeg
+ *   df my-bucket photos/luigi.jpeg /tmp/luigi.jpeg
+ * </pre>
+ * <p>
+ * The commands are read as a stream and run concurrently by a pool of workers, so the
+ * order in which they complete is not the order of the script. A <i>sync</i> line waits
+ * until all the previous commands are complete, for example to create a bucket before
+ * uploading into it. The output of each command is kept together and followed by its
+ * elapsed time; a summary by operation is displayed at the end.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class BatchRunner {
+
+	// Command waiting for the completion of the previous commands.
+	private static final String SYNC = "sync";
+
+	// Default number of commands run at the same time.
+	public static final int DEFAULT_PARALLELISM = 8;
+
+	// Number of commands run at the same time.
+	private final int parallelism;
+
+	// true to run each command on a virtual thread, see RequestExecutor.
+	private final boolean virtualThreads;
+
+	// Elapsed time of the commands of each operation, in microseconds.
+	private final Map<String, LatencyHistogram> timings = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	/***
+	 * Creates a runner.
+	 * @param parallelism The number of commands run at the same time.
+	 */
+	public BatchRunner(int parallelism) {
+		this(parallelism, false);
+	}
+
+	/***
+	 * Creates a runner.
+	 * @param parallelism The number of commands run at the same time.
+	 * @param virtualThreads true to run each command on a virtual thread when the JVM supports them,
+	 * which allows thousands of small-object commands in flight, see {@link RequestExecutor}.
+	 */
+	public BatchRunner(int parallelism, boolean virtualThreads) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		this.parallelism = parallelism;
+		this.virtualThreads = virtualThreads;
+	}
+
+	/***
+	 * Runs the commands read from a script.
+	 * @param script The script, read line by line.
+	 * @return The number of commands that failed.
+	 * @throws IOException Error encountered while reading the script
+	 * @throws InterruptedException The thread was interrupted while waiting for the commands
+	 */
+	public long run(BufferedReader script) throws IOException, InterruptedException {
+
+		// Keep the output of each command together.
+		PrintStream console = System.out;
+		CommandOutput output = new CommandOutput(console);
+		System.setOut(new PrintStream(output, true));
+
+		ExecutorService workers = new RequestExecutor(parallelism, virtualThreads);
+		// Bounds the commands read ahead, so a long script is not loaded in memory.
+		Semaphore slots = new Semaphore(parallelism * 2);
+		long start = System.nanoTime();
+		long commands = 0;
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = script.readLine()) != null) {
+				lineNumber++;
+				String[] words = line.trim().split("\\s+");
+				if (words[0].isEmpty() || words[0].startsWith("#"))
+					continue;
+				if (SYNC.equalsIgnoreCase(words[0])) {
+					// Wait until all the slots are free, that is all the commands are complete.
+					slots.acquire(parallelism * 2);
+					slots.release(parallelism * 2);
+					continue;
+				}
+				slots.acquire();
+				commands++;
+				final int number = lineNumber;
+				workers.execute(() -> {
+					try {
+						runCommand(number, words, output);
+					}
+					finally {
+						slots.release();
+					}
+				});
+			}
+		}
+		finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			System.setOut(console);
+		}
+
+		summarize(commands, System.nanoTime() - start);
+		return failures.get();
+	}
+
+	/*
+	 * Runs one command and displays its output followed by its elapsed time.
+	 */
+	private void runCommand(int lineNumber, String[] words, CommandOutput output) {
+		String operation = words[0].toLowerCase();
+		String[] args = Arrays.copyOfRange(words, 1, words.length);
+		output.begin();
+		long start = System.nanoTime();
+		boolean failed = false;
+		try {
+			perform(operation, args);
+		}
+		catch (Exception e) {
+			failed = true;
+			failures.incrementAndGet();
+			System.out.println(String.format("%s", e.getMessage()));
+		}
+		long elapsed = System.nanoTime() - start;
+		timings.computeIfAbsent(operation, o -> new LatencyHistogram()).record(TimeUnit.NANOSECONDS.toMicros(elapsed));
+		System.out.println(String.format("[line %d] %s %s in %.1f ms", lineNumber, String.join(" ", words),
+				failed ? "FAILED" : "done", elapsed / 1e6));
+		output.end();
+	}
+
+	/*
+	 * Calls the operation of a command.
+	 */
+	private static void perform(String operation, String[] args) throws Exception {
+		switch (operation) {
+			case "cb":
+				BucketOperations.createBucket(bucket(args, 1));
+				break;
+			case "lb":
+				BucketOperations.listBuckets();
+				break;
+			case "db":
+				BucketOperations.deleteBucket(bucket(args, 1));
+				break;
+			case "uo":
+				ObjectOperations.uploadObject(bucket(args, 2), args[1], "sanmartino.txt");
+				break;
+			case "uf":
+				ObjectOperations.uploadFile(bucket(args, 3), args[1], new File(args[2]));
+				break;
+			case "us":
+				ObjectOperations.uploadStream(bucket(args, 3), args[1], args[2]);
+				break;
+			case "do":
+				ObjectOperations.downloadObject(bucket(args, 2), args[1]);
+				break;
+			case "df":
+				ObjectOperations.downloadObjectToFile(bucket(args, 3), args[1], new File(args[2]));
+				break;
+			case "so":
+				ObjectOperations.streamObject(bucket(args, 3), args[1], args[2]);
+				break;
+			case "lo":
+				ObjectOperations.listObject(bucket(args, 1));
+				break;
+			case "lp":
+				ObjectOperations.listObjectParallel(bucket(args, 1),
+						args.length > 1 ? Integer.parseInt(args[1]) : 8,
+						args.length <= 2 || !args[2].toLowerCase().startsWith("n"));
+				break;
+			case "sy":
+				ObjectOperations.syncDirectory(bucket(args, 2), new File(args[1]), args.length > 2 ? args[2] : "",
+						args.length > 3 && args[3].toLowerCase().startsWith("d"));
+				break;
+			case "co":
+				expect(args, 3);
+				// "-" stands for the bucket root.
+				ObjectOperations.copyObjects(args[0].toLowerCase(), "-".equals(args[1]) ? "" : args[1], args[2].toLowerCase(),
+						args.length > 3 ? ("-".equals(args[3]) ? "" : args[3]) : null, args.length > 4 ? Integer.parseInt(args[4]) : 0);
+				break;
+			case "mf":
+				expect(args, 2);
+				ObjectOperations.runManifest(args[0], new File(args[1]),
+						args.length > 2 && !"-".equals(args[2]) ? args[2].toLowerCase() : null,
+						args.length > 3 && !"-".equals(args[3]) ? args[3] : null, args.length > 4 ? Integer.parseInt(args[4]) : 0);
+				break;
+			case "ri":
+				IndexOperations.refreshIndex(bucket(args, 1), args.length > 1 ? args[1] : "");
+				break;
+			case "bi":
+				IndexOperations.listIndexedBuckets();
+				break;
+			case "li":
+				IndexOperations.listIndexedObjects(bucket(args, 1), args.length > 1 ? args[1] : "");
+				break;
+			case "ci":
+				IndexOperations.checkIndexedObject(bucket(args, 2), args[1]);
+				break;
+			case "pu":
+				BucketOperations.getPresignedUrls(bucket(args, 2), args[1],
+						HttpMethod.valueOf(args.length > 2 ? args[2].toUpperCase() : "GET"),
+						args.length > 3 ? Long.parseLong(args[3]) : 60);
+				break;
+			case "cf":
+				expect(args, 1);
+				BucketOperations.getSignedUrls(args[0], args.length > 1 ? Long.parseLong(args[1]) : 60);
+				break;
+			case "xo":
+				ObjectOperations.deleteObject(bucket(args, 2), args[1]);
+				break;
+			case "mt":
+				System.out.print(S3Metrics.getDefault().report());
+				System.out.print(ConcurrencyController.getDefault().report());
+				System.out.print(TransferMemory.getDefault().report());
+				System.out.println(String.format("Hedged GET requests: %d (%d answered first)",
+						HedgedGetter.getHedgeCount(), HedgedGetter.getHedgeWinCount()));
+				if (ObjectOperations.getObjectCache() != null)
+					System.out.print(ObjectOperations.getObjectCache().report());
+				break;
+			default:
+				throw new IllegalArgumentException(String.format("%s is not allowed", operation));
+		}
+	}
+
+	/*
+	 * Gets the bucket name, the first argument, after checking the number of arguments.
+	 */
+	private static String bucket(String[] args, int expected) {
+		expect(args, expected);
+		return args[0].toLowerCase();
+	}
+
+	/*
+	 * Checks that a command has at least the expected number of arguments.
+	 */
+	private static void expect(String[] args, int expected) {
+		if (args.length < expected)
+			throw new IllegalArgumentException(String.format("%d arguments expected, %d found", expected, args.length));
+	}
+
+	/*
+	 * Displays the number of commands and the elapsed times by operation.
+	 */
+	private void summarize(long commands, long elapsed) {
+		System.out.println(String.format("%n%d commands, %d failed, in %.1f s", commands, failures.get(), elapsed / 1e9));
+		System.out.println(String.format("%-10s %10s %10s %10s %10s %10s",
+				"Operation", "Commands", "Mean ms", "p50 ms", "p99 ms", "Max ms"));
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(timings).entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			System.out.println(String.format("%-10s %10d %10.1f %10.1f %10.1f %10.1f", entry.getKey(),
+					histogram.getCount(), histogram.getMean() / 1000, histogram.getPercentile(50) / 1000.0,
+					histogram.getPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+		}
+	}
+
+	/*
+	 * Standard output shared by the workers. What a worker prints while running a command
+	 * is buffered and written at once when the command ends; other threads write through.
+	 */
+	private static class CommandOutput extends OutputStream {
+
+		private final PrintStream console;
+		private final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>();
+
+		CommandOutput(PrintStream console) {
+			this.console = console;
+		}
+
+		void begin() {
+			buffers.set(new ByteArrayOutputStream());
+		}
+
+		void end() {
+			ByteArrayOutputStream buffer = buffers.get();
+			buffers.remove();
+			synchronized (console) {
+				console.write(buffer.toByteArray(), 0, buffer.size());
+				console.flush();
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ByteArrayOutputStream buffer = buffers.get();
+			if (buffer != null)
+				buffer.write(b, off, len);
+			else
+				synchronized (console) {
+					console.write(b, off, len);
+				}
+		}
+
+		@Override
+		public void flush() {
+			if (buffers.get() == null)
+				console.flush();
+		}
+	}
+}
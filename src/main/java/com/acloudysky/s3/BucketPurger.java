@@ -0,0 +1,154 @@
+package com.acloudysky.s3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.VersionListing;
+
+/***
+ * Empties a bucket using batched multi-object delete requests.
+ * Every object version and delete marker is listed page by page; each page
+ * (up to 1000 keys) is deleted with a single request while the next page is
+ * being listed. Several delete requests run at the same time, bounded by the
+ * configured concurrency, so listing and deleting overlap.
+ * The same listing covers non-versioned buckets, where each object has the <i>null</i> version.
+ * A batch that fails for good, or keys refused for a reason a retry would not change, such as
+ * an access denied, stop the purge at once rather than after the whole bucket was listed.
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/API/multiobjectdeleteapi.html" target="_blank">Delete Multiple Objects</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class BucketPurger {
+
+	// Largest number of keys accepted by a multi-object delete request.
+	public static final int MAX_KEYS_PER_DELETE = 1000;
+
+	// Errors of a key in a multi-object delete which another attempt may not get.
+	private static final List<String> TRANSIENT_KEY_ERRORS = Arrays.asList("InternalError", "ServiceUnavailable", "SlowDown");
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Concurrency and retry settings.
+	private final TransferSettings settings;
+
+	/***
+	 * Creates a purger.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param settings The transfer settings to use. The concurrency is the number of delete requests in flight.
+	 */
+	public BucketPurger(AmazonS3 s3Client, TransferSettings settings) {
+		this.s3Client = s3Client;
+		this.settings = settings;
+	}
+
+	/***
+	 * Deletes every object version and delete marker in the bucket.
+	 * @param bucketName The name of the bucket to empty
+	 * @return The number of versions and delete markers deleted.
+	 * @throws AmazonClientException Error encountered while listing, or some keys could not be deleted
+	 * @throws InterruptedException The thread was interrupted while waiting for the delete requests
+	 */
+	public long purge(String bucketName) throws InterruptedException {
+
+		final AtomicLong deleted = new AtomicLong();
+		final List<DeleteError> errors = new ArrayList<DeleteError>();
+		final List<AmazonClientException> failures = new ArrayList<AmazonClientException>();
+		// Set when a batch failed in a way the next batches will fail too.
+		final AtomicBoolean stopped = new AtomicBoolean();
+
+		int concurrency = settings.getConcurrency();
+		final Semaphore inFlight = new Semaphore(concurrency);
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+
+		try {
+			VersionListing listing = s3Client.listVersions(new ListVersionsRequest()
+					.withBucketName(bucketName)
+					.withMaxResults(MAX_KEYS_PER_DELETE));
+			while (true) {
+				final List<KeyVersion> keys = new ArrayList<KeyVersion>(listing.getVersionSummaries().size());
+				for (S3VersionSummary summary : listing.getVersionSummaries())
+					keys.add(new KeyVersion(summary.getKey(), summary.getVersionId()));
+
+				if (!keys.isEmpty()) {
+					// Wait for a free slot so the listing does not run too far ahead of the deletes.
+					inFlight.acquire();
+					if (stopped.get())
+						break;
+					workers.execute(() -> {
+						try {
+							deleted.addAndGet(deleteBatch(bucketName, keys));
+						}
+						catch (MultiObjectDeleteException mode) {
+							deleted.addAndGet(keys.size() - mode.getErrors().size());
+							synchronized (errors) {
+								errors.addAll(mode.getErrors());
+							}
+							for (DeleteError error : mode.getErrors()) {
+								if (!TRANSIENT_KEY_ERRORS.contains(error.getCode()))
+									stopped.set(true);
+							}
+						}
+						catch (AmazonClientException | InterruptedException e) {
+							// The retries are exhausted or the error is not retryable.
+							stopped.set(true);
+							synchronized (failures) {
+								failures.add(e instanceof AmazonClientException ? (AmazonClientException) e
+										: new AmazonClientException("Delete interrupted", e));
+							}
+						}
+						finally {
+							inFlight.release();
+						}
+					});
+				}
+
+				if (!listing.isTruncated() || stopped.get())
+					break;
+				listing = s3Client.listNextBatchOfVersions(listing);
+			}
+		}
+		finally {
+			workers.shutdown();
+			if (!workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS))
+				workers.shutdownNow();
+		}
+
+		if (!failures.isEmpty())
+			throw failures.get(0);
+		if (!errors.isEmpty()) {
+			DeleteError first = errors.get(0);
+			throw new AmazonClientException(String.format("%d keys could not be deleted, first: %s (%s %s)",
+					errors.size(), first.getKey(), first.getCode(), first.getMessage()));
+		}
+		return deleted.get();
+	}
+
+	/*
+	 * Deletes a batch of keys with one request. Only the errors are returned by S3 (quiet mode).
+	 */
+	private int deleteBatch(String bucketName, List<KeyVersion> keys) throws InterruptedException {
+		final DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName)
+				.withKeys(keys)
+				.withQuiet(true);
+		Retries.call(() -> s3Client.deleteObjects(request), settings.getMaxPartAttempts());
+		return keys.size();
+	}
+}
@@ -0,0 +1,80 @@
+package com.acloudysky.s3;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+
+/***
+ * Pool of direct byte buffers shared by the workers of a transfer.
+ * The buffers are taken from the memory budget of the application, see {@link TransferMemory},
+ * and at most the pool capacity are held at the same time, so the memory used by a transfer 
+ * does not depend on the object size. When all the buffers are in use, or the budget is
+ * exhausted, {@link #acquire()} blocks until one is released.
+ * @author Michael Miele
+ *
+ */
+public class BufferPool {
+
+	// Memory the buffers are taken from.
+	private final TransferMemory memory;
+
+	// Buffers that can still be acquired.
+	private final Semaphore permits;
+
+	// Size of each buffer.
+	private final int bufferSize;
+
+	/***
+	 * Creates a pool drawing from the memory shared by the application.
+	 * @param capacity The maximum number of buffers.
+	 * @param bufferSize The size of each buffer in bytes.
+	 */
+	public BufferPool(int capacity, int bufferSize) {
+		this(TransferMemory.getDefault(), capacity, bufferSize);
+	}
+
+	/***
+	 * Creates a pool.
+	 * @param memory The memory the buffers are taken from.
+	 * @param capacity The maximum number of buffers.
+	 * @param bufferSize The size of each buffer in bytes.
+	 */
+	public BufferPool(TransferMemory memory, int capacity, int bufferSize) {
+		this.memory = memory;
+		this.permits = new Semaphore(capacity);
+		this.bufferSize = bufferSize;
+	}
+
+	/***
+	 * Gets a cleared buffer, waiting if all the buffers are in use.
+	 * Each buffer acquired must be released, even if the transfer fails.
+	 * @return The buffer.
+	 * @throws InterruptedException The thread was interrupted while waiting.
+	 */
+	public ByteBuffer acquire() throws InterruptedException {
+		permits.acquire();
+		try {
+			return memory.acquire(bufferSize);
+		}
+		catch (InterruptedException | RuntimeException | Error e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/***
+	 * Returns a buffer to the pool.
+	 * @param buffer The buffer obtained from {@link #acquire()}.
+	 */
+	public void release(ByteBuffer buffer) {
+		memory.release(buffer);
+		permits.release();
+	}
+
+	/***
+	 * Gets the size of each buffer.
+	 * @return The buffer size in bytes.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,72 @@
+package com.acloudysky.s3;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/***
+ * Reads the remaining bytes of a buffer, which may be direct, as a stream.
+ * The stream supports mark and reset, so the SDK can resend its content when a request is retried.
+ * @author Michael Miele
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	// Bytes left to read, between the position and the limit.
+	private final ByteBuffer buffer;
+
+	// Position to go back to on reset.
+	private int mark;
+
+	/***
+	 * Creates a stream reading the bytes between the position and the limit of a buffer.
+	 * The buffer itself is not modified.
+	 * @param buffer The buffer.
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+		this.mark = this.buffer.position();
+	}
+
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (!buffer.hasRemaining())
+			return -1;
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long n) {
+		int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = buffer.position();
+	}
+
+	@Override
+	public synchronized void reset() {
+		buffer.position(mark);
+	}
+}
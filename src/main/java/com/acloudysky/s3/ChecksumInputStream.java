@@ -0,0 +1,142 @@
+package com.acloudysky.s3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/***
+ * Computes the MD5, CRC-32C and SHA-256 checksums of the bytes read through it, in the
+ * same pass that moves them, so verifying a transfer needs no second read of the data.
+ * <p>
+ * When expected checksums are given, the stream checks them once the expected number of
+ * bytes has been read and fails with an {@link IOException} on a mismatch, so a corrupted
+ * download is detected by the reader before it uses the end of the content.
+ * Mark and reset are not supported, since the checksums cannot be rewound.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+	private final MessageDigest md5 = Checksums.messageDigest("MD5");
+	private final MessageDigest sha256 = Checksums.messageDigest("SHA-256");
+	private final Checksum crc32c = Crc32c.create();
+
+	// Number of bytes read.
+	private long length;
+
+	// Expected length and checksums, or -1 and null if the content is not verified.
+	private final long expectedLength;
+	private final Long expectedCrc32c;
+	private final String expectedSha256;
+
+	// Name of the content, for the error messages.
+	private final String name;
+
+	// Checksums of the content, once it has been read.
+	private Checksums.Digest digest;
+
+	/***
+	 * Creates a stream verifying the checksums of the content.
+	 * @param in The content.
+	 * @param name The name of the content, such as the object key, for the error messages.
+	 * @param expectedLength The length of the content.
+	 * @param expectedCrc32c The CRC-32C of the content, or null to skip the check.
+	 * @param expectedSha256 The base 64 SHA-256 digest of the content, or null to skip the check.
+	 */
+	public ChecksumInputStream(InputStream in, String name, long expectedLength, Long expectedCrc32c, String expectedSha256) {
+		super(in);
+		this.name = name;
+		this.expectedLength = expectedLength;
+		this.expectedCrc32c = expectedCrc32c;
+		this.expectedSha256 = expectedSha256;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			md5.update((byte) b);
+			sha256.update((byte) b);
+			crc32c.update(b);
+			length++;
+		}
+		verify(b < 0);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = in.read(b, off, len);
+		if (count > 0) {
+			md5.update(b, off, count);
+			sha256.update(b, off, count);
+			crc32c.update(b, off, count);
+			length += count;
+		}
+		verify(count < 0);
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// Read the skipped bytes, they are part of the checksums.
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		int count;
+		while (skipped < n && (count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) >= 0)
+			skipped += count;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("Mark and reset are not supported");
+	}
+
+	/***
+	 * Gets the number of bytes read.
+	 * @return The number of bytes.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/***
+	 * Gets the checksums of the bytes read. No more bytes should be read afterwards.
+	 * @return The checksums.
+	 */
+	public Checksums.Digest getDigest() {
+		if (digest == null)
+			digest = new Checksums.Digest(md5.digest(), crc32c.getValue(), sha256.digest(), length);
+		return digest;
+	}
+
+	/*
+	 * Checks the expected checksums once the whole content has been read.
+	 */
+	private void verify(boolean end) throws IOException {
+		if (expectedLength < 0 || digest != null || (length < expectedLength && !end))
+			return;
+		Checksums.Digest actual = getDigest();
+		if (length != expectedLength)
+			throw new IOException(String.format("%s: expected %d bytes, read %d", name, expectedLength, length));
+		if (expectedCrc32c != null && expectedCrc32c != actual.getCrc32c())
+			throw new IOException(String.format("%s: CRC-32C mismatch, expected %s, computed %s", name,
+					Crc32c.toBase64(expectedCrc32c), Crc32c.toBase64(actual.getCrc32c())));
+		if (expectedSha256 != null && !expectedSha256.equals(actual.getSha256()))
+			throw new IOException(String.format("%s: SHA-256 mismatch, expected %s, computed %s", name,
+					expectedSha256, actual.getSha256()));
+	}
+}
@@ -0,0 +1,345 @@
+package com.acloudysky.s3;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.Checksum;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/***
+ * Collects the checksums of an object uploaded in parts, and checks them end to end.
+ * <p>
+ * The checksums of each part are computed as the part is read to be sent: a part of a file is read
+ * through a {@link ChecksumInputStream}, a part of a stream is digested in the buffer it is sent from.
+ * Each part is checked against the ETag returned by S3, which is the MD5 digest of the part, and the
+ * whole object against the ETag of the completed upload. The CRC-32C and SHA-256 checksums are then
+ * stored as user metadata, where downloads find them and verify the content as it arrives:
+ * </p>
+ * <ul>
+ * 	<li>The CRC-32C of the object is combined from the CRCs of its parts, so it is the CRC of the
+ * 	whole content; ranged downloads combine the CRCs of their ranges the same way.</li>
+ * 	<li>The SHA-256 of an object sent in several parts is, like the S3 composite checksums, the
+ * 	digest of the part digests followed by the number of parts. Only the SHA-256 of an object sent
+ * 	in one part can be verified on download.</li>
+ * </ul>
+ * <p>
+ * The metadata of an object is sent before its content, while the checksums of an object sent in
+ * parts are only known once it is sent, so they are stored by copying the object onto itself with
+ * the new metadata. The copy is done by S3, without transferring the content again, for objects up
+ * to {@link #MAX_COPY_SIZE}.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class Checksums {
+
+	// User metadata holding the base 64 CRC-32C of the object.
+	public static final String CRC32C_METADATA = "crc32c";
+
+	// User metadata holding the base 64 SHA-256 of the object, followed by "-" and the number of parts if composite.
+	public static final String SHA256_METADATA = "sha256";
+
+	// Largest object that can be copied with a single request.
+	public static final long MAX_COPY_SIZE = 5L * 1024L * TransferSettings.MB;
+
+	// Size of the work array used to compute the CRC of a direct buffer.
+	private static final int DIGEST_SCRATCH_SIZE = 64 * 1024;
+
+	/***
+	 * The checksums of a part, or of an object sent with a single request.
+	 */
+	public static class Digest {
+		private final byte[] md5;
+		private final long crc32c;
+		private final byte[] sha256;
+		private final long length;
+
+		/***
+		 * Creates the checksums of a part.
+		 * @param md5 The MD5 digest.
+		 * @param crc32c The CRC-32C.
+		 * @param sha256 The SHA-256 digest.
+		 * @param length The length of the part.
+		 */
+		public Digest(byte[] md5, long crc32c, byte[] sha256, long length) {
+			this.md5 = md5;
+			this.crc32c = crc32c;
+			this.sha256 = sha256;
+			this.length = length;
+		}
+
+		/***
+		 * Computes the checksums of bytes held in memory.
+		 * @param data The array holding the bytes.
+		 * @param offset The offset of the first byte.
+		 * @param length The number of bytes.
+		 * @return The checksums.
+		 */
+		public static Digest of(byte[] data, int offset, int length) {
+			MessageDigest md5 = messageDigest("MD5");
+			MessageDigest sha256 = messageDigest("SHA-256");
+			Checksum crc32c = Crc32c.create();
+			md5.update(data, offset, length);
+			sha256.update(data, offset, length);
+			crc32c.update(data, offset, length);
+			return new Digest(md5.digest(), crc32c.getValue(), sha256.digest(), length);
+		}
+
+		/***
+		 * Computes the checksums of the remaining bytes of a buffer, which may be direct.
+		 * The position of the buffer is not changed.
+		 * @param data The buffer holding the bytes between its position and its limit.
+		 * @return The checksums.
+		 */
+		public static Digest of(ByteBuffer data) {
+			MessageDigest md5 = messageDigest("MD5");
+			MessageDigest sha256 = messageDigest("SHA-256");
+			Checksum crc32c = Crc32c.create();
+			md5.update(data.duplicate());
+			sha256.update(data.duplicate());
+			Crc32c.update(crc32c, data, new byte[DIGEST_SCRATCH_SIZE]);
+			return new Digest(md5.digest(), crc32c.getValue(), sha256.digest(), data.remaining());
+		}
+
+		/***
+		 * Gets the ETag S3 returns for this content, the hexadecimal MD5 digest.
+		 * @return The ETag.
+		 */
+		public String getETag() {
+			return toHex(md5);
+		}
+
+		/***
+		 * Gets the base 64 MD5 digest, as sent in the Content-MD5 header.
+		 * @return The MD5 digest.
+		 */
+		public String getContentMD5() {
+			return Base64.getEncoder().encodeToString(md5);
+		}
+
+		/***
+		 * Gets the CRC-32C.
+		 * @return The CRC.
+		 */
+		public long getCrc32c() {
+			return crc32c;
+		}
+
+		/***
+		 * Gets the base 64 SHA-256 digest.
+		 * @return The SHA-256 digest.
+		 */
+		public String getSha256() {
+			return Base64.getEncoder().encodeToString(sha256);
+		}
+
+		/***
+		 * Gets the length of the content.
+		 * @return The number of bytes.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/***
+		 * Checks the ETag returned by S3 for this content.
+		 * @param name The name of the content, such as "part 3 of key", for the error message.
+		 * @param eTag The ETag returned by S3.
+		 * @throws AmazonClientException The ETag does not match; the content was corrupted on the way.
+		 */
+		public void verify(String name, String eTag) {
+			if (!getETag().equalsIgnoreCase(unquote(eTag)))
+				throw new AmazonClientException(String.format("%s: ETag %s does not match the MD5 digest %s", name, eTag, getETag()));
+		}
+
+		/***
+		 * Adds the CRC-32C and SHA-256 to the user metadata of an object sent in one part.
+		 * @param metadata The metadata to update.
+		 */
+		public void addTo(ObjectMetadata metadata) {
+			metadata.addUserMetadata(CRC32C_METADATA, Crc32c.toBase64(crc32c));
+			metadata.addUserMetadata(SHA256_METADATA, getSha256());
+		}
+	}
+
+	// Checksums of each part, by part number.
+	private final NavigableMap<Integer, Digest> parts = new ConcurrentSkipListMap<Integer, Digest>();
+
+	/***
+	 * Records the checksums of a part. A part sent again replaces the previous one.
+	 * @param partNumber The part number, from 1.
+	 * @param digest The checksums of the part.
+	 */
+	public void addPart(int partNumber, Digest digest) {
+		parts.put(partNumber, digest);
+	}
+
+	/***
+	 * Gets the length of the object.
+	 * @return The total length of the parts.
+	 */
+	public long getLength() {
+		long length = 0;
+		for (Digest part : parts.values())
+			length += part.getLength();
+		return length;
+	}
+
+	/***
+	 * Gets the CRC-32C of the object, combined from the CRCs of the parts.
+	 * @return The CRC.
+	 */
+	public long getCrc32c() {
+		long crc = 0;
+		for (Digest part : parts.values())
+			crc = Crc32c.combine(crc, part.getCrc32c(), part.getLength());
+		return crc;
+	}
+
+	/***
+	 * Gets the composite SHA-256 of the object: the digest of the part digests
+	 * followed by "-" and the number of parts.
+	 * @return The base 64 SHA-256.
+	 */
+	public String getSha256() {
+		MessageDigest sha256 = messageDigest("SHA-256");
+		for (Digest part : parts.values())
+			sha256.update(part.sha256);
+		return Base64.getEncoder().encodeToString(sha256.digest()) + "-" + parts.size();
+	}
+
+	/***
+	 * Gets the ETag S3 computes for the completed upload: the digest of the part digests
+	 * followed by "-" and the number of parts.
+	 * @return The ETag.
+	 */
+	public String getETag() {
+		MessageDigest md5 = messageDigest("MD5");
+		for (Digest part : parts.values())
+			md5.update(part.md5);
+		return toHex(md5.digest()) + "-" + parts.size();
+	}
+
+	/***
+	 * Checks the ETag returned by S3 for the completed object.
+	 * @param keyName The name of the object, for the error message.
+	 * @param eTag The ETag returned by S3.
+	 * @throws AmazonClientException The ETag does not match the parts sent.
+	 */
+	public void verify(String keyName, String eTag) {
+		if (!getETag().equalsIgnoreCase(unquote(eTag)))
+			throw new AmazonClientException(String.format("%s: ETag %s does not match the parts sent (%s)", keyName, eTag, getETag()));
+	}
+
+	/***
+	 * Adds the checksums to the user metadata of an object.
+	 * @param metadata The metadata to update.
+	 */
+	public void addTo(ObjectMetadata metadata) {
+		metadata.addUserMetadata(CRC32C_METADATA, Crc32c.toBase64(getCrc32c()));
+		metadata.addUserMetadata(SHA256_METADATA, getSha256());
+	}
+
+	/***
+	 * Stores the checksums in the metadata of an object uploaded in parts, by copying the object onto itself.
+	 * The copy is made with the metadata, storage class, access control and KMS key of the upload, which
+	 * it would reset otherwise, and only succeeds if the object was not replaced since the upload. The copy
+	 * is a new version of the object, and the object has no stored checksums until it completes.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param upload The request that started the upload.
+	 * @param eTag The ETag of the uploaded object.
+	 * @return true if the checksums were stored; false if the object is too large to be copied or was replaced.
+	 */
+	public boolean store(AmazonS3 s3Client, InitiateMultipartUploadRequest upload, String eTag) {
+		if (getLength() > MAX_COPY_SIZE)
+			return false;
+		ObjectMetadata newMetadata = upload.getObjectMetadata() == null ? new ObjectMetadata() : upload.getObjectMetadata().clone();
+		addTo(newMetadata);
+		CopyObjectRequest request = new CopyObjectRequest(upload.getBucketName(), upload.getKey(), upload.getBucketName(), upload.getKey())
+				.withNewObjectMetadata(newMetadata)
+				.withMatchingETagConstraint(eTag);
+		if (upload.getStorageClass() != null)
+			request.setStorageClass(upload.getStorageClass());
+		if (upload.getCannedACL() != null)
+			request.setCannedAccessControlList(upload.getCannedACL());
+		if (upload.getAccessControlList() != null)
+			request.setAccessControlList(upload.getAccessControlList());
+		if (upload.getSSEAwsKeyManagementParams() != null)
+			request.setSSEAwsKeyManagementParams(upload.getSSEAwsKeyManagementParams());
+		return s3Client.copyObject(request) != null;
+	}
+
+	/***
+	 * Wraps the content of an object so that it is verified against the stored checksums while it is read.
+	 * The SHA-256 is only verified when it is not composite.
+	 * @param content The whole content of the object.
+	 * @param keyName The name of the object, for the error messages.
+	 * @param metadata The metadata of the object.
+	 * @return The verified content, or the content itself if no checksum is stored.
+	 */
+	public static InputStream verifying(InputStream content, String keyName, ObjectMetadata metadata) {
+		Long crc32c = getCrc32c(metadata);
+		String sha256 = metadata.getUserMetaDataOf(SHA256_METADATA);
+		if (sha256 != null && sha256.contains("-"))
+			sha256 = null;
+		if (crc32c == null && sha256 == null)
+			return content;
+		return new ChecksumInputStream(content, keyName, metadata.getContentLength(), crc32c, sha256);
+	}
+
+	/***
+	 * Gets the CRC-32C stored in the metadata of an object.
+	 * @param metadata The metadata of the object.
+	 * @return The CRC, or null if none is stored.
+	 */
+	public static Long getCrc32c(ObjectMetadata metadata) {
+		Map<String, String> userMetadata = metadata.getUserMetadata();
+		String crc32c = userMetadata == null ? null : userMetadata.get(CRC32C_METADATA);
+		try {
+			return crc32c == null ? null : Crc32c.fromBase64(crc32c);
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Gets a message digest of the JDK. MD5 and SHA-256 are available on every Java platform.
+	 */
+	static MessageDigest messageDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Removes the quotes around an ETag.
+	 */
+	private static String unquote(String eTag) {
+		return eTag != null && eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\"")
+				? eTag.substring(1, eTag.length() - 1) : eTag;
+	}
+
+	/*
+	 * Converts a digest to hexadecimal.
+	 */
+	private static String toHex(byte[] digest) {
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest)
+			hex.append(String.format("%02x", b & 0xFF));
+		return hex.toString();
+	}
+}
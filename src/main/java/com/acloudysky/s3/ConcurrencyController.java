@@ -0,0 +1,360 @@
+package com.acloudysky.s3;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+
+/***
+ * Adapts the number of requests in flight to what S3 sustains, using additive increase
+ * and multiplicative decrease (AIMD), like TCP congestion control.
+ * <p>
+ * S3 scales its request rate per key prefix, and rejects the requests above it with
+ * <i>503 SlowDown</i> errors. The controller keeps a limit for each bucket and top-level
+ * prefix (the key up to its first <i>/</i>). The requests of a client wrapped with
+ * {@link #limit(AmazonS3)} wait while the limit of their prefix is reached. Then:
+ * </p>
+ * <ul>
+ *   <li>each successful request whose latency stays close to the lowest latency seen for its
+ *   operation raises the limit by 1/limit, that is by one request per round trip, as long as
+ *   the limit is actually used</li>
+ *   <li>a throttled request (503, 429, SlowDown) or a timeout cuts the limit by the
+ *   backoff ratio, at most once per round trip so one burst of errors counts once</li>
+ * </ul>
+ * <p>
+ * Every engine sharing the wrapped client, such as the multipart uploader, the ranged
+ * downloader or the batch runner, is held to the same limits. The requests of a
+ * <i>getObject</i> call are counted until the call returns, not until its content is read.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ConcurrencyController {
+
+	// Default limit of a prefix before any feedback.
+	public static final int DEFAULT_INITIAL_LIMIT = 64;
+
+	// Default bounds of the limits.
+	public static final int DEFAULT_MIN_LIMIT = 1;
+	public static final int DEFAULT_MAX_LIMIT = 1024;
+
+	// Default ratio applied to a limit when requests are throttled.
+	public static final double DEFAULT_BACKOFF_RATIO = 0.5;
+
+	// A latency above the lowest latency times this tolerance does not raise the limit.
+	public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+	// Client methods that do not send requests.
+	private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList(
+			"generatePresignedUrl", "setEndpoint", "setRegion", "setS3ClientOptions", "shutdown",
+			"getCachedResponseMetadata"));
+
+	// Controller shared by all the clients of the application.
+	private static final ConcurrencyController DEFAULT = new ConcurrencyController();
+
+	private volatile int initialLimit = DEFAULT_INITIAL_LIMIT;
+	private volatile int minLimit = DEFAULT_MIN_LIMIT;
+	private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+	private volatile double backoffRatio = DEFAULT_BACKOFF_RATIO;
+	private volatile double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+
+	// Limit of each bucket and prefix.
+	private final Map<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+	// Bucket name, key and prefix getters of each request class.
+	private final Map<Class<?>, Method[]> accessors = new ConcurrentHashMap<Class<?>, Method[]>();
+
+	/***
+	 * Gets the controller shared by the application clients.
+	 * @return The controller.
+	 */
+	public static ConcurrencyController getDefault() {
+		return DEFAULT;
+	}
+
+	/***
+	 * Sets the limit of a prefix before any feedback.
+	 * @param initialLimit The number of requests in flight.
+	 * @return This object, for chaining.
+	 */
+	public ConcurrencyController withInitialLimit(int initialLimit) {
+		if (initialLimit < 1)
+			throw new IllegalArgumentException("Initial limit must be at least 1");
+		this.initialLimit = initialLimit;
+		return this;
+	}
+
+	/***
+	 * Sets the bounds of the limits.
+	 * @param minLimit The lowest number of requests in flight, at least 1.
+	 * @param maxLimit The highest number of requests in flight.
+	 * @return This object, for chaining.
+	 */
+	public ConcurrencyController withLimitBounds(int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit)
+			throw new IllegalArgumentException("Limits must be at least 1 and in ascending order");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		return this;
+	}
+
+	/***
+	 * Sets the ratio applied to a limit when requests are throttled.
+	 * @param backoffRatio The ratio, between 0 (excluded) and 1 (excluded).
+	 * @return This object, for chaining.
+	 */
+	public ConcurrencyController withBackoffRatio(double backoffRatio) {
+		if (backoffRatio <= 0 || backoffRatio >= 1)
+			throw new IllegalArgumentException("Backoff ratio must be between 0 and 1");
+		this.backoffRatio = backoffRatio;
+		return this;
+	}
+
+	/***
+	 * Sets how much slower than the lowest latency seen a request can be and still raise the limit.
+	 * @param latencyTolerance The ratio to the lowest latency, at least 1.
+	 * @return This object, for chaining.
+	 */
+	public ConcurrencyController withLatencyTolerance(double latencyTolerance) {
+		if (latencyTolerance < 1)
+			throw new IllegalArgumentException("Latency tolerance must be at least 1");
+		this.latencyTolerance = latencyTolerance;
+		return this;
+	}
+
+	/***
+	 * Wraps a client so that its requests are held to the limits of this controller.
+	 * @param s3Client The client to limit.
+	 * @return The limited client.
+	 */
+	public AmazonS3 limit(AmazonS3 s3Client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new Limiter(s3Client));
+	}
+
+	/***
+	 * Gets the current limit of a bucket and prefix.
+	 * @param bucketName The name of the bucket
+	 * @param keyName A key of the prefix, or an empty string for the requests without key
+	 * @return The number of requests allowed in flight.
+	 */
+	public int getLimit(String bucketName, String keyName) {
+		return limitOf(bucketName, keyName).getLimit();
+	}
+
+	/***
+	 * Formats the limits of the prefixes seen so far.
+	 * @return The report, one line per bucket and prefix.
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-40s %10s %10s %10s%n", "Bucket/prefix", "Limit", "In flight", "Throttled"));
+		for (Map.Entry<String, Limit> entry : new TreeMap<String, Limit>(limits).entrySet()) {
+			Limit limit = entry.getValue();
+			synchronized (limit) {
+				report.append(String.format("%-40s %10d %10d %10d%n", entry.getKey(), limit.getLimit(),
+						limit.inFlight, limit.throttled));
+			}
+		}
+		return report.toString();
+	}
+
+	/*
+	 * Gets the limit of the prefix of a key: the key up to its first delimiter.
+	 */
+	private Limit limitOf(String bucketName, String keyName) {
+		String prefix = "";
+		if (keyName != null) {
+			int delimiter = keyName.indexOf('/');
+			prefix = delimiter < 0 ? "" : keyName.substring(0, delimiter + 1);
+		}
+		return limits.computeIfAbsent(bucketName + "/" + prefix, k -> new Limit(initialLimit));
+	}
+
+	/*
+	 * Checks if a failure means that S3 is overloaded: throttling or timeout.
+	 */
+	private static boolean isOverload(Throwable failure) {
+		if (failure instanceof AmazonServiceException) {
+			AmazonServiceException ase = (AmazonServiceException) failure;
+			return ase.getStatusCode() == 503
+					|| ase.getStatusCode() == 429
+					|| "SlowDown".equals(ase.getErrorCode())
+					|| "RequestTimeout".equals(ase.getErrorCode());
+		}
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause.getClass().getSimpleName().endsWith("TimeoutException"))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Limit of one bucket and prefix.
+	 */
+	private class Limit {
+
+		// Allowed requests in flight; fractional so it grows by 1/limit per request.
+		private double limit;
+
+		private int inFlight;
+
+		// Number of throttled requests or timeouts.
+		private long throttled;
+
+		// Lowest recent latency of each operation, in nanoseconds.
+		private final Map<String, Double> baselines = new ConcurrentHashMap<String, Double>();
+
+		// Time of the last decrease, in nanoseconds.
+		private long lastDecrease = System.nanoTime();
+
+		Limit(int initialLimit) {
+			this.limit = initialLimit;
+		}
+
+		synchronized int getLimit() {
+			return (int) limit;
+		}
+
+		synchronized void acquire() throws InterruptedException {
+			while (inFlight >= (int) limit)
+				wait();
+			inFlight++;
+		}
+
+		synchronized void release(String operation, long nanos, boolean overload) {
+			// Compare with the limit before the request completes, so a full limit counts as used.
+			boolean used = inFlight >= limit / 2;
+			inFlight--;
+			if (overload) {
+				throttled++;
+				// Decrease once per round trip: the requests already in flight were sent at the old limit.
+				long now = System.nanoTime();
+				if (now - lastDecrease >= nanos) {
+					limit = Math.max(minLimit, limit * backoffRatio);
+					lastDecrease = now;
+				}
+			}
+			else {
+				Double baseline = baselines.get(operation);
+				// Follow lower latencies at once and higher ones slowly, so the baseline tracks the unloaded latency.
+				double updated = baseline == null || nanos < baseline ? nanos : baseline + (nanos - baseline) / 64;
+				baselines.put(operation, updated);
+				if (used && (baseline == null || nanos <= baseline * latencyTolerance))
+					limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			notifyAll();
+		}
+	}
+
+	/*
+	 * Holds the calls of a client to the limit of their bucket and prefix.
+	 */
+	private class Limiter implements InvocationHandler {
+
+		private final AmazonS3 target;
+
+		Limiter(AmazonS3 target) {
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class || LOCAL_METHODS.contains(method.getName()))
+				return invokeTarget(method, args);
+
+			String[] bucketAndKey = bucketAndKey(args);
+			if (bucketAndKey[0] == null)
+				return invokeTarget(method, args);
+			Limit limit = limitOf(bucketAndKey[0], bucketAndKey[1]);
+			try {
+				limit.acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException("Interrupted while waiting for the concurrency limit", e);
+			}
+			long start = System.nanoTime();
+			try {
+				Object result = invokeTarget(method, args);
+				limit.release(method.getName(), System.nanoTime() - start, false);
+				return result;
+			}
+			catch (Throwable failure) {
+				limit.release(method.getName(), System.nanoTime() - start, isOverload(failure));
+				throw failure;
+			}
+		}
+
+		private Object invokeTarget(Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		/*
+		 * Finds the bucket and key of a call: the first two string arguments,
+		 * or the bucket name, key and prefix properties of a request argument.
+		 */
+		private String[] bucketAndKey(Object[] args) {
+			String[] bucketAndKey = new String[2];
+			if (args == null)
+				return bucketAndKey;
+			int strings = 0;
+			for (Object arg : args) {
+				if (arg instanceof String) {
+					if (strings < 2)
+						bucketAndKey[strings++] = (String) arg;
+				}
+				else if (arg != null && bucketAndKey[0] == null) {
+					Method[] getters = accessors.computeIfAbsent(arg.getClass(), ConcurrencyController::accessors);
+					bucketAndKey[0] = property(arg, getters[0]);
+					bucketAndKey[1] = getters[1] != null ? property(arg, getters[1]) : property(arg, getters[2]);
+				}
+			}
+			return bucketAndKey;
+		}
+
+		private String property(Object arg, Method getter) {
+			if (getter == null)
+				return null;
+			try {
+				Object value = getter.invoke(arg);
+				return value instanceof String ? (String) value : null;
+			}
+			catch (ReflectiveOperationException e) {
+				return null;
+			}
+		}
+	}
+
+	/*
+	 * Looks up the bucket name, key and prefix getters of a request class; the missing ones are null.
+	 */
+	private static Method[] accessors(Class<?> requestClass) {
+		Method[] getters = new Method[3];
+		String[] names = { "getBucketName", "getKey", "getPrefix" };
+		for (int i = 0; i < names.length; i++) {
+			try {
+				getters[i] = requestClass.getMethod(names[i]);
+			}
+			catch (NoSuchMethodException e) {
+				getters[i] = null;
+			}
+		}
+		return getters;
+	}
+}
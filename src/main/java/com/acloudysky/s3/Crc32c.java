@@ -0,0 +1,207 @@
+package com.acloudysky.s3;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.zip.Checksum;
+
+/***
+ * Computes CRC-32C (Castagnoli) checksums, the CRC used by S3 for its <i>x-amz-checksum-crc32c</i> values.
+ * <p>
+ * This is a pure Java, slicing-by-8 implementation for Java 8. On Java 9 or later
+ * {@link #create()} returns the JDK implementation instead, which uses the CPU instructions.
+ * The CRC of a concatenation can be computed from the CRCs of its pieces with
+ * {@link #combine(long, long, long)}, so parts and ranges transferred concurrently
+ * can be checked against the CRC of the whole object.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class Crc32c implements Checksum {
+
+	// Castagnoli polynomial, bit-reversed.
+	private static final int POLYNOMIAL = 0x82F63B78;
+
+	// Lookup tables: the CRC of each byte value followed by 0 to 7 zero bytes.
+	private static final int[][] TABLES = tables();
+
+	// Constructor of java.util.zip.CRC32C, available since Java 9, or null.
+	private static final Constructor<?> JDK_CRC32C = jdkImplementation();
+
+	// Complemented CRC of the bytes so far.
+	private int crc = 0xFFFFFFFF;
+
+	/***
+	 * Creates a checksum, using the JDK implementation when available.
+	 * @return A CRC-32C checksum.
+	 */
+	public static Checksum create() {
+		if (JDK_CRC32C != null) {
+			try {
+				return (Checksum) JDK_CRC32C.newInstance();
+			}
+			catch (ReflectiveOperationException e) {
+				// Use the Java implementation.
+			}
+		}
+		return new Crc32c();
+	}
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+		int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+		for (; len >= 8; off += 8, len -= 8) {
+			int low = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+			int high = (b[off + 4] & 0xFF) | (b[off + 5] & 0xFF) << 8 | (b[off + 6] & 0xFF) << 16 | (b[off + 7] & 0xFF) << 24;
+			c = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^ t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24]
+					^ t3[high & 0xFF] ^ t2[(high >>> 8) & 0xFF] ^ t1[(high >>> 16) & 0xFF] ^ t0[high >>> 24];
+		}
+		for (; len > 0; off++, len--)
+			c = (c >>> 8) ^ t0[(c ^ b[off]) & 0xFF];
+		crc = c;
+	}
+
+	@Override
+	public long getValue() {
+		return ~crc & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+
+	/***
+	 * Adds the remaining bytes of a buffer, which may be direct, to a checksum.
+	 * The position of the buffer is not changed.
+	 * @param checksum The checksum to update.
+	 * @param buffer The bytes between the position and the limit are added.
+	 * @param scratch A work array for direct buffers.
+	 */
+	public static void update(Checksum checksum, ByteBuffer buffer, byte[] scratch) {
+		if (buffer.hasArray()) {
+			checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		ByteBuffer bytes = buffer.duplicate();
+		while (bytes.hasRemaining()) {
+			int count = Math.min(scratch.length, bytes.remaining());
+			bytes.get(scratch, 0, count);
+			checksum.update(scratch, 0, count);
+		}
+	}
+
+	/***
+	 * Computes the CRC of two byte sequences put end to end.
+	 * @param crc1 The CRC of the first sequence.
+	 * @param crc2 The CRC of the second sequence.
+	 * @param length2 The length of the second sequence.
+	 * @return The CRC of the concatenation.
+	 */
+	public static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0)
+			return crc1;
+		// Operators appending one, then two zero bits (the zlib method, with the Castagnoli polynomial).
+		int[] odd = new int[32];
+		int[] even = new int[32];
+		odd[0] = POLYNOMIAL;
+		for (int n = 1, row = 1; n < 32; n++, row <<= 1)
+			odd[n] = row;
+		square(even, odd);
+		square(odd, even);
+		int crc = (int) crc1;
+		// Append length2 zero bytes to the first CRC, one bit of the length at a time.
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0)
+				crc = times(even, crc);
+			length2 >>>= 1;
+			if (length2 == 0)
+				break;
+			square(odd, even);
+			if ((length2 & 1) != 0)
+				crc = times(odd, crc);
+			length2 >>>= 1;
+		} while (length2 != 0);
+		return (crc ^ crc2) & 0xFFFFFFFFL;
+	}
+
+	/***
+	 * Encodes a CRC the way S3 does: the four bytes, most significant first, in base 64.
+	 * @param crc The CRC.
+	 * @return The encoded CRC, for example "yZRlqg==".
+	 */
+	public static String toBase64(long crc) {
+		return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) crc).array());
+	}
+
+	/***
+	 * Decodes a CRC encoded the way S3 does.
+	 * @param base64 The encoded CRC.
+	 * @return The CRC.
+	 * @throws IllegalArgumentException The value is not a base 64 encoded CRC.
+	 */
+	public static long fromBase64(String base64) {
+		byte[] bytes = Base64.getDecoder().decode(base64);
+		if (bytes.length != 4)
+			throw new IllegalArgumentException(String.format("Invalid CRC %s", base64));
+		return ByteBuffer.wrap(bytes).getInt() & 0xFFFFFFFFL;
+	}
+
+	/*
+	 * Multiplies a 32x32 bit matrix by a vector.
+	 */
+	private static int times(int[] matrix, int vector) {
+		int sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0)
+				sum ^= matrix[i];
+		}
+		return sum;
+	}
+
+	/*
+	 * Squares a 32x32 bit matrix.
+	 */
+	private static void square(int[] square, int[] matrix) {
+		for (int n = 0; n < 32; n++)
+			square[n] = times(matrix, matrix[n]);
+	}
+
+	/*
+	 * Builds the lookup tables of the slicing-by-8 algorithm.
+	 */
+	private static int[][] tables() {
+		int[][] tables = new int[8][256];
+		for (int i = 0; i < 256; i++) {
+			int c = i;
+			for (int bit = 0; bit < 8; bit++)
+				c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+			tables[0][i] = c;
+		}
+		for (int k = 1; k < 8; k++) {
+			for (int i = 0; i < 256; i++)
+				tables[k][i] = (tables[k - 1][i] >>> 8) ^ tables[0][tables[k - 1][i] & 0xFF];
+		}
+		return tables;
+	}
+
+	/*
+	 * Looks up java.util.zip.CRC32C, available since Java 9.
+	 */
+	private static Constructor<?> jdkImplementation() {
+		try {
+			return Class.forName("java.util.zip.CRC32C").getConstructor();
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
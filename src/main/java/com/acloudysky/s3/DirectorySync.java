@@ -0,0 +1,312 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Synchronizes a local directory tree to a bucket, uploading only what changed.
+ * <p>
+ * The local tree is walked in parallel and compared with a (partitioned) listing of the
+ * destination prefix. A file is uploaded when the object is missing or has a different size.
+ * When the sizes match and the file was modified after the object was stored, the metadata
+ * stored with the object at upload time is checked: the modification time of the file first,
+ * then its MD5 checksum. Only the files whose content differs are uploaded again, through a
+ * pool of concurrent transfers. Optionally, the objects with no matching local file (orphans)
+ * are deleted in batches, through the same pool. Each request is retried on its own.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class DirectorySync {
+
+	// User metadata holding the modification time of the uploaded file, in milliseconds.
+	public static final String MTIME_METADATA = "mtime";
+
+	// User metadata holding the MD5 checksum of the uploaded file, in hexadecimal.
+	public static final String MD5_METADATA = "md5";
+
+	// Maximum number of keys in a multi-object delete request.
+	private static final int MAX_KEYS_PER_DELETE = BucketPurger.MAX_KEYS_PER_DELETE;
+
+	/***
+	 * Outcome of a synchronization.
+	 */
+	public static class Result {
+		private final AtomicLong uploaded = new AtomicLong();
+		private final AtomicLong unchanged = new AtomicLong();
+		private final AtomicLong deleted = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong bytesUploaded = new AtomicLong();
+
+		/***
+		 * @return The number of files uploaded.
+		 */
+		public long getUploaded() {
+			return uploaded.get();
+		}
+
+		/***
+		 * @return The number of files already up to date.
+		 */
+		public long getUnchanged() {
+			return unchanged.get();
+		}
+
+		/***
+		 * @return The number of orphan objects deleted.
+		 */
+		public long getDeleted() {
+			return deleted.get();
+		}
+
+		/***
+		 * @return The number of files or objects that could not be synchronized.
+		 */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/***
+		 * @return The number of bytes uploaded.
+		 */
+		public long getBytesUploaded() {
+			return bytesUploaded.get();
+		}
+	}
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Multipart threshold, part size and concurrency settings.
+	private final TransferSettings settings;
+
+	/***
+	 * Creates a synchronizer.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param settings The transfer settings. The concurrency is the number of files transferred at the same time.
+	 */
+	public DirectorySync(AmazonS3 s3Client, TransferSettings settings) {
+		this.s3Client = s3Client;
+		this.settings = settings;
+	}
+
+	/***
+	 * Synchronizes a local directory to a bucket.
+	 * @param directory The local directory.
+	 * @param bucketName The name of the destination bucket
+	 * @param prefix The prefix under which the tree is stored, or an empty string for the bucket root
+	 * @param deleteOrphans true to delete the objects under the prefix that have no matching local file
+	 * @return The outcome of the synchronization.
+	 * @throws IOException Error encountered while walking the local directory
+	 * @throws InterruptedException The thread was interrupted while waiting for the transfers
+	 */
+	public Result sync(File directory, String bucketName, String prefix, boolean deleteOrphans)
+			throws IOException, InterruptedException {
+
+		if (!directory.isDirectory())
+			throw new IOException(String.format("%s is not a directory", directory));
+		String root = prefix == null || prefix.isEmpty() || prefix.endsWith("/") ? (prefix == null ? "" : prefix) : prefix + "/";
+
+		// Walk the local tree and list the destination at the same time.
+		ForkJoinPool walkers = new ForkJoinPool(settings.getConcurrency());
+		Map<String, File> local = new ConcurrentHashMap<String, File>();
+		Future<?> walk = walkers.submit(new Walk(directory, root, local));
+		Map<String, S3ObjectSummary> remote = new HashMap<String, S3ObjectSummary>();
+		try (Stream<S3ObjectSummary> objects = new ParallelLister(s3Client, settings.getConcurrency()).list(bucketName, root, false)) {
+			objects.forEach(summary -> remote.put(summary.getKey(), summary));
+		}
+		try {
+			walk.get();
+		}
+		catch (ExecutionException e) {
+			throw new IOException(String.format("Unable to walk %s: %s", directory, e.getCause().getMessage()), e.getCause());
+		}
+		finally {
+			walkers.shutdownNow();
+		}
+
+		Result result = new Result();
+		ExecutorService transfers = Executors.newFixedThreadPool(settings.getConcurrency());
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		try {
+			for (Map.Entry<String, File> entry : local.entrySet()) {
+				String key = entry.getKey();
+				File file = entry.getValue();
+				S3ObjectSummary object = remote.get(key);
+				pending.add(transfers.submit(() -> {
+					try {
+						if (changed(bucketName, file, object))
+							upload(bucketName, key, file, result);
+						else
+							result.unchanged.incrementAndGet();
+					}
+					catch (IOException | AmazonClientException | InterruptedException e) {
+						result.failed.incrementAndGet();
+						System.out.println(String.format("Unable to synchronize %s: %s", file, e.getMessage()));
+					}
+				}));
+			}
+			if (deleteOrphans) {
+				List<KeyVersion> orphans = new ArrayList<KeyVersion>();
+				for (String key : remote.keySet()) {
+					if (!local.containsKey(key))
+						orphans.add(new KeyVersion(key));
+				}
+				for (int from = 0; from < orphans.size(); from += MAX_KEYS_PER_DELETE) {
+					List<KeyVersion> batch = orphans.subList(from, Math.min(from + MAX_KEYS_PER_DELETE, orphans.size()));
+					pending.add(transfers.submit(() -> delete(bucketName, batch, result)));
+				}
+			}
+			for (Future<?> transfer : pending)
+				transfer.get();
+		}
+		catch (ExecutionException e) {
+			throw new AmazonClientException(e.getCause().getMessage(), e.getCause());
+		}
+		finally {
+			transfers.shutdownNow();
+		}
+		return result;
+	}
+
+	/*
+	 * Decides if a file must be uploaded. The cheap checks come first: existence and size,
+	 * then the modification time; the metadata request and the checksum come last.
+	 */
+	private boolean changed(String bucketName, File file, S3ObjectSummary object) throws IOException, InterruptedException {
+		if (object == null || object.getSize() != file.length())
+			return true;
+		if (file.lastModified() <= object.getLastModified().getTime())
+			return false;
+
+		// Same size but modified since the upload: compare with what was uploaded.
+		Map<String, String> stored = Retries.call(() -> s3Client.getObjectMetadata(bucketName, object.getKey()),
+				settings.getMaxPartAttempts()).getUserMetadata();
+		if (String.valueOf(file.lastModified()).equals(stored.get(MTIME_METADATA)))
+			return false;
+		String md5 = md5(file);
+		// A single part object without checksum metadata has the MD5 checksum as ETag.
+		String remoteMd5 = stored.containsKey(MD5_METADATA) ? stored.get(MD5_METADATA) : object.getETag();
+		return !md5.equalsIgnoreCase(remoteMd5);
+	}
+
+	/*
+	 * Uploads a file with its modification time and checksum as user metadata.
+	 */
+	private void upload(String bucketName, String key, File file, Result result) throws IOException, InterruptedException {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.addUserMetadata(MTIME_METADATA, String.valueOf(file.lastModified()));
+		metadata.addUserMetadata(MD5_METADATA, md5(file));
+		if (file.length() >= settings.getMultipartThreshold())
+			new MultipartUploader(s3Client, settings).upload(bucketName, key, file, metadata);
+		else {
+			metadata.setContentLength(file.length());
+			Retries.call(() -> s3Client.putObject(new PutObjectRequest(bucketName, key, file).withMetadata(metadata)),
+					settings.getMaxPartAttempts());
+		}
+		result.uploaded.incrementAndGet();
+		result.bytesUploaded.addAndGet(file.length());
+	}
+
+	/*
+	 * Deletes a batch of objects with one multi-object delete request. Only the errors are
+	 * returned by S3 (quiet mode), so only the keys in error are counted as failed.
+	 */
+	private void delete(String bucketName, List<KeyVersion> batch, Result result) {
+		final DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName).withKeys(batch).withQuiet(true);
+		try {
+			Retries.call(() -> s3Client.deleteObjects(request), settings.getMaxPartAttempts());
+			result.deleted.addAndGet(batch.size());
+		}
+		catch (MultiObjectDeleteException mode) {
+			result.deleted.addAndGet(batch.size() - mode.getErrors().size());
+			result.failed.addAndGet(mode.getErrors().size());
+			System.out.println(String.format("Unable to delete %d orphans, first: %s (%s)", mode.getErrors().size(),
+					mode.getErrors().get(0).getKey(), mode.getErrors().get(0).getCode()));
+		}
+		catch (AmazonClientException | InterruptedException e) {
+			result.failed.addAndGet(batch.size());
+			System.out.println(String.format("Unable to delete %d orphans: %s", batch.size(), e.getMessage()));
+		}
+	}
+
+	/*
+	 * Computes the MD5 checksum of a file in hexadecimal.
+	 */
+	private static String md5(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+				digest.update(buffer, 0, read);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest())
+				hex.append(String.format("%02x", b & 0xff));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Lists the files of a directory, forking a task for each sub-directory.
+	 * The files are mapped to their key: the prefix followed by the relative path.
+	 */
+	private static class Walk extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File directory;
+		private final String prefix;
+		private final Map<String, File> files;
+
+		Walk(File directory, String prefix, Map<String, File> files) {
+			this.directory = directory;
+			this.prefix = prefix;
+			this.files = files;
+		}
+
+		@Override
+		protected void compute() {
+			File[] entries = directory.listFiles();
+			if (entries == null)
+				throw new IllegalStateException(String.format("Unable to read %s", directory));
+			List<Walk> subdirectories = new ArrayList<Walk>();
+			for (File entry : entries) {
+				if (entry.isDirectory())
+					subdirectories.add(new Walk(entry, prefix + entry.getName() + "/", files));
+				else if (entry.isFile())
+					files.put(prefix + entry.getName(), entry);
+			}
+			invokeAll(subdirectories);
+		}
+	}
+}
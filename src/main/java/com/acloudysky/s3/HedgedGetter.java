@@ -0,0 +1,261 @@
+package com.acloudysky.s3;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/***
+ * Sends GET requests with hedging, to cut the tail latency caused by a slow S3 node.
+ * <p>
+ * The time to the response headers of the GET requests is tracked in a {@link LatencyHistogram}.
+ * The requests are sent on a bounded pool of threads, so the caller waits for the first response
+ * rather than for a given request. When a request has not returned within the tracked percentile,
+ * say p95, a duplicate request is sent and the first successful response wins; the other one is
+ * aborted when it arrives. At most 100 - p percent of the requests are duplicated, in exchange for
+ * a tail latency close to the percentile. Hedging starts once enough latencies have been recorded.
+ * While all the {@value #MAX_REQUESTS} threads are busy, a request is sent on the caller thread
+ * without hedging.
+ * </p>
+ * <p>
+ * Only the wait for the response is hedged; a stream that stalls while its content is read is
+ * handled by the retries of the caller.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class HedgedGetter {
+
+	// Number of latencies recorded before hedging starts.
+	public static final int MIN_SAMPLES = 20;
+
+	// Time to the response headers of the GET requests of the application, in microseconds.
+	private static final LatencyHistogram DEFAULT_LATENCIES = new LatencyHistogram();
+
+	// Maximum number of requests, original or duplicate, sent on the pool at the same time.
+	public static final int MAX_REQUESTS = 64;
+
+	// Runs the requests, so the caller can wait for the first of two; a request is rejected when all the threads are busy.
+	private static final ThreadPoolExecutor REQUESTS = new ThreadPoolExecutor(0, MAX_REQUESTS,
+			60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+		Thread thread = new Thread(runnable, "s3-hedged-get");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Number of duplicate requests sent, and how many of them won.
+	private static final AtomicLong hedges = new AtomicLong();
+	private static final AtomicLong hedgeWins = new AtomicLong();
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Percentile of the latency after which a duplicate request is sent.
+	private final double percentile;
+
+	// Time to the response headers, in microseconds.
+	private final LatencyHistogram latencies;
+
+	/***
+	 * Creates a getter sharing the latencies tracked by the application.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param percentile The percentile of the latency after which a duplicate request is sent, for example 95.
+	 */
+	public HedgedGetter(AmazonS3 s3Client, double percentile) {
+		this(s3Client, percentile, DEFAULT_LATENCIES);
+	}
+
+	/***
+	 * Creates a getter.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param percentile The percentile of the latency after which a duplicate request is sent, for example 95.
+	 * @param latencies The tracked latencies, in microseconds.
+	 */
+	public HedgedGetter(AmazonS3 s3Client, double percentile, LatencyHistogram latencies) {
+		if (percentile <= 0 || percentile >= 100)
+			throw new IllegalArgumentException("Percentile must be between 0 and 100");
+		this.s3Client = s3Client;
+		this.percentile = percentile;
+		this.latencies = latencies;
+	}
+
+	/***
+	 * Gets an object, sending a duplicate request if the first one is slow.
+	 * @param request The GET request, optionally with a range and constraints.
+	 * @return The object of the first successful response, or null if the constraints are not met.
+	 * @throws AmazonClientException Both requests failed; the first error is thrown.
+	 * @throws InterruptedException The thread was interrupted while waiting for the response.
+	 */
+	public S3Object getObject(GetObjectRequest request) throws InterruptedException {
+		long delay = latencies.getCount() >= MIN_SAMPLES ? latencies.getPercentile(percentile) : 0;
+		if (delay <= 0)
+			return get(request);
+		CompletableFuture<S3Object> primary;
+		try {
+			primary = send(request);
+		}
+		catch (RejectedExecutionException e) {
+			// All the threads are busy: no room for a duplicate either.
+			return get(request);
+		}
+		try {
+			return unwrap(() -> primary.get(delay, TimeUnit.MICROSECONDS));
+		}
+		catch (TimeoutException e) {
+			// Slower than the percentile: race a duplicate request.
+		}
+		catch (InterruptedException e) {
+			abortWhenDone(primary);
+			throw e;
+		}
+		CompletableFuture<S3Object> hedge;
+		try {
+			hedge = send(copy(request));
+		}
+		catch (RejectedExecutionException e) {
+			// All the threads are busy: wait for the original request.
+			try {
+				return join(primary);
+			}
+			catch (InterruptedException ie) {
+				abortWhenDone(primary);
+				throw ie;
+			}
+		}
+		hedges.incrementAndGet();
+		CompletableFuture<S3Object> winner = new CompletableFuture<S3Object>();
+		race(primary, hedge, winner, false);
+		race(hedge, primary, winner, true);
+		try {
+			return join(winner);
+		}
+		catch (InterruptedException e) {
+			abortWhenDone(winner);
+			throw e;
+		}
+	}
+
+	/***
+	 * Gets the number of duplicate requests sent by all the getters.
+	 * @return The number of hedged requests.
+	 */
+	public static long getHedgeCount() {
+		return hedges.get();
+	}
+
+	/***
+	 * Gets the number of duplicate requests that answered before the original request.
+	 * @return The number of hedged requests that won.
+	 */
+	public static long getHedgeWinCount() {
+		return hedgeWins.get();
+	}
+
+	/*
+	 * Sends a request on the request pool.
+	 * Throws RejectedExecutionException when all the threads are busy.
+	 */
+	private CompletableFuture<S3Object> send(GetObjectRequest request) {
+		return CompletableFuture.supplyAsync(() -> get(request), REQUESTS);
+	}
+
+	/*
+	 * Sends a request on the current thread and records its latency when it succeeds.
+	 */
+	private S3Object get(GetObjectRequest request) {
+		long start = System.nanoTime();
+		S3Object object = s3Client.getObject(request);
+		latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		return object;
+	}
+
+	/*
+	 * Completes the winner with the first successful response. The response that arrives
+	 * second is aborted; the winner fails only when both requests failed.
+	 */
+	private static void race(CompletableFuture<S3Object> request, CompletableFuture<S3Object> other,
+			CompletableFuture<S3Object> winner, boolean hedge) {
+		request.whenComplete((object, error) -> {
+			if (error == null) {
+				if (winner.complete(object)) {
+					if (hedge)
+						hedgeWins.incrementAndGet();
+				}
+				else if (object != null)
+					object.getObjectContent().abort();
+			}
+			else if (other.isCompletedExceptionally())
+				winner.completeExceptionally(error);
+		});
+	}
+
+	/*
+	 * Aborts the response of a request nobody waits for any more, when it arrives.
+	 */
+	private static void abortWhenDone(CompletableFuture<S3Object> response) {
+		response.thenAccept(object -> {
+			if (object != null)
+				object.getObjectContent().abort();
+		});
+	}
+
+	/*
+	 * Copies a request, so the duplicate does not share its state with the original.
+	 */
+	private static GetObjectRequest copy(GetObjectRequest request) {
+		GetObjectRequest copy = new GetObjectRequest(request.getBucketName(), request.getKey(), request.getVersionId());
+		long[] range = request.getRange();
+		if (range != null)
+			copy.setRange(range[0], range[1]);
+		copy.setMatchingETagConstraints(request.getMatchingETagConstraints());
+		copy.setNonmatchingETagConstraints(request.getNonmatchingETagConstraints());
+		copy.setModifiedSinceConstraint(request.getModifiedSinceConstraint());
+		copy.setUnmodifiedSinceConstraint(request.getUnmodifiedSinceConstraint());
+		copy.setResponseHeaders(request.getResponseHeaders());
+		copy.setSSECustomerKey(request.getSSECustomerKey());
+		return copy;
+	}
+
+	/*
+	 * Waits for a response.
+	 */
+	private static S3Object join(CompletableFuture<S3Object> response) throws InterruptedException {
+		try {
+			return unwrap(response::get);
+		}
+		catch (TimeoutException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Waits for a response and rethrows the error of the request.
+	 */
+	private static S3Object unwrap(Response response) throws InterruptedException, TimeoutException {
+		try {
+			return response.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new AmazonClientException(cause.getMessage(), cause);
+		}
+	}
+
+	/*
+	 * Wait for a response, with or without timeout.
+	 */
+	private interface Response {
+		S3Object get() throws InterruptedException, ExecutionException, TimeoutException;
+	}
+}
@@ -0,0 +1,166 @@
+package com.acloudysky.s3;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+
+/***
+ * Answers listing, existence and size queries from the local metadata index
+ * instead of sending requests to S3. The index is refreshed on demand, by prefix.
+ * @see MetadataIndex
+ * @author Michael Miele
+ *
+ */
+public class IndexOperations {
+
+	// Authorized client
+	private static AmazonS3 s3Client;
+
+	// Local metadata index.
+	private static MetadataIndex index;
+
+	// Regional clients, or null to send all the requests through the authorized client.
+	private static S3ClientPool clientPool;
+
+	/***
+	 * Initializes global status variables.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param metadataIndex The local metadata index.
+	 */
+	public static void initIndexOperations(AmazonS3 authorizedClient, MetadataIndex metadataIndex) {
+		s3Client = authorizedClient;
+		index = metadataIndex;
+	}
+
+	/***
+	 * Initializes global status variables.
+	 * Each request is sent to the client of the region that holds the bucket.
+	 * @param pool The regional clients.
+	 * @param metadataIndex The local metadata index.
+	 */
+	public static void initIndexOperations(S3ClientPool pool, MetadataIndex metadataIndex) {
+		clientPool = pool;
+		s3Client = pool.getClient(pool.getHomeRegion());
+		index = metadataIndex;
+	}
+
+	/*
+	 * Gets the client to use for the specified bucket.
+	 */
+	private static AmazonS3 client(String bucketName) {
+		return clientPool == null ? s3Client : clientPool.getClientForBucket(bucketName);
+	}
+
+	/***
+	 * Refreshes the index of the objects under the specified prefix.
+	 * @param bucketName The name of the bucket to index
+	 * @param prefix The prefix to refresh, or an empty string for the whole bucket
+	 * @throws IOException Error encountered while writing the index
+	 */
+	public static void refreshIndex(String bucketName, String prefix) throws IOException {
+
+		try {
+				System.out.println(String.format("\nRefresh index of %s/%s", bucketName, prefix));
+				long start = System.currentTimeMillis();
+				long count = index.refresh(client(bucketName), bucketName, prefix);
+				System.out.println(String.format("Indexed %d objects in %d ms", count, System.currentTimeMillis() - start));
+		}
+		catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+
+   	   		System.out.print(err.toString());
+
+     	}
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}
+	}
+
+	/***
+	 * Drops the indexed bucket list after a bucket was created or deleted, so it is listed again.
+	 */
+	public static void invalidateBuckets() {
+		if (index != null)
+			index.invalidateBuckets();
+	}
+
+	/***
+	 * Lists the indexed buckets. The bucket list is fetched from S3 when it is missing, when it is
+	 * older than {@link MetadataIndex#DEFAULT_BUCKETS_MAX_AGE} or after a bucket was created or deleted.
+	 * @throws IOException Error encountered while reading the index
+	 */
+	public static void listIndexedBuckets() throws IOException {
+
+		try {
+				List<String> buckets = index.getBuckets();
+				if (buckets == null)
+					buckets = index.refreshBuckets(s3Client);
+				System.out.println("Listing buckets (index)");
+				for (String bucket : buckets)
+					System.out.println(" - " + bucket);
+		}
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}
+	}
+
+	/***
+	 * Lists the indexed objects under the specified prefix.
+	 * The bucket is indexed first if it has never been indexed.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The prefix of the keys to list, or an empty string for all the keys
+	 * @throws IOException Error encountered while reading the index
+	 */
+	public static void listIndexedObjects(String bucketName, String prefix) throws IOException {
+
+		if (!index.isIndexed(bucketName))
+			refreshIndex(bucketName, "");
+
+		System.out.println(String.format("\nList objects (index)"));
+		long total = 0;
+		List<MetadataIndex.Entry> entries = index.list(bucketName, prefix);
+		for (MetadataIndex.Entry entry : entries) {
+			total += entry.getSize();
+			System.out.println(" - " + entry.getKey() + "  " +
+                    "(size = " + entry.getSize() +
+                    ")");
+		}
+		System.out.println(String.format("%d objects, %d bytes", entries.size(), total));
+	}
+
+	/***
+	 * Checks if an object exists according to the index and displays its metadata.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @throws IOException Error encountered while reading the index
+	 */
+	public static void checkIndexedObject(String bucketName, String keyName) throws IOException {
+
+		if (!index.isIndexed(bucketName))
+			refreshIndex(bucketName, "");
+
+		MetadataIndex.Entry entry = index.get(bucketName, keyName);
+		if (entry == null)
+			System.out.println(String.format("%s is not in the index of %s", keyName, bucketName));
+		else
+			System.out.println(String.format("%s: size = %d, ETag = %s, last modified = %s",
+					entry.getKey(), entry.getSize(), entry.getETag(), entry.getLastModified()));
+	}
+}
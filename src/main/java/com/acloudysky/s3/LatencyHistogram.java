@@ -0,0 +1,118 @@
+package com.acloudysky.s3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Lock-free latency histogram with logarithmic buckets.
+ * <p>
+ * Each power of two is split in 16 linear sub-buckets, so any recorded value is known
+ * within about 6% while the whole range of a long fits in less than a thousand counters.
+ * Recording a value is a few arithmetic operations and one atomic increment, so the
+ * histogram can be updated by many threads on every request without contention.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class LatencyHistogram {
+
+	// Number of bits used to split each power of two.
+	private static final int SUB_BUCKET_BITS = 4;
+
+	// Number of linear sub-buckets in each power of two.
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Number of buckets needed to cover all the positive long values.
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/***
+	 * Records a value.
+	 * @param value The value, for example a latency in microseconds. Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		long v = Math.max(value, 0);
+		counts.incrementAndGet(bucketOf(v));
+		count.increment();
+		sum.add(v);
+		max.accumulate(v);
+	}
+
+	/***
+	 * Gets the number of recorded values.
+	 * @return The count.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/***
+	 * Gets the mean of the recorded values.
+	 * @return The mean, or 0 if no value was recorded.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/***
+	 * Gets the largest recorded value.
+	 * @return The maximum, or 0 if no value was recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/***
+	 * Gets the value below which the specified percentage of the recorded values fall.
+	 * The result is the upper bound of the bucket holding the percentile, capped to the maximum.
+	 * @param percentile The percentile, between 0 and 100. For example 99.9.
+	 * @return The value, or 0 if no value was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(rank, 1))
+				return Math.min(upperBoundOf(i), getMax());
+		}
+		return getMax();
+	}
+
+	/*
+	 * Gets the bucket of a value: the value itself below 16, then 16 buckets per power of two.
+	 */
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	/*
+	 * Gets the largest value that falls in a bucket.
+	 */
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + subBucket * width + width - 1;
+	}
+}
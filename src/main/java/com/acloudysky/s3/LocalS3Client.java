@@ -0,0 +1,1056 @@
+package com.acloudysky.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.HttpGet;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.CreateBucketRequest;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.DeleteBucketRequest;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+import com.amazonaws.services.s3.model.GetBucketLocationRequest;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListBucketsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListVersionsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.RestoreObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3VersionSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.model.VersionListing;
+
+/***
+ * In-process stand-in for Amazon S3 that keeps buckets and objects in memory or in a local directory.
+ * <p>
+ * It can be passed to {@link BucketOperations#initBucketOperations(com.amazonaws.services.s3.AmazonS3)}
+ * and {@link ObjectOperations#initObjectOperations(com.amazonaws.services.s3.AmazonS3)} to exercise the
+ * operations and the transfer engines without network or AWS account, for example in benchmarks.
+ * </p>
+ * <p>
+ * The bucket, object, copy, listing, multi-object delete and multipart upload (and part copy) requests are served
+ * locally with the same semantics as S3 (key order, markers, common prefixes, ETags, ranges and
+ * ETag constraints). The storage class of an upload is kept, and the restore of a <i>GLACIER</i>
+ * object completes at once. Requests that are not supported fail, since the client endpoint does not exist.
+ * Buckets are not versioned: each object has the <i>null</i> version.
+ * </p>
+ * <p>
+ * To behave like a remote service, the stand-in can add a latency to each request
+ * ({@link #withLatency(long, long)}), limit the bandwidth shared by all the transfers
+ * ({@link #withBandwidth(long)}) and reject requests with <i>503 SlowDown</i> errors, either at
+ * random ({@link #withSlowDown(double)}) or above a request rate ({@link #withMaxRequestRate(int)}).
+ * </p>
+ * <p>
+ * When backed by a directory, each bucket is a sub-directory and each object a file named
+ * after its URL-encoded key, so the content survives restarts. The ETags are computed again
+ * when the directory is loaded; the user metadata is kept in memory only.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class LocalS3Client extends AmazonS3Client {
+
+	// Endpoint used by the requests which are not served locally. Nothing listens there.
+	private static final String UNREACHABLE_ENDPOINT = "http://127.0.0.1:1";
+
+	// Largest object that can be copied with a single request.
+	private static final long MAX_COPY_SIZE = 5L * 1024L * 1024L * 1024L;
+
+	// Default (and maximum) number of keys returned by a listing request.
+	private static final int MAX_KEYS = 1000;
+
+	// Version identifier of the objects in a non-versioned bucket.
+	private static final String NULL_VERSION = "null";
+
+	// Extension of the files being written in a directory-backed bucket.
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	// Idle link time that can be used later by a burst of transfers.
+	private static final long BANDWIDTH_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/*
+	 * An object stored in a bucket, either in memory (data) or in a file.
+	 */
+	private static class StoredObject {
+		final byte[] data;
+		final File file;
+		final ObjectMetadata metadata;
+
+		StoredObject(byte[] data, File file, ObjectMetadata metadata) {
+			this.data = data;
+			this.file = file;
+			this.metadata = metadata;
+		}
+
+		long length() {
+			return metadata.getContentLength();
+		}
+
+		InputStream open(long first) throws IOException {
+			if (data != null)
+				return new ByteArrayInputStream(data, (int) first, data.length - (int) first);
+			FileInputStream in = new FileInputStream(file);
+			in.getChannel().position(first);
+			return in;
+		}
+	}
+
+	// Directory holding the buckets, or null to keep them in memory.
+	private final File directory;
+
+	// Objects of each bucket, in key order.
+	private final Map<String, ConcurrentNavigableMap<String, StoredObject>> buckets =
+			new ConcurrentHashMap<String, ConcurrentNavigableMap<String, StoredObject>>();
+
+	// Creation date of each bucket.
+	private final Map<String, Date> creationDates = new ConcurrentHashMap<String, Date>();
+
+	// Parts of the multipart uploads in progress, by upload id.
+	private final Map<String, NavigableMap<Integer, byte[]>> uploads =
+			new ConcurrentHashMap<String, NavigableMap<Integer, byte[]>>();
+
+	// Metadata of the multipart uploads in progress, by upload id.
+	private final Map<String, ObjectMetadata> uploadMetadata = new ConcurrentHashMap<String, ObjectMetadata>();
+
+	// Latency added to each request, and maximum random extra latency, in milliseconds.
+	private volatile long latencyMillis;
+	private volatile long jitterMillis;
+
+	// Bandwidth shared by all the transfers in bytes per second, or 0 if unlimited.
+	private volatile long bandwidth;
+
+	// Probability that a request is rejected with a SlowDown error.
+	private volatile double slowDownProbability;
+
+	// Number of requests accepted per second before rejecting them with SlowDown errors, or 0 if unlimited.
+	private volatile int maxRequestRate;
+
+	// Time at which the bandwidth is available for the next transfer, in nanoseconds.
+	private long bandwidthAvailableAt = System.nanoTime();
+
+	// Start of the current one-second request window and number of requests accepted in it.
+	private long windowStart = System.nanoTime();
+	private int windowRequests;
+
+	// Number of requests served and rejected with SlowDown errors.
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong slowDownCount = new AtomicLong();
+
+	/***
+	 * Creates an empty stand-in that keeps the objects in memory.
+	 */
+	public LocalS3Client() {
+		super(new BasicAWSCredentials("local", "local"));
+		setEndpoint(UNREACHABLE_ENDPOINT);
+		this.directory = null;
+	}
+
+	/***
+	 * Creates a stand-in that keeps the objects in a local directory.
+	 * The buckets and objects already in the directory are loaded.
+	 * @param directory The directory holding the buckets. It is created if it does not exist.
+	 * @throws IOException Error encountered while reading the directory
+	 */
+	public LocalS3Client(File directory) throws IOException {
+		super(new BasicAWSCredentials("local", "local"));
+		setEndpoint(UNREACHABLE_ENDPOINT);
+		Files.createDirectories(directory.toPath());
+		this.directory = directory;
+		load();
+	}
+
+	/***
+	 * Adds a latency to each request.
+	 * @param latencyMillis The latency in milliseconds.
+	 * @param jitterMillis The maximum random latency added to it, in milliseconds.
+	 * @return This stand-in.
+	 */
+	public LocalS3Client withLatency(long latencyMillis, long jitterMillis) {
+		if (latencyMillis < 0 || jitterMillis < 0)
+			throw new IllegalArgumentException("Latency cannot be negative");
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		return this;
+	}
+
+	/***
+	 * Limits the bandwidth shared by all the uploads and downloads.
+	 * @param bytesPerSecond The bandwidth in bytes per second, or 0 for unlimited.
+	 * @return This stand-in.
+	 */
+	public LocalS3Client withBandwidth(long bytesPerSecond) {
+		if (bytesPerSecond < 0)
+			throw new IllegalArgumentException("Bandwidth cannot be negative");
+		this.bandwidth = bytesPerSecond;
+		return this;
+	}
+
+	/***
+	 * Rejects requests at random with <i>503 SlowDown</i> errors.
+	 * @param probability The probability that a request is rejected, between 0 and 1.
+	 * @return This stand-in.
+	 */
+	public LocalS3Client withSlowDown(double probability) {
+		if (probability < 0 || probability > 1)
+			throw new IllegalArgumentException("Probability must be between 0 and 1");
+		this.slowDownProbability = probability;
+		return this;
+	}
+
+	/***
+	 * Rejects the requests above a request rate with <i>503 SlowDown</i> errors, like S3 does
+	 * when a prefix receives too many requests.
+	 * @param requestsPerSecond The number of requests accepted per second, or 0 for unlimited.
+	 * @return This stand-in.
+	 */
+	public LocalS3Client withMaxRequestRate(int requestsPerSecond) {
+		if (requestsPerSecond < 0)
+			throw new IllegalArgumentException("Request rate cannot be negative");
+		this.maxRequestRate = requestsPerSecond;
+		return this;
+	}
+
+	/***
+	 * Gets the number of requests received, including the rejected ones.
+	 * @return The number of requests.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/***
+	 * Gets the number of requests rejected with <i>503 SlowDown</i> errors.
+	 * @return The number of rejected requests.
+	 */
+	public long getSlowDownCount() {
+		return slowDownCount.get();
+	}
+
+	/**************
+	 ** Buckets. **
+	 **************/
+
+	@Override
+	public Bucket createBucket(CreateBucketRequest request) {
+		serve();
+		String bucketName = request.getBucketName();
+		if (buckets.putIfAbsent(bucketName, new ConcurrentSkipListMap<String, StoredObject>()) != null)
+			throw error(409, "BucketAlreadyOwnedByYou", "Your previous request to create the named bucket succeeded");
+		if (directory != null && !new File(directory, bucketName).mkdirs()) {
+			buckets.remove(bucketName);
+			throw new AmazonClientException(String.format("Unable to create the directory of bucket %s", bucketName));
+		}
+		Date now = new Date();
+		creationDates.put(bucketName, now);
+		Bucket bucket = new Bucket(bucketName);
+		bucket.setCreationDate(now);
+		return bucket;
+	}
+
+	@Override
+	public List<Bucket> listBuckets(ListBucketsRequest request) {
+		serve();
+		List<Bucket> list = new ArrayList<Bucket>();
+		for (String name : new TreeMap<String, Date>(creationDates).keySet()) {
+			Bucket bucket = new Bucket(name);
+			bucket.setCreationDate(creationDates.get(name));
+			list.add(bucket);
+		}
+		return list;
+	}
+
+	@Override
+	public String getBucketLocation(GetBucketLocationRequest request) {
+		serve();
+		bucket(request.getBucketName());
+		return "US";
+	}
+
+	@Override
+	public boolean doesBucketExist(String bucketName) {
+		serve();
+		return buckets.containsKey(bucketName);
+	}
+
+	@Override
+	public void deleteBucket(DeleteBucketRequest request) {
+		serve();
+		String bucketName = request.getBucketName();
+		if (!bucket(bucketName).isEmpty())
+			throw error(409, "BucketNotEmpty", "The bucket you tried to delete is not empty");
+		if (directory != null)
+			new File(directory, bucketName).delete();
+		buckets.remove(bucketName);
+		creationDates.remove(bucketName);
+	}
+
+	/**************
+	 ** Objects. **
+	 **************/
+
+	@Override
+	public PutObjectResult putObject(PutObjectRequest request) {
+		serve();
+		bucket(request.getBucketName());
+		ObjectMetadata metadata = request.getMetadata() == null ? new ObjectMetadata() : request.getMetadata().clone();
+		if (request.getStorageClass() != null)
+			metadata.setHeader(Headers.STORAGE_CLASS, request.getStorageClass());
+		String eTag;
+		try {
+			InputStream content = request.getFile() != null ? new FileInputStream(request.getFile()) : request.getInputStream();
+			try (InputStream in = new ServedInputStream(content, Long.MAX_VALUE)) {
+				eTag = store(request.getBucketName(), request.getKey(), in, metadata, null);
+			}
+		}
+		catch (IOException e) {
+			throw new AmazonClientException("Unable to read the request content: " + e.getMessage(), e);
+		}
+
+		PutObjectResult result = new PutObjectResult();
+		result.setETag(eTag);
+		return result;
+	}
+
+	@Override
+	public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+		serve();
+		return object(request.getBucketName(), request.getKey()).metadata.clone();
+	}
+
+	@Override
+	public S3Object getObject(GetObjectRequest request) {
+		serve();
+		StoredObject stored = object(request.getBucketName(), request.getKey());
+		String eTag = stored.metadata.getETag();
+
+		// Conditional requests: the SDK returns null when a constraint is not met.
+		if (!request.getMatchingETagConstraints().isEmpty()
+				&& !request.getMatchingETagConstraints().contains(eTag))
+			return null;
+		if (request.getNonmatchingETagConstraints().contains(eTag))
+			return null;
+		if (request.getModifiedSinceConstraint() != null
+				&& !stored.metadata.getLastModified().after(request.getModifiedSinceConstraint()))
+			return null;
+
+		long first = 0;
+		long length = stored.length();
+		long[] range = request.getRange();
+		if (range != null) {
+			if (range[0] >= stored.length())
+				throw error(416, "InvalidRange", "The requested range is not satisfiable");
+			first = range[0];
+			length = Math.min(range[1], stored.length() - 1) - range[0] + 1;
+		}
+
+		ObjectMetadata metadata = stored.metadata.clone();
+		metadata.setContentLength(length);
+		S3Object object = new S3Object();
+		object.setBucketName(request.getBucketName());
+		object.setKey(request.getKey());
+		object.setObjectMetadata(metadata);
+		try {
+			object.setObjectContent(new S3ObjectInputStream(
+					new ServedInputStream(stored.open(first), length), new HttpGet()));
+		}
+		catch (IOException e) {
+			throw new AmazonClientException("Unable to read the object content: " + e.getMessage(), e);
+		}
+		return object;
+	}
+
+	@Override
+	public CopyObjectResult copyObject(CopyObjectRequest request) {
+		serve();
+		StoredObject source = object(request.getSourceBucketName(), request.getSourceKey());
+		String eTag = source.metadata.getETag();
+
+		// Conditional requests: the SDK returns null when a constraint is not met.
+		if (!request.getMatchingETagConstraints().isEmpty()
+				&& !request.getMatchingETagConstraints().contains(eTag))
+			return null;
+		if (request.getNonmatchingETagConstraints().contains(eTag))
+			return null;
+		if (source.length() > MAX_COPY_SIZE)
+			throw error(400, "InvalidRequest", "The specified copy source is larger than the maximum allowable size for a copy source");
+
+		boolean inPlace = request.getSourceBucketName().equals(request.getDestinationBucketName())
+				&& request.getSourceKey().equals(request.getDestinationKey());
+		if (inPlace && request.getNewObjectMetadata() == null)
+			throw error(400, "InvalidRequest", "This copy request is illegal because it is trying to copy an object to itself without changing the object's metadata");
+		ObjectMetadata copied = request.getNewObjectMetadata() == null ? source.metadata : request.getNewObjectMetadata();
+		// Like S3, the copy is stored in the standard class unless another one is requested.
+		ObjectMetadata metadata = new ObjectMetadata();
+		for (Map.Entry<String, Object> header : copied.getRawMetadata().entrySet())
+			if (!Headers.STORAGE_CLASS.equals(header.getKey()))
+				metadata.setHeader(header.getKey(), header.getValue());
+		metadata.setUserMetadata(new TreeMap<String, String>(copied.getUserMetadata()));
+		if (request.getStorageClass() != null)
+			metadata.setHeader(Headers.STORAGE_CLASS, request.getStorageClass());
+
+		// The content is copied by the service: no bandwidth is used.
+		String newETag;
+		try (InputStream in = source.open(0)) {
+			newETag = store(request.getDestinationBucketName(), request.getDestinationKey(), in, metadata, null);
+		}
+		catch (IOException e) {
+			throw new AmazonClientException("Unable to copy the object: " + e.getMessage(), e);
+		}
+
+		CopyObjectResult result = new CopyObjectResult();
+		result.setETag(newETag);
+		result.setLastModifiedDate(metadata.getLastModified());
+		return result;
+	}
+
+	@Override
+	public void restoreObject(RestoreObjectRequest request) {
+		serve();
+		StoredObject stored = object(request.getBucketName(), request.getKey());
+		if (!StorageClass.Glacier.toString().equals(stored.metadata.getRawMetadataValue(Headers.STORAGE_CLASS)))
+			throw error(403, "InvalidObjectState", "Restore is not allowed for the object's current storage class");
+
+		// The archive is available at once, until the requested expiration.
+		stored.metadata.setOngoingRestore(false);
+		stored.metadata.setRestoreExpirationTime(
+				new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(request.getExpirationInDays())));
+	}
+
+	@Override
+	public void deleteObject(DeleteObjectRequest request) {
+		serve();
+		remove(request.getBucketName(), request.getKey());
+	}
+
+	@Override
+	public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+		serve();
+		bucket(request.getBucketName());
+		List<DeletedObject> deleted = new ArrayList<DeletedObject>();
+		for (KeyVersion keyVersion : request.getKeys()) {
+			remove(request.getBucketName(), keyVersion.getKey());
+			if (!request.getQuiet()) {
+				DeletedObject object = new DeletedObject();
+				object.setKey(keyVersion.getKey());
+				object.setVersionId(keyVersion.getVersion());
+				deleted.add(object);
+			}
+		}
+		return new DeleteObjectsResult(deleted);
+	}
+
+	/**************
+	 ** Listing. **
+	 **************/
+
+	@Override
+	public ObjectListing listObjects(ListObjectsRequest request) {
+		serve();
+		ConcurrentNavigableMap<String, StoredObject> bucket = bucket(request.getBucketName());
+		String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+		String delimiter = request.getDelimiter();
+		int maxKeys = request.getMaxKeys() == null ? MAX_KEYS : Math.min(request.getMaxKeys(), MAX_KEYS);
+
+		ObjectListing listing = new ObjectListing();
+		listing.setBucketName(request.getBucketName());
+		listing.setPrefix(request.getPrefix());
+		listing.setDelimiter(delimiter);
+		listing.setMarker(request.getMarker());
+		listing.setMaxKeys(maxKeys);
+
+		NavigableMap<String, StoredObject> candidates = range(bucket, prefix, request.getMarker());
+		int count = 0;
+		String last = null;
+		for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+			String key = entry.getKey();
+			String commonPrefix = commonPrefix(key, prefix, delimiter);
+			// Skip the keys rolled up into the last common prefix, here or on the previous page.
+			if (commonPrefix != null && (commonPrefix.equals(last) || commonPrefix.equals(request.getMarker())))
+				continue;
+			if (count == maxKeys) {
+				listing.setTruncated(true);
+				listing.setNextMarker(last);
+				break;
+			}
+			if (commonPrefix != null) {
+				listing.getCommonPrefixes().add(commonPrefix);
+				last = commonPrefix;
+			}
+			else {
+				listing.getObjectSummaries().add(summary(request.getBucketName(), key, entry.getValue()));
+				last = key;
+			}
+			count++;
+		}
+		return listing;
+	}
+
+	@Override
+	public VersionListing listVersions(ListVersionsRequest request) {
+		serve();
+		ConcurrentNavigableMap<String, StoredObject> bucket = bucket(request.getBucketName());
+		String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+		int maxKeys = request.getMaxResults() == null ? MAX_KEYS : Math.min(request.getMaxResults(), MAX_KEYS);
+
+		VersionListing listing = new VersionListing();
+		listing.setBucketName(request.getBucketName());
+		listing.setPrefix(request.getPrefix());
+		listing.setKeyMarker(request.getKeyMarker());
+		listing.setMaxKeys(maxKeys);
+
+		int count = 0;
+		for (Map.Entry<String, StoredObject> entry : range(bucket, prefix, request.getKeyMarker()).entrySet()) {
+			if (count == maxKeys) {
+				listing.setTruncated(true);
+				listing.setNextKeyMarker(listing.getVersionSummaries().get(count - 1).getKey());
+				listing.setNextVersionIdMarker(NULL_VERSION);
+				break;
+			}
+			S3ObjectSummary summary = summary(request.getBucketName(), entry.getKey(), entry.getValue());
+			S3VersionSummary version = new S3VersionSummary();
+			version.setBucketName(summary.getBucketName());
+			version.setKey(summary.getKey());
+			version.setVersionId(NULL_VERSION);
+			version.setIsLatest(true);
+			version.setSize(summary.getSize());
+			version.setETag(summary.getETag());
+			version.setLastModified(summary.getLastModified());
+			listing.getVersionSummaries().add(version);
+			count++;
+		}
+		return listing;
+	}
+
+	/***********************
+	 ** Multipart upload. **
+	 ***********************/
+
+	@Override
+	public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+		serve();
+		bucket(request.getBucketName());
+		String uploadId = UUID.randomUUID().toString();
+		uploads.put(uploadId, new ConcurrentSkipListMap<Integer, byte[]>());
+		ObjectMetadata metadata = request.getObjectMetadata() == null ? new ObjectMetadata() : request.getObjectMetadata().clone();
+		if (request.getStorageClass() != null)
+			metadata.setHeader(Headers.STORAGE_CLASS, request.getStorageClass().toString());
+		else if (request.getCustomRequestHeaders() != null && request.getCustomRequestHeaders().containsKey(Headers.STORAGE_CLASS))
+			metadata.setHeader(Headers.STORAGE_CLASS, request.getCustomRequestHeaders().get(Headers.STORAGE_CLASS));
+		uploadMetadata.put(uploadId, metadata);
+		InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setUploadId(uploadId);
+		return result;
+	}
+
+	@Override
+	public UploadPartResult uploadPart(UploadPartRequest request) {
+		serve();
+		NavigableMap<Integer, byte[]> parts = upload(request.getUploadId());
+		byte[] data;
+		try {
+			if (request.getFile() != null) {
+				data = new byte[(int) request.getPartSize()];
+				try (RandomAccessFile file = new RandomAccessFile(request.getFile(), "r")) {
+					file.seek(request.getFileOffset());
+					file.readFully(data);
+				}
+				transfer(data.length);
+			}
+			else
+				data = readFully(new ServedInputStream(request.getInputStream(), request.getPartSize()));
+		}
+		catch (IOException e) {
+			throw new AmazonClientException("Unable to read the part content: " + e.getMessage(), e);
+		}
+		if (request.getMd5Digest() != null && !request.getMd5Digest().equals(Base64.getEncoder().encodeToString(md5(data))))
+			throw error(400, "BadDigest", "The Content-MD5 you specified did not match what we received");
+		parts.put(request.getPartNumber(), data);
+
+		UploadPartResult result = new UploadPartResult();
+		result.setPartNumber(request.getPartNumber());
+		result.setETag(toHex(md5(data)));
+		return result;
+	}
+
+	@Override
+	public CopyPartResult copyPart(CopyPartRequest request) {
+		serve();
+		NavigableMap<Integer, byte[]> parts = upload(request.getUploadId());
+		StoredObject source = object(request.getSourceBucketName(), request.getSourceKey());
+		String eTag = source.metadata.getETag();
+
+		// Conditional requests: the SDK returns null when a constraint is not met.
+		if (!request.getMatchingETagConstraints().isEmpty()
+				&& !request.getMatchingETagConstraints().contains(eTag))
+			return null;
+		if (request.getNonmatchingETagConstraints().contains(eTag))
+			return null;
+		long first = request.getFirstByte() == null ? 0 : request.getFirstByte();
+		long last = request.getLastByte() == null ? source.length() - 1 : request.getLastByte();
+		if (first < 0 || first > last || last >= source.length())
+			throw error(400, "InvalidArgument", "Range specified is not valid for source object of size: " + source.length());
+		if (last - first + 1 > MAX_COPY_SIZE)
+			throw error(400, "InvalidRequest", "The specified copy range is larger than the maximum allowable size for a copy source");
+
+		// The content is copied by the service: no bandwidth is used.
+		byte[] data = new byte[(int) (last - first + 1)];
+		try (DataInputStream in = new DataInputStream(source.open(first))) {
+			in.readFully(data);
+		}
+		catch (IOException e) {
+			throw new AmazonClientException("Unable to copy the part: " + e.getMessage(), e);
+		}
+		parts.put(request.getPartNumber(), data);
+
+		CopyPartResult result = new CopyPartResult();
+		result.setPartNumber(request.getPartNumber());
+		result.setETag(toHex(md5(data)));
+		result.setLastModifiedDate(new Date());
+		return result;
+	}
+
+	@Override
+	public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+		serve();
+		NavigableMap<Integer, byte[]> parts = upload(request.getUploadId());
+		List<InputStream> content = new ArrayList<InputStream>();
+		ByteArrayOutputStream digests = new ByteArrayOutputStream();
+		for (PartETag partETag : request.getPartETags()) {
+			byte[] part = parts.get(partETag.getPartNumber());
+			if (part == null || !toHex(md5(part)).equals(partETag.getETag()))
+				throw error(400, "InvalidPart", "One or more of the specified parts could not be found");
+			content.add(new ByteArrayInputStream(part));
+			byte[] digest = md5(part);
+			digests.write(digest, 0, digest.length);
+		}
+
+		// Same ETag as S3: digest of the part digests followed by the number of parts.
+		String eTag = toHex(md5(digests.toByteArray())) + "-" + request.getPartETags().size();
+		try {
+			store(request.getBucketName(), request.getKey(),
+					new SequenceInputStream(Collections.enumeration(content)), uploadMetadata.get(request.getUploadId()), eTag);
+		}
+		catch (IOException e) {
+			throw new AmazonClientException("Unable to store the object: " + e.getMessage(), e);
+		}
+		uploads.remove(request.getUploadId());
+		uploadMetadata.remove(request.getUploadId());
+
+		CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+		result.setBucketName(request.getBucketName());
+		result.setKey(request.getKey());
+		result.setETag(eTag);
+		return result;
+	}
+
+	@Override
+	public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+		serve();
+		upload(request.getUploadId());
+		uploads.remove(request.getUploadId());
+		uploadMetadata.remove(request.getUploadId());
+	}
+
+	/*********************************
+	 ** Latency, bandwidth, errors. **
+	 *********************************/
+
+	/*
+	 * Applies the latency and the request rejection settings to a request.
+	 */
+	private void serve() {
+		requestCount.incrementAndGet();
+		long delay = latencyMillis;
+		if (jitterMillis > 0)
+			delay += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+		pause(TimeUnit.MILLISECONDS.toNanos(delay));
+
+		if (!admit() || (slowDownProbability > 0 && ThreadLocalRandom.current().nextDouble() < slowDownProbability)) {
+			slowDownCount.incrementAndGet();
+			throw error(503, "SlowDown", "Please reduce your request rate.");
+		}
+	}
+
+	/*
+	 * Counts a request in the current one-second window.
+	 * Returns false if the window has already accepted the maximum number of requests.
+	 */
+	private synchronized boolean admit() {
+		if (maxRequestRate == 0)
+			return true;
+		long now = System.nanoTime();
+		if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+			windowStart = now;
+			windowRequests = 0;
+		}
+		return ++windowRequests <= maxRequestRate;
+	}
+
+	/*
+	 * Waits until the shared bandwidth allows the transfer of the specified number of bytes.
+	 */
+	private void transfer(long bytes) {
+		if (bandwidth == 0 || bytes <= 0)
+			return;
+		long wait;
+		synchronized (this) {
+			// Transfers are queued one after the other on the shared link. Up to a burst of idle time
+			// is credited, so that short reads and sleep overshoots do not leave the link unused.
+			long now = System.nanoTime();
+			bandwidthAvailableAt = Math.max(now - BANDWIDTH_BURST_NANOS, bandwidthAvailableAt)
+					+ bytes * TimeUnit.SECONDS.toNanos(1) / bandwidth;
+			wait = bandwidthAvailableAt - now;
+		}
+		pause(wait);
+	}
+
+	/*
+	 * Sleeps for the specified time.
+	 */
+	private static void pause(long nanos) {
+		if (nanos <= 0)
+			return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AmazonClientException("Request interrupted", e);
+		}
+	}
+
+	/*
+	 * Stream of a request or response content, limited to a number of bytes and
+	 * transferred at the speed allowed by the shared bandwidth.
+	 */
+	private class ServedInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		ServedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if (read > 0) {
+				remaining -= read;
+				transfer(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+	}
+
+	/**************
+	 ** Storage. **
+	 **************/
+
+	/*
+	 * Stores an object, replacing any previous object with the same key.
+	 * Returns the ETag, which is the MD5 digest of the content unless specified.
+	 */
+	private String store(String bucketName, String keyName, InputStream content, ObjectMetadata metadata, String eTag)
+			throws IOException {
+		ConcurrentNavigableMap<String, StoredObject> bucket = bucket(bucketName);
+		MessageDigest md5 = md5();
+		DigestInputStream in = new DigestInputStream(content, md5);
+		byte[] data = null;
+		File file = null;
+		long length;
+		if (directory == null) {
+			data = readFully(in);
+			length = data.length;
+		}
+		else {
+			file = objectFile(bucketName, keyName);
+			File temp = new File(file.getParentFile(), UUID.randomUUID() + TEMP_EXTENSION);
+			try (OutputStream out = new FileOutputStream(temp)) {
+				length = copy(in, out);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (eTag == null)
+			eTag = toHex(md5.digest());
+		metadata.setContentLength(length);
+		metadata.setHeader("ETag", eTag);
+		metadata.setLastModified(new Date());
+		bucket.put(keyName, new StoredObject(data, file, metadata));
+		return eTag;
+	}
+
+	/*
+	 * Removes an object.
+	 */
+	private void remove(String bucketName, String keyName) {
+		StoredObject object = bucket(bucketName).remove(keyName);
+		if (object != null && object.file != null)
+			object.file.delete();
+	}
+
+	/*
+	 * Loads the buckets and objects found in the directory.
+	 */
+	private void load() throws IOException {
+		File[] bucketDirectories = directory.listFiles(File::isDirectory);
+		if (bucketDirectories == null)
+			throw new IOException(String.format("Unable to read %s", directory));
+		for (File bucketDirectory : bucketDirectories) {
+			ConcurrentNavigableMap<String, StoredObject> bucket = new ConcurrentSkipListMap<String, StoredObject>();
+			File[] files = bucketDirectory.listFiles(File::isFile);
+			for (File file : files == null ? new File[0] : files) {
+				if (file.getName().endsWith(TEMP_EXTENSION)) {
+					file.delete();
+					continue;
+				}
+				MessageDigest md5 = md5();
+				try (InputStream in = new DigestInputStream(new FileInputStream(file), md5)) {
+					copy(in, null);
+				}
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setContentLength(file.length());
+				metadata.setHeader("ETag", toHex(md5.digest()));
+				metadata.setLastModified(new Date(file.lastModified()));
+				bucket.put(URLDecoder.decode(file.getName(), "UTF-8"), new StoredObject(null, file, metadata));
+			}
+			buckets.put(bucketDirectory.getName(), bucket);
+			creationDates.put(bucketDirectory.getName(), new Date(bucketDirectory.lastModified()));
+		}
+	}
+
+	/*
+	 * Gets the file of an object. The key is URL-encoded, dots included so that
+	 * no key can be mistaken for "." or ".." or for a temporary file.
+	 */
+	private File objectFile(String bucketName, String keyName) {
+		try {
+			String name = URLEncoder.encode(keyName, "UTF-8").replace(".", "%2E");
+			return new File(new File(directory, bucketName), name);
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Gets the objects of a bucket, failing like S3 if the bucket does not exist.
+	 */
+	private ConcurrentNavigableMap<String, StoredObject> bucket(String bucketName) {
+		ConcurrentNavigableMap<String, StoredObject> bucket = buckets.get(bucketName);
+		if (bucket == null)
+			throw error(404, "NoSuchBucket", "The specified bucket does not exist");
+		return bucket;
+	}
+
+	/*
+	 * Gets an object, failing like S3 if the object does not exist.
+	 */
+	private StoredObject object(String bucketName, String keyName) {
+		StoredObject object = bucket(bucketName).get(keyName);
+		if (object == null)
+			throw error(404, "NoSuchKey", "The specified key does not exist.");
+		return object;
+	}
+
+	/*
+	 * Gets the parts of a multipart upload, failing like S3 if the upload does not exist.
+	 */
+	private NavigableMap<Integer, byte[]> upload(String uploadId) {
+		NavigableMap<Integer, byte[]> parts = uploads.get(uploadId);
+		if (parts == null)
+			throw error(404, "NoSuchUpload", "The specified upload does not exist");
+		return parts;
+	}
+
+	/*************************
+	 ** Internal utilities. **
+	 *************************/
+
+	/*
+	 * Gets the keys starting with the prefix that follow the marker.
+	 */
+	private static NavigableMap<String, StoredObject> range(ConcurrentNavigableMap<String, StoredObject> bucket,
+			String prefix, String marker) {
+		NavigableMap<String, StoredObject> keys = prefix.isEmpty() ? bucket
+				: bucket.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+		if (marker != null && !marker.isEmpty())
+			keys = keys.tailMap(marker, false);
+		return keys;
+	}
+
+	/*
+	 * Gets the common prefix a key rolls up into, or null if the key is listed on its own.
+	 */
+	private static String commonPrefix(String key, String prefix, String delimiter) {
+		if (delimiter == null || delimiter.isEmpty())
+			return null;
+		int index = key.indexOf(delimiter, prefix.length());
+		return index < 0 ? null : key.substring(0, index + delimiter.length());
+	}
+
+	/*
+	 * Builds the listing summary of an object.
+	 */
+	private static S3ObjectSummary summary(String bucketName, String keyName, StoredObject object) {
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setBucketName(bucketName);
+		summary.setKey(keyName);
+		summary.setSize(object.length());
+		summary.setETag(object.metadata.getETag());
+		summary.setLastModified(object.metadata.getLastModified());
+		Object storageClass = object.metadata.getRawMetadataValue(Headers.STORAGE_CLASS);
+		summary.setStorageClass(storageClass == null ? StorageClass.Standard.toString() : storageClass.toString());
+		return summary;
+	}
+
+	/*
+	 * Builds an error response like the ones returned by S3.
+	 */
+	private static AmazonServiceException error(int statusCode, String errorCode, String message) {
+		AmazonServiceException ase = new AmazonServiceException(message);
+		ase.setStatusCode(statusCode);
+		ase.setErrorCode(errorCode);
+		ase.setErrorType(statusCode >= 500 ? ErrorType.Service : ErrorType.Client);
+		ase.setServiceName("Amazon S3");
+		ase.setRequestId(UUID.randomUUID().toString());
+		return ase;
+	}
+
+	/*
+	 * Reads a stream to the end.
+	 */
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copy(in, out);
+		return out.toByteArray();
+	}
+
+	/*
+	 * Copies a stream to the end. The content is only read if the output is null.
+	 */
+	private static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			if (out != null)
+				out.write(buffer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	/*
+	 * Creates an MD5 digest.
+	 */
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Computes the MD5 digest of the data.
+	 */
+	private static byte[] md5(byte[] data) {
+		return md5().digest(data);
+	}
+
+	/*
+	 * Converts bytes into an hexadecimal string.
+	 */
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+}
@@ -1,140 +1,310 @@
-package com.acloudysky.s3;
-
-import com.amazonaws.AmazonServiceException;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.AmazonS3;
-import com.acloudysky.auth.AuthenticateAwsServiceClient;
-import com.acloudysky.s3.Utility;
-
-
-/***
- * Instantiates the S3 authenticated service client, initializes the operations and the UI classes.  
- * Before running the code, you need to set up your AWS security credentials. You can do this by creating a 
- * file named "credentials" at <i>~/.aws/</i> (<i>C:\Users\USER_NAME.aws\</i> for Windows users) and saving the following lines in 
- * the file:
- * <pre>
- *   [default]
- *   aws_access_key_id = your access key id
- *   aws_secret_access_key = your secret key
- * </pre>
- * For more information, see <a href="http://docs.aws.amazon.com/AWSSdkDocsJava/latest/DeveloperGuide/credentials.html" target="_blank">Providing AWS Credentials in the AWS SDK for Java</a> 
- * and <a href="https://console.aws.amazon.com/iam/home?#security_credential" target="_blank">Welcome to Identity and Access Management</a>.
- * <b>WARNING</b>: To avoid accidental leakage of your credentials, DO NOT keep the credentials file in your source directory.
- * @author Michael Miele
- *
- */
-public class Main {
-
-	private static AmazonS3  s3Client = null;
-	
-	// Selected S3 region. Enumerated value.
-	private static Regions currentRegion = null;
-	
-	// Selected region. String value such as "us-west-2".
-	private static String region = null;
-	
-	/***
-	 * Instantiates the S3 client, initializes the operation classes. 
-	 * Instantiates the SimpleUI class to display the selection menu and process the user's input. 
-	 * @see SimpleUI#SimpleUI()
-	 * @see BucketOperations#initBucketOperations(AmazonS3)
-	 * @see ObjectOperations#initObjectOperations(AmazonS3)
-	 * @param args; 
-	 *  args[0] = region (key) for example, us-west-2
-	 *  <p>Note. To generate the couple aws_access_key_id and the aws_secret_access_key to allow programmatic access 
-	 *  to the S3 service, perfronm these steps:
-	 *  <ol>
-	 *  	<li>In your browser navigate to: http://aws.expedia.biz and login into AWS</li>
-	 *  	<li>In the AWS dash-board, select IAM. </li>
-	 *  	<li>In the left pane select Users.</li>
-	 *  	<li>In the right pane, select the pdbauto user.</li>
-	 *  	<li>Click on the Security credentials tab.</li>
-	 *  	<li>Click the Create access key button.</li>
-	 *  	<li>Download the .csv file containing the couple aws_access_key_id and the aws_secret_access_key.</li>
-	 *  	<li>Copy the key in the .aws/Credentials file. </li>
-	 *  </ol>
-	 */
-	public static void main(String[] args) {
-		
-		
-		// Display greeting message.
-		Utility.displayWelcomeMessage("AWS S3");
-				
-		// Read input parameters.
-		try {
-				region = args[0];
-				// System.out.println(region);
-		}
-		catch (Exception e) {
-			System.out.println("IO error trying to read application input! Assigning default values.");
-			// Assign default values if none are passed.
-			if (args.length==0) {
-				region = "us-west-2";
-			}
-			else {
-				System.out.println("IO error trying to read application input!");
-				System.exit(1); 
-			}
-		}
-		
-		
-		try {
-			
-				// Instantiate AwsClientAuthencation class.
-//				AwsClientAuthencation clientAuth = new AwsClientAuthencation();
-//			
-//				// Obtain authenticated S3 client.
-//				s3Client = (AmazonS3) clientAuth.getAuthenticatedClient("s3");
-//				
-//				// Set region.
-//				currentRegion = Utility.getRegion(region);
-//				
-//				if (currentRegion != null)
-//					clientAuth.setClientRegion("s3", currentRegion);
-				
-				// Instantiate the AuthenticateAwsServiceClient class. 
-				AuthenticateAwsServiceClient authClient = new AuthenticateAwsServiceClient();
-				
-				// Get the region enum value. 
-				currentRegion = Utility.getRegion(region);
-				
-				// Get the authenticated client. 
-				if (currentRegion != null)
-					s3Client = authClient.getAuthenticatedS3Client();
-		} 
-		
-		catch (AmazonServiceException ase) {
-        	StringBuffer err = new StringBuffer();
-        	err.append(("Caught an AmazonServiceException, which means your request made it "
-                      + "to Amazon S3, but was rejected with an error response for some reason."));
-       	   	err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
-       	   	err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
-       	   	err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
-       	   	err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
-       	   	err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
-        	
-    	} 
-		
-		if (s3Client != null) {
-			
-			// Initialize the BucketOperations class to handle related REST API calls.
-			BucketOperations.initBucketOperations(s3Client); 
-			
-			// Initialize the ObjectOperations class to handle related REST API calls.
-			ObjectOperations.initObjectOperations(s3Client);
-			
-			// Instantiate the SimpleUI class and display menu.
-			SimpleUI sui = new SimpleUI();
-	
-			// Start processing user's input.
-			sui.processUserInput();
-		}
-		else 
-			String.format("Error %s", "Main: authorized S3 client object is null.");
-		
-
-		// Display goodbye menu.
-		Utility.displayGoodbyeMessage("AWS S3");	
-	}
-	
-}
+package com.acloudysky.s3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.acloudysky.s3.Utility;
+
+
+/***
+ * Instantiates the S3 authenticated service client, initializes the operations and the UI classes.  
+ * Before running the code, you need to set up your AWS security credentials. You can do this by creating a 
+ * file named "credentials" at <i>~/.aws/</i> (<i>C:\Users\USER_NAME.aws\</i> for Windows users) and saving the following lines in 
+ * the file:
+ * <pre>
+ *   [default]
+ *   aws_access_key_id = your access key id
+ *   aws_secret_access_key = your secret key
+ * </pre>
+ * For more information, see <a href="http://docs.aws.amazon.com/AWSSdkDocsJava/latest/DeveloperGuide/credentials.html" target="_blank">Providing AWS Credentials in the AWS SDK for Java</a> 
+ * and <a href="https://console.aws.amazon.com/iam/home?#security_credential" target="_blank">Welcome to Identity and Access Management</a>.
+ * <b>WARNING</b>: To avoid accidental leakage of your credentials, DO NOT keep the credentials file in your source directory.
+ * @author Michael Miele
+ *
+ */
+public class Main {
+
+	private static AmazonS3  s3Client = null;
+	
+	// Selected S3 region. Enumerated value.
+	private static Regions currentRegion = null;
+	
+	// Selected region. String value such as "us-west-2".
+	private static String region = null;
+	
+	// One tuned client per region.
+	private static S3ClientPool clientPool = null;
+	
+	// Part size and concurrency settings used by the transfer operations.
+	private static TransferSettings transferSettings = new TransferSettings();
+	
+	// Time between two writes of the metrics file, in seconds.
+	private static final long METRICS_DUMP_PERIOD = 60;
+	
+	// Script run in batch mode ("-" for the standard input), or null for the interactive menu.
+	private static String batchScript = null;
+	
+	// Number of commands run at the same time in batch mode.
+	private static int batchParallelism = BatchRunner.DEFAULT_PARALLELISM;
+	
+	// true to run each batch command on a virtual thread.
+	private static boolean virtualThreads = false;
+	
+	// CloudFront distribution, key pair and private key file, or null if CloudFront URLs are not signed.
+	private static String cloudFrontDomain = null;
+	private static String cloudFrontKeyPairId = null;
+	private static File cloudFrontKeyFile = null;
+	
+	// Maximum size of the local object cache in MB, or 0 to always download the objects.
+	private static long cacheSize = 0;
+	
+	// Time during which a cached object is used without revalidation, in seconds.
+	private static long cacheMaxAge = 0;
+	
+	/***
+	 * Instantiates the S3 client, initializes the operation classes. 
+	 * Instantiates the SimpleUI class to display the selection menu and process the user's input. 
+	 * @see SimpleUI#SimpleUI()
+	 * @see BucketOperations#initBucketOperations(S3ClientPool, TransferSettings)
+	 * @see ObjectOperations#initObjectOperations(S3ClientPool, TransferSettings)
+	 * @param args; 
+	 *  args[0] = region (key) for example, us-west-2
+	 *  <br>--batch script = runs the commands of the script file ("-" for the standard input) instead of the menu, see {@link BatchRunner}
+	 *  <br>--parallelism n = number of commands run at the same time in batch mode
+	 *  <br>--virtual-threads = runs each batch command on a virtual thread (Java 21 or later), see {@link RequestExecutor}
+	 *  <br>--hedge p = duplicates the GET requests slower than the p-th latency percentile, see {@link HedgedGetter}
+	 *  <br>--compress = compresses the uploaded files with gzip, see {@link Compression}
+	 *  <br>--checksums = verifies the uploads end to end and stores their checksums, see {@link Checksums}
+	 *  <br>--cloudfront domain keyPairId keyFile = CloudFront distribution and key pair used to sign the CloudFront URLs, see {@link UrlSigningService}
+	 *  <br>--cache mb = reads the downloaded objects through a local cache of at most mb megabytes, see {@link ObjectCache}
+	 *  <br>--cache-max-age s = uses a cached object for s seconds before asking S3 if it changed
+	 *  <br>--memory mb = memory budget of the transfer buffers, shared by all the transfers, see {@link TransferMemory}
+	 *  <p>Note. To generate the couple aws_access_key_id and the aws_secret_access_key to allow programmatic access 
+	 *  to the S3 service, perfronm these steps:
+	 *  <ol>
+	 *  	<li>In your browser navigate to: http://aws.expedia.biz and login into AWS</li>
+	 *  	<li>In the AWS dash-board, select IAM. </li>
+	 *  	<li>In the left pane select Users.</li>
+	 *  	<li>In the right pane, select the pdbauto user.</li>
+	 *  	<li>Click on the Security credentials tab.</li>
+	 *  	<li>Click the Create access key button.</li>
+	 *  	<li>Download the .csv file containing the couple aws_access_key_id and the aws_secret_access_key.</li>
+	 *  	<li>Copy the key in the .aws/Credentials file. </li>
+	 *  </ol>
+	 */
+	public static void main(String[] args) {
+		
+		// Number of commands that failed in batch mode.
+		long batchFailures = 0;
+		
+		// Reserve the standard output for the object content: every message goes to the standard error.
+		if (Arrays.asList(args).contains("--stdout-data"))
+			System.setOut(System.err);
+		
+		// Display greeting message.
+		Utility.displayWelcomeMessage("AWS S3");
+				
+		// Read input parameters.
+		try {
+				region = args[0];
+				// System.out.println(region);
+		}
+		catch (Exception e) {
+			System.out.println("IO error trying to read application input! Assigning default values.");
+			// Assign default values if none are passed.
+			if (args.length==0) {
+				region = "us-west-2";
+			}
+			else {
+				System.out.println("IO error trying to read application input!");
+				System.exit(1); 
+			}
+		}
+		
+		// Read the batch options.
+		try {
+				for (int i = 1; i < args.length; i++) {
+					if ("--batch".equals(args[i]))
+						batchScript = args[++i];
+					else if ("--parallelism".equals(args[i]))
+						batchParallelism = Integer.parseInt(args[++i]);
+					else if ("--virtual-threads".equals(args[i]))
+						virtualThreads = true;
+					else if ("--hedge".equals(args[i]))
+						transferSettings.withHedgePercentile(Double.parseDouble(args[++i]));
+					else if ("--compress".equals(args[i]))
+						transferSettings.withCompression(Compression.GZIP);
+					else if ("--checksums".equals(args[i]))
+						transferSettings.withChecksums(true);
+					else if ("--cloudfront".equals(args[i])) {
+						cloudFrontDomain = args[++i];
+						cloudFrontKeyPairId = args[++i];
+						cloudFrontKeyFile = new File(args[++i]);
+					}
+					else if ("--cache".equals(args[i]))
+						cacheSize = Long.parseLong(args[++i]);
+					else if ("--cache-max-age".equals(args[i]))
+						cacheMaxAge = Long.parseLong(args[++i]);
+					else if ("--memory".equals(args[i]))
+						TransferMemory.getDefault().setBudget(Long.parseLong(args[++i]) * TransferSettings.MB);
+					else if ("--stdout-data".equals(args[i]))
+						ObjectOperations.initStandardOutput(true);
+					else
+						throw new IllegalArgumentException(args[i]);
+				}
+		}
+		catch (RuntimeException e) {
+			System.out.println("Usage: region [--batch script|-] [--parallelism n] [--virtual-threads] [--hedge percentile] [--compress] [--checksums]"
+					+ " [--cloudfront domain keyPairId keyFile] [--cache mb] [--cache-max-age seconds]"
+					+ " [--memory mb] [--stdout-data]");
+			System.exit(1);
+		}
+		
+		// The standard input can carry object content only when the commands come from a script file.
+		ObjectOperations.initStandardInput(batchScript != null && !"-".equals(batchScript));
+		
+		
+		try {
+			
+				// Get the region enum value. 
+				currentRegion = Utility.getRegion(region);
+				
+				if (currentRegion != null) {
+					// Create the regional clients. The credentials are read from the 
+					// default profile of the credentials file. There is a connection 
+					// for each batch command in flight.
+					int maxConnections = batchScript == null ? S3ClientPool.DEFAULT_MAX_CONNECTIONS
+							: Math.max(S3ClientPool.DEFAULT_MAX_CONNECTIONS, batchParallelism);
+					clientPool = new S3ClientPool(new ProfileCredentialsProvider(), 
+							S3ClientPool.tunedConfiguration(maxConnections), currentRegion);
+					
+					// Get the client of the selected region.
+					s3Client = clientPool.getClient(currentRegion);
+					
+					// Open the connections ahead of the first requests.
+					clientPool.prewarm(currentRegion, transferSettings.getConcurrency());
+				}
+		} 
+		
+		catch (AmazonServiceException ase) {
+        	StringBuffer err = new StringBuffer();
+        	err.append(("Caught an AmazonServiceException, which means your request made it "
+                      + "to Amazon S3, but was rejected with an error response for some reason."));
+       	   	err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+       	   	err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+       	   	err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+       	   	err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+       	   	err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+       	   	System.out.print(err.toString());
+        	
+    	} 
+		catch (AmazonClientException ace) {
+			System.out.println(String.format("Unable to create the S3 client: %s", ace.getMessage()));
+		}
+		
+		if (s3Client != null) {
+			
+			// Initialize the BucketOperations class to handle related REST API calls.
+			BucketOperations.initBucketOperations(clientPool, transferSettings); 
+			
+			// Read the CloudFront private key once, if the distribution is set.
+			if (cloudFrontDomain != null) {
+				try {
+					BucketOperations.initCloudFront(cloudFrontDomain, cloudFrontKeyPairId, cloudFrontKeyFile);
+				}
+				catch (IOException | InvalidKeySpecException e) {
+					System.out.println(String.format("Unable to read the CloudFront private key %s: %s", cloudFrontKeyFile, e.getMessage()));
+				}
+			}
+			
+			// Initialize the ObjectOperations class to handle related REST API calls.
+			ObjectOperations.initObjectOperations(clientPool, transferSettings);
+			
+			// Read the downloaded objects through the local cache, if enabled.
+			if (cacheSize > 0) {
+				try {
+					File cacheDirectory = Paths.get(Utility.getEnvironment().get(1), ".aws-client-s3", "cache").toFile();
+					ObjectOperations.initObjectCache(new ObjectCache(clientPool, cacheDirectory, cacheSize * TransferSettings.MB)
+							.withMaxAge(cacheMaxAge, TimeUnit.SECONDS)
+							.withMaxAttempts(transferSettings.getMaxPartAttempts()));
+				}
+				catch (IOException e) {
+					System.out.println(String.format("Unable to open the object cache: %s", e.getMessage()));
+				}
+			}
+			
+			// Initialize the IndexOperations class to answer queries from the local index.
+			try {
+				File indexDirectory = Paths.get(Utility.getEnvironment().get(1), ".aws-client-s3", "index").toFile();
+				IndexOperations.initIndexOperations(clientPool, 
+						new MetadataIndex(indexDirectory, MetadataIndex.DEFAULT_HOT_ENTRIES));
+			}
+			catch (IOException e) {
+				System.out.println(String.format("Unable to open the local index: %s", e.getMessage()));
+			}
+			
+			// Write the request metrics periodically. They are also published over JMX.
+			File metricsFile = Paths.get(Utility.getEnvironment().get(1), ".aws-client-s3", "metrics.txt").toFile();
+			S3Metrics.getDefault().startDump(metricsFile, METRICS_DUMP_PERIOD);
+			
+			if (batchScript != null) {
+				// Run the script without user interaction.
+				try (BufferedReader script = "-".equals(batchScript) 
+						? new BufferedReader(new InputStreamReader(System.in))
+						: Files.newBufferedReader(Paths.get(batchScript))) {
+					if (virtualThreads && !RequestExecutor.isVirtualThreadSupported())
+						System.out.println("Virtual threads need Java 21, using platform threads");
+					batchFailures = new BatchRunner(batchParallelism, virtualThreads).run(script);
+				}
+				catch (IOException e) {
+					System.out.println(String.format("Unable to read the script %s: %s", batchScript, e.getMessage()));
+					batchFailures = 1;
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					batchFailures = 1;
+				}
+			}
+			else {
+				// Instantiate the SimpleUI class and display menu.
+				SimpleUI sui = new SimpleUI();
+		
+				// Start processing user's input.
+				sui.processUserInput();
+			}
+			
+			// Release the connections and write the final metrics.
+			clientPool.shutdown();
+			S3Metrics.getDefault().stopDump();
+			try {
+				S3Metrics.getDefault().dump(metricsFile);
+			}
+			catch (IOException e) {
+				System.out.println(String.format("Unable to write the metrics: %s", e.getMessage()));
+			}
+		}
+		else 
+			System.out.println(String.format("Error %s", "Main: authorized S3 client object is null."));
+		
+
+		// Display goodbye menu.
+		Utility.displayGoodbyeMessage("AWS S3");	
+		
+		// Report the failed commands to the calling job.
+		if (batchFailures > 0)
+			System.exit(1);
+	}
+	
+}
@@ -0,0 +1,842 @@
+package com.acloudysky.s3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.RestoreObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Runs an operation on each object of a manifest: delete, copy, restore from an archive, or
+ * get the metadata.
+ * <p>
+ * A manifest lists one object per line. In a <i>.csv</i> manifest each line is
+ * <i>bucket,key[,version]</i> with a URL-encoded key, the format of the S3 Batch Operations
+ * manifests, where lines starting with # are comments; any other manifest holds one key per
+ * line, in the bucket given to the runner, and only its blank lines are skipped.
+ * The manifest is streamed: only the lines in flight are held in memory, so it can list
+ * millions of objects. The operations run on a bounded pool of workers; the deletes are
+ * grouped in multi-object delete requests of up to 1,000 keys.
+ * </p>
+ * <p>
+ * The progress is saved in a small checkpoint file next to the manifest, at most once per
+ * second: the offset in the manifest before which every line is done, the counters, and the
+ * length of the output files. When a run stops, after a crash or an interruption, the next run
+ * of the same operation on the same manifest resumes at that offset. Only the lines that were
+ * in flight are run again, which is harmless since the operations are idempotent, and the
+ * output files are cut back to the checkpoint so no line appears twice. The lines that failed
+ * are written to a failure manifest which can be run on its own afterwards; the metadata
+ * gathered by {@link Operation#HEAD} is written as CSV, in the manifest order. The checkpoint
+ * is removed when the run completes.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ManifestRunner {
+
+	/***
+	 * Operations that can be run on the objects of a manifest.
+	 */
+	public enum Operation {
+		// Deletes the objects, or the listed versions.
+		DELETE,
+		// Copies the objects with server-side copies, see ParallelCopier.
+		COPY,
+		// Restores archived objects for a number of days.
+		RESTORE,
+		// Gets the metadata of the objects.
+		HEAD
+	}
+
+	// Extensions appended to the manifest path for the checkpoint, the failed lines and the metadata.
+	public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+	public static final String FAILED_EXTENSION = ".failed";
+	public static final String METADATA_EXTENSION = ".metadata.csv";
+
+	// Default number of days a restored object stays available.
+	public static final int DEFAULT_RESTORE_DAYS = 7;
+
+	// Maximum number of keys of a multi-object delete request.
+	private static final int MAX_DELETE_KEYS = 1000;
+
+	// Minimum time between two checkpoints, and between two progress lines, in milliseconds.
+	private static final long CHECKPOINT_INTERVAL_MS = 1000;
+	private static final long PROGRESS_INTERVAL_MS = 10000;
+
+	// Size of the buffer reading the manifest.
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/***
+	 * Outcome of a run.
+	 */
+	public static class Result {
+
+		// Counters, including the lines done before the run was resumed.
+		private long succeeded;
+		private long failed;
+
+		// Line at which the run was resumed, or 0.
+		private long resumedLine;
+
+		// Failure manifest, or null if no line failed.
+		private File failures;
+
+		// Metadata of the objects, or null if the operation does not produce any.
+		private File metadata;
+
+		/***
+		 * @return The number of lines whose operation succeeded.
+		 */
+		public long getSucceeded() {
+			return succeeded;
+		}
+
+		/***
+		 * @return The number of lines whose operation failed.
+		 */
+		public long getFailed() {
+			return failed;
+		}
+
+		/***
+		 * @return The number of lines done by a previous run, or 0 if the run started from the beginning.
+		 */
+		public long getResumedLine() {
+			return resumedLine;
+		}
+
+		/***
+		 * @return The manifest of the lines that failed, or null if none failed.
+		 */
+		public File getFailures() {
+			return failures;
+		}
+
+		/***
+		 * @return The CSV file of the object metadata, or null if the operation is not {@link Operation#HEAD}.
+		 */
+		public File getMetadata() {
+			return metadata;
+		}
+	}
+
+	/*
+	 * An object of the manifest. A line that cannot be parsed has an error instead of a key.
+	 */
+	private static class Entry {
+		final long lineNumber;
+		final String line;
+		String bucketName;
+		String key;
+		String versionId;
+		String error;
+
+		Entry(long lineNumber, String line) {
+			this.lineNumber = lineNumber;
+			this.line = line;
+		}
+	}
+
+	/*
+	 * Consecutive lines of the manifest, run by one worker, and their outcome.
+	 */
+	private static class Batch {
+		final long sequence;
+		final List<Entry> entries = new ArrayList<Entry>();
+		String bucketName;
+		long endOffset;
+		long lastLine;
+		long succeeded;
+		final StringBuilder failures = new StringBuilder();
+		final StringBuilder metadata = new StringBuilder();
+
+		Batch(long sequence) {
+			this.sequence = sequence;
+		}
+
+		void fail(Entry entry, String message) {
+			failures.append(entry.line).append('\n');
+			System.out.println(String.format("Line %d: unable to process %s: %s", entry.lineNumber,
+					entry.key == null ? entry.line : entry.key, message));
+		}
+	}
+
+	// Clients, by bucket
+	private final Function<String, AmazonS3> clients;
+
+	// Concurrency and retry settings.
+	private final TransferSettings settings;
+
+	// Operation run on each object.
+	private final Operation operation;
+
+	// Bucket of the keys of a plain manifest.
+	private String bucketName;
+
+	// Bucket and key prefix of the copies.
+	private String destinationBucket;
+	private String destinationPrefix = "";
+
+	// Number of days a restored object stays available.
+	private int restoreDays = DEFAULT_RESTORE_DAYS;
+
+	// Cache of downloaded objects, whose copies of the deleted and overwritten objects are dropped, or null.
+	private ObjectCache objectCache;
+
+	// State of the current run, guarded by this runner: batches done out of order,
+	// position of the checkpoint and the output files.
+	private final TreeMap<Long, Batch> done = new TreeMap<Long, Batch>();
+	private long nextSequence;
+	private Properties checkpoint;
+	private File checkpointFile;
+	private Output failures;
+	private Output metadata;
+	private long lastCheckpoint;
+	private long lastProgress;
+	private long startTime;
+	private long startLine;
+	private IOException writeError;
+
+	// Batches read and not yet retired: the reader waits while the window is full.
+	private Semaphore window;
+
+	/***
+	 * Creates a runner.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param settings The transfer settings. The concurrency is the number of requests sent at the same time.
+	 * @param operation The operation to run on each object.
+	 */
+	public ManifestRunner(AmazonS3 s3Client, TransferSettings settings, Operation operation) {
+		this(bucket -> s3Client, settings, operation);
+	}
+
+	/***
+	 * Creates a runner sending the requests of each bucket to its own client.
+	 * @param clients Gets the client authorized to access a bucket, such as {@link S3ClientPool#getClientForBucket(String)}.
+	 * @param settings The transfer settings. The concurrency is the number of requests sent at the same time.
+	 * @param operation The operation to run on each object.
+	 */
+	public ManifestRunner(Function<String, AmazonS3> clients, TransferSettings settings, Operation operation) {
+		this.clients = clients;
+		this.settings = settings;
+		this.operation = operation;
+	}
+
+	/***
+	 * Sets the bucket of the keys listed by a plain manifest. A CSV manifest names the bucket of each object.
+	 * @param bucketName The name of the bucket.
+	 * @return This runner.
+	 */
+	public ManifestRunner withBucket(String bucketName) {
+		this.bucketName = bucketName;
+		return this;
+	}
+
+	/***
+	 * Sets the destination of {@link Operation#COPY}.
+	 * @param bucketName The name of the bucket to hold the copies.
+	 * @param prefix The prefix put in front of the keys of the copies, or null to keep the keys.
+	 * @return This runner.
+	 */
+	public ManifestRunner withDestination(String bucketName, String prefix) {
+		this.destinationBucket = bucketName;
+		this.destinationPrefix = prefix == null ? "" : prefix;
+		return this;
+	}
+
+	/***
+	 * Sets the number of days the objects restored by {@link Operation#RESTORE} stay available.
+	 * @param days The number of days.
+	 * @return This runner.
+	 */
+	public ManifestRunner withRestoreDays(int days) {
+		if (days < 1)
+			throw new IllegalArgumentException("Restore days must be at least 1");
+		this.restoreDays = days;
+		return this;
+	}
+
+	/***
+	 * Sets the cache of downloaded objects, whose copies of the objects deleted or overwritten by the run are dropped.
+	 * @param objectCache The cache, or null.
+	 * @return This runner.
+	 */
+	public ManifestRunner withObjectCache(ObjectCache objectCache) {
+		this.objectCache = objectCache;
+		return this;
+	}
+
+	/***
+	 * Runs the operation on the objects of a manifest, resuming a previous run if it left a checkpoint.
+	 * @param manifest The manifest.
+	 * @return The outcome of the run, including the lines done before it was resumed.
+	 * @throws IOException Error encountered while reading the manifest or writing the output files,
+	 * 	or the checkpoint was left by another operation or before the manifest was changed.
+	 * @throws InterruptedException The thread was interrupted. The checkpoint is saved so the run can be resumed.
+	 */
+	public Result run(File manifest) throws IOException, InterruptedException {
+		boolean csv = manifest.getName().toLowerCase().endsWith(".csv");
+		if (!csv && bucketName == null)
+			throw new IllegalArgumentException("A bucket is needed for a manifest of keys");
+		if (operation == Operation.COPY && destinationBucket == null)
+			throw new IllegalArgumentException("A destination bucket is needed to copy objects");
+
+		checkpointFile = new File(manifest.getPath() + CHECKPOINT_EXTENSION);
+		checkpoint = loadCheckpoint(manifest);
+		long offset = Long.parseLong(checkpoint.getProperty("offset"));
+		startLine = Long.parseLong(checkpoint.getProperty("line"));
+		Result result = new Result();
+		result.resumedLine = startLine;
+		if (startLine > 0)
+			System.out.println(String.format("Resuming %s at line %d", manifest, startLine + 1));
+
+		File failureFile = new File(manifest.getPath() + FAILED_EXTENSION);
+		File metadataFile = operation == Operation.HEAD ? new File(manifest.getPath() + METADATA_EXTENSION) : null;
+		failures = new Output(failureFile, Long.parseLong(checkpoint.getProperty("failuresLength")));
+		metadata = metadataFile == null ? null : new Output(metadataFile, Long.parseLong(checkpoint.getProperty("metadataLength")));
+		done.clear();
+		nextSequence = 0;
+		writeError = null;
+		startTime = lastProgress = lastCheckpoint = System.currentTimeMillis();
+
+		int concurrency = settings.getConcurrency();
+		ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+		ParallelCopier copier = operation == Operation.COPY
+				? new ParallelCopier(clients.apply(destinationBucket), settings).withSourceClients(clients) : null;
+		// Batches read ahead of the oldest unfinished one: bounds the memory and the work redone after a crash.
+		window = new Semaphore(concurrency * 2);
+		boolean complete = false;
+		try (FileInputStream file = new FileInputStream(manifest)) {
+			file.getChannel().position(offset);
+			LineReader lines = new LineReader(new BufferedInputStream(file, READ_BUFFER_SIZE), offset);
+			long lineNumber = startLine;
+			long sequence = 0;
+			Batch batch = null;
+			String line;
+			while ((line = lines.readLine()) != null) {
+				lineNumber++;
+				// A key may start with #: only a CSV manifest has comment lines.
+				if (line.trim().isEmpty() || (csv && line.startsWith("#"))) {
+					if (batch != null)
+						batch.lastLine = lineNumber;
+					continue;
+				}
+				Entry entry = parse(lineNumber, line, csv);
+				if (batch != null && !fits(batch, entry)) {
+					submit(batch, workers, copier);
+					batch = null;
+				}
+				if (batch == null)
+					batch = new Batch(sequence++);
+				batch.entries.add(entry);
+				if (batch.bucketName == null)
+					batch.bucketName = entry.bucketName;
+				batch.endOffset = lines.getOffset();
+				batch.lastLine = lineNumber;
+				checkWriteError();
+			}
+			if (batch != null)
+				submit(batch, workers, copier);
+
+			// Wait for the last batches.
+			window.acquire(concurrency * 2);
+			checkWriteError();
+			synchronized (this) {
+				if (nextSequence != sequence)
+					throw new IOException(String.format("%d batches of lines were not processed", sequence - nextSequence));
+			}
+			complete = true;
+		}
+		finally {
+			workers.shutdownNow();
+			// Let the requests in progress finish, so that their lines are not run again.
+			try {
+				workers.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finish(complete);
+		}
+
+		result.succeeded = Long.parseLong(checkpoint.getProperty("succeeded"));
+		result.failed = Long.parseLong(checkpoint.getProperty("failed"));
+		result.failures = result.failed > 0 ? failureFile : null;
+		result.metadata = metadataFile;
+		return result;
+	}
+
+	/*
+	 * Decides if a line can be added to a batch: only deletes of the same bucket are grouped.
+	 */
+	private boolean fits(Batch batch, Entry entry) {
+		if (operation != Operation.DELETE || batch.entries.size() >= MAX_DELETE_KEYS)
+			return false;
+		return batch.bucketName == null || entry.bucketName == null || batch.bucketName.equals(entry.bucketName);
+	}
+
+	/*
+	 * Hands a batch out to the workers, waiting while the window of batches not yet retired is
+	 * full. A slow batch thus holds back the reader instead of letting the finished batches
+	 * after it pile up.
+	 */
+	private void submit(Batch batch, ExecutorService workers, ParallelCopier copier)
+			throws InterruptedException {
+		window.acquire();
+		workers.submit(() -> {
+			try {
+				runBatch(batch, copier);
+				retire(batch);
+			}
+			catch (InterruptedException e) {
+				// Not retired: the run is stopping and the batch is run again on resume.
+			}
+		});
+	}
+
+	/*
+	 * Runs the operation on the objects of a batch. The errors are recorded in the batch.
+	 */
+	private void runBatch(Batch batch, ParallelCopier copier) throws InterruptedException {
+		List<Entry> valid = new ArrayList<Entry>();
+		for (Entry entry : batch.entries) {
+			if (entry.error != null)
+				batch.fail(entry, entry.error);
+			else
+				valid.add(entry);
+		}
+		if (valid.isEmpty())
+			return;
+		if (operation == Operation.DELETE) {
+			delete(valid, batch);
+			return;
+		}
+		for (Entry entry : valid) {
+			try {
+				switch (operation) {
+					case COPY:
+						copy(entry, copier);
+						break;
+					case RESTORE:
+						restore(entry);
+						break;
+					case HEAD:
+						batch.metadata.append(head(entry));
+						break;
+					default:
+						throw new IllegalStateException(operation.toString());
+				}
+				batch.succeeded++;
+			}
+			catch (RuntimeException e) {
+				batch.fail(entry, e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Deletes the objects of a batch, all in the same bucket, with one request.
+	 */
+	private void delete(List<Entry> entries, Batch batch) throws InterruptedException {
+		String bucket = batch.bucketName;
+		List<KeyVersion> keys = new ArrayList<KeyVersion>(entries.size());
+		for (Entry entry : entries)
+			keys.add(new KeyVersion(entry.key, entry.versionId));
+		DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withKeys(keys).withQuiet(true);
+		try {
+			Retries.call(() -> clients.apply(bucket).deleteObjects(request), settings.getMaxPartAttempts());
+			batch.succeeded += entries.size();
+		}
+		catch (MultiObjectDeleteException e) {
+			// Quiet mode: only the keys that could not be deleted are returned.
+			Map<String, DeleteError> errors = new HashMap<String, DeleteError>();
+			for (DeleteError error : e.getErrors())
+				errors.put(error.getKey() + '\n' + error.getVersionId(), error);
+			for (Entry entry : entries) {
+				DeleteError error = errors.get(entry.key + '\n' + entry.versionId);
+				if (error == null)
+					batch.succeeded++;
+				else
+					batch.fail(entry, String.format("%s (%s)", error.getMessage(), error.getCode()));
+			}
+		}
+		catch (RuntimeException e) {
+			for (Entry entry : entries)
+				batch.fail(entry, e.getMessage());
+		}
+		finally {
+			if (objectCache != null)
+				for (Entry entry : entries)
+					objectCache.invalidate(bucket, entry.key);
+		}
+	}
+
+	/*
+	 * Copies an object with a server-side copy. Its size and ETag are read first so the copy is
+	 * made in parts when needed, and fails if the object changes meanwhile.
+	 */
+	private void copy(Entry entry, ParallelCopier copier) throws InterruptedException {
+		if (entry.versionId != null)
+			throw new IllegalArgumentException("Copying a version other than the current one is not supported");
+		ObjectMetadata source = Retries.call(() -> clients.apply(entry.bucketName).getObjectMetadata(
+				entry.bucketName, entry.key), settings.getMaxPartAttempts());
+		S3ObjectSummary summary = new S3ObjectSummary();
+		summary.setBucketName(entry.bucketName);
+		summary.setKey(entry.key);
+		summary.setSize(source.getContentLength());
+		summary.setETag(source.getETag());
+		Object storageClass = source.getRawMetadataValue(Headers.STORAGE_CLASS);
+		summary.setStorageClass(storageClass == null ? null : storageClass.toString());
+		try {
+			copier.copyObject(summary, destinationBucket, destinationPrefix + entry.key);
+		}
+		finally {
+			if (objectCache != null)
+				objectCache.invalidate(destinationBucket, destinationPrefix + entry.key);
+		}
+	}
+
+	/*
+	 * Restores an archived object. A restore already in progress counts as done.
+	 */
+	private void restore(Entry entry) throws InterruptedException {
+		RestoreObjectRequest request = new RestoreObjectRequest(entry.bucketName, entry.key, restoreDays)
+				.withVersionId(entry.versionId);
+		try {
+			Retries.call(() -> {
+				clients.apply(entry.bucketName).restoreObject(request);
+				return null;
+			}, settings.getMaxPartAttempts());
+		}
+		catch (AmazonServiceException ase) {
+			if (!"RestoreAlreadyInProgress".equals(ase.getErrorCode()))
+				throw ase;
+		}
+	}
+
+	/*
+	 * Gets the metadata of an object, as a CSV line:
+	 * bucket, key (URL-encoded), version, size, ETag, last modified, storage class, content type.
+	 */
+	private String head(Entry entry) throws InterruptedException {
+		ObjectMetadata object = Retries.call(() -> clients.apply(entry.bucketName).getObjectMetadata(
+				new GetObjectMetadataRequest(entry.bucketName, entry.key, entry.versionId)), settings.getMaxPartAttempts());
+		Object storageClass = object.getRawMetadataValue(Headers.STORAGE_CLASS);
+		SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return String.format("%s,%s,%s,%d,%s,%s,%s,%s%n", entry.bucketName, encode(entry.key),
+				object.getVersionId() == null ? "" : object.getVersionId(), object.getContentLength(), object.getETag(),
+				object.getLastModified() == null ? "" : iso.format(object.getLastModified()),
+				storageClass == null ? "STANDARD" : storageClass, object.getContentType() == null ? "" : object.getContentType());
+	}
+
+	/*
+	 * Records a finished batch. The batches are retired in the manifest order: the output of
+	 * the batches finished early waits for the previous ones, and the checkpoint only moves
+	 * past lines that are all done. Each retired batch lets the reader read one more. After an
+	 * output error the batches are still retired, but the checkpoint no longer moves.
+	 */
+	private synchronized void retire(Batch batch) {
+		done.put(batch.sequence, batch);
+		Batch next;
+		while ((next = done.remove(nextSequence)) != null) {
+			nextSequence++;
+			window.release();
+			if (writeError != null)
+				continue;
+			try {
+				failures.write(next.failures);
+				if (metadata != null)
+					metadata.write(next.metadata);
+			}
+			catch (IOException e) {
+				writeError = e;
+				continue;
+			}
+			checkpoint.setProperty("offset", String.valueOf(next.endOffset));
+			checkpoint.setProperty("line", String.valueOf(next.lastLine));
+			add("succeeded", next.succeeded);
+			add("failed", next.entries.size() - next.succeeded);
+		}
+		if (writeError != null)
+			return;
+		try {
+			long now = System.currentTimeMillis();
+			if (now - lastCheckpoint >= CHECKPOINT_INTERVAL_MS) {
+				saveCheckpoint();
+				lastCheckpoint = now;
+			}
+			if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+				long lines = Long.parseLong(checkpoint.getProperty("line"));
+				System.out.println(String.format("%d lines done (%d failed), %.0f lines/s", lines,
+						Long.parseLong(checkpoint.getProperty("failed")),
+						(lines - startLine) * 1000.0 / Math.max(1, now - startTime)));
+				lastProgress = now;
+			}
+		}
+		catch (IOException e) {
+			writeError = e;
+		}
+	}
+
+	/*
+	 * Fails the run if an output file or the checkpoint could not be written.
+	 */
+	private void checkWriteError() throws IOException {
+		if (writeError != null)
+			throw new IOException("Unable to save the progress: " + writeError.getMessage(), writeError);
+	}
+
+	/*
+	 * Saves the checkpoint of a stopped run, or removes it when the run is complete.
+	 */
+	private synchronized void finish(boolean complete) throws IOException {
+		try {
+			if (complete) {
+				failures.close();
+				if (metadata != null)
+					metadata.close();
+				Files.deleteIfExists(checkpointFile.toPath());
+				if (Long.parseLong(checkpoint.getProperty("failed")) == 0)
+					Files.deleteIfExists(failures.file.toPath());
+			}
+			else if (writeError == null) {
+				saveCheckpoint();
+				System.out.println(String.format("Stopped after line %s, checkpoint saved to %s",
+						checkpoint.getProperty("line"), checkpointFile));
+			}
+			// After an output error, the last checkpoint saved is the one matching the output files.
+			else
+				System.out.println(String.format("Stopped, resume from the last checkpoint in %s", checkpointFile));
+		}
+		finally {
+			failures.close();
+			if (metadata != null)
+				metadata.close();
+		}
+	}
+
+	/*
+	 * Adds a number to a counter of the checkpoint.
+	 */
+	private void add(String counter, long count) {
+		checkpoint.setProperty(counter, String.valueOf(Long.parseLong(checkpoint.getProperty(counter)) + count));
+	}
+
+	/*
+	 * Writes the checkpoint after the output files, replacing the previous one in one step.
+	 */
+	private void saveCheckpoint() throws IOException {
+		checkpoint.setProperty("failuresLength", String.valueOf(failures.flush()));
+		if (metadata != null)
+			checkpoint.setProperty("metadataLength", String.valueOf(metadata.flush()));
+		File temp = new File(checkpointFile.getPath() + ".tmp");
+		try (OutputStream out = new FileOutputStream(temp)) {
+			checkpoint.store(out, "Progress of a manifest run");
+		}
+		Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Loads the checkpoint of a previous run, or creates the one of a new run.
+	 */
+	private Properties loadCheckpoint(File manifest) throws IOException {
+		String run = String.format("%s %s %s", operation, bucketName,
+				operation == Operation.COPY ? destinationBucket + "/" + destinationPrefix
+						: operation == Operation.RESTORE ? restoreDays + " days" : "");
+		String version = manifest.length() + "/" + manifest.lastModified();
+		Properties properties = new Properties();
+		if (checkpointFile.exists()) {
+			try (InputStream in = new FileInputStream(checkpointFile)) {
+				properties.load(in);
+			}
+			if (!run.equals(properties.getProperty("run")) || !version.equals(properties.getProperty("manifest")))
+				throw new IOException(String.format("%s was left by another operation or before the manifest was changed; delete it to start over",
+						checkpointFile));
+			return properties;
+		}
+		properties.setProperty("run", run);
+		properties.setProperty("manifest", version);
+		for (String counter : new String[] { "offset", "line", "succeeded", "failed", "failuresLength", "metadataLength" })
+			properties.setProperty(counter, "0");
+		return properties;
+	}
+
+	/*
+	 * Parses a line of the manifest.
+	 */
+	private Entry parse(long lineNumber, String line, boolean csv) {
+		Entry entry = new Entry(lineNumber, line);
+		if (!csv) {
+			entry.bucketName = bucketName;
+			entry.key = line;
+			return entry;
+		}
+		List<String> fields = splitCsv(line);
+		if (fields.size() < 2 || fields.get(0).isEmpty() || fields.get(1).isEmpty()) {
+			entry.error = "bucket,key[,version] expected";
+			return entry;
+		}
+		try {
+			entry.bucketName = fields.get(0);
+			entry.key = URLDecoder.decode(fields.get(1), "UTF-8");
+			entry.versionId = fields.size() > 2 && !fields.get(2).isEmpty() ? fields.get(2) : null;
+		}
+		catch (UnsupportedEncodingException | IllegalArgumentException e) {
+			entry.key = null;
+			entry.error = "Invalid URL-encoded key: " + e.getMessage();
+		}
+		return entry;
+	}
+
+	/*
+	 * Splits a CSV line, the fields being optionally quoted.
+	 */
+	private static List<String> splitCsv(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"')
+					field.append(c);
+				else if (i + 1 < line.length() && line.charAt(i + 1) == '"')
+					field.append(line.charAt(++i));
+				else
+					quoted = false;
+			}
+			else if (c == '"')
+				quoted = true;
+			else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			}
+			else
+				field.append(c);
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	/*
+	 * URL-encodes a key the way the S3 manifests do.
+	 */
+	private static String encode(String key) {
+		try {
+			return URLEncoder.encode(key, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * An output file, cut back to the length recorded by the checkpoint and appended to.
+	 */
+	private static class Output {
+		final File file;
+		final FileOutputStream stream;
+		final Writer writer;
+
+		Output(File file, long length) throws IOException {
+			this.file = file;
+			if (length == 0)
+				Files.deleteIfExists(file.toPath());
+			else {
+				try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+					channel.truncate(length);
+				}
+			}
+			stream = new FileOutputStream(file, true);
+			writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		}
+
+		void write(CharSequence text) throws IOException {
+			if (text.length() > 0)
+				writer.append(text);
+		}
+
+		long flush() throws IOException {
+			writer.flush();
+			return stream.getChannel().position();
+		}
+
+		void close() throws IOException {
+			writer.close();
+		}
+	}
+
+	/*
+	 * Reads UTF-8 lines and counts the bytes consumed, so a run can be resumed at a line.
+	 */
+	private static class LineReader {
+		final InputStream in;
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		long offset;
+
+		LineReader(InputStream in, long offset) {
+			this.in = in;
+			this.offset = offset;
+		}
+
+		String readLine() throws IOException {
+			line.reset();
+			int b;
+			while ((b = in.read()) >= 0) {
+				offset++;
+				if (b == '\n')
+					break;
+				line.write(b);
+			}
+			if (b < 0 && line.size() == 0)
+				return null;
+			String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+			return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+		}
+
+		long getOffset() {
+			return offset;
+		}
+	}
+}
@@ -0,0 +1,373 @@
+package com.acloudysky.s3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.Bucket;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Local on-disk index of bucket and object metadata (key, size, ETag, last-modified).
+ * <p>
+ * Each bucket is stored in its own file using a compact binary format: the keys are
+ * sorted and each key only stores the suffix that differs from the previous one.
+ * The indexes of the most recently used buckets are kept in memory up to a maximum
+ * number of entries (the hot set); the others are read back from disk on demand.
+ * </p>
+ * <p>
+ * The index is refreshed by prefix: refreshing a prefix lists only the keys under
+ * that prefix and replaces the matching range of the index.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class MetadataIndex {
+
+	// Identifies an index file ("S3IX").
+	private static final int MAGIC = 0x53334958;
+
+	// Version of the file format.
+	private static final short VERSION = 1;
+
+	// Name of the file holding the bucket list.
+	private static final String BUCKETS_FILE = "buckets.lst";
+
+	// Extension of the bucket index files.
+	private static final String INDEX_EXTENSION = ".idx";
+
+	// Default maximum number of object entries kept in memory.
+	public static final int DEFAULT_HOT_ENTRIES = 1000000;
+
+	// Default age after which the bucket list is listed again, in milliseconds.
+	public static final long DEFAULT_BUCKETS_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+	/***
+	 * Metadata of one object.
+	 */
+	public static class Entry {
+		private final String key;
+		private final long size;
+		private final String eTag;
+		private final long lastModified;
+
+		Entry(String key, long size, String eTag, long lastModified) {
+			this.key = key;
+			this.size = size;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+
+		public Date getLastModified() {
+			return new Date(lastModified);
+		}
+	}
+
+	// Directory holding the index files.
+	private final File directory;
+
+	// Maximum number of object entries kept in memory.
+	private final int maxHotEntries;
+
+	// Bucket indexes in memory, least recently used first.
+	private final LinkedHashMap<String, NavigableMap<String, Entry>> hotSet =
+			new LinkedHashMap<String, NavigableMap<String, Entry>>(16, 0.75f, true);
+
+	// Number of object entries in the hot set.
+	private long hotEntries;
+
+	// Bucket names, or null if the bucket list was never refreshed.
+	private List<String> buckets;
+
+	// Time the bucket list was listed, and age after which it is listed again, in milliseconds.
+	private long bucketsRefreshedAt;
+	private long bucketsMaxAge = DEFAULT_BUCKETS_MAX_AGE;
+
+	/***
+	 * Creates an index stored in the specified directory.
+	 * @param directory The directory holding the index files. It is created if it does not exist.
+	 * @param maxHotEntries The maximum number of object entries kept in memory.
+	 * @throws IOException Error encountered while creating the directory
+	 */
+	public MetadataIndex(File directory, int maxHotEntries) throws IOException {
+		Files.createDirectories(directory.toPath());
+		this.directory = directory;
+		this.maxHotEntries = maxHotEntries;
+	}
+
+	/***
+	 * Sets the age after which the bucket list is considered out of date, since the
+	 * buckets may be created and deleted by other clients.
+	 * @param maxAge The age.
+	 * @param unit The unit of the age.
+	 * @return This index.
+	 */
+	public MetadataIndex withBucketsMaxAge(long maxAge, TimeUnit unit) {
+		this.bucketsMaxAge = unit.toMillis(maxAge);
+		return this;
+	}
+
+	/***
+	 * Lists the buckets in the account and stores their names in the index.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @return The bucket names.
+	 * @throws IOException Error encountered while writing the index
+	 */
+	public synchronized List<String> refreshBuckets(AmazonS3 s3Client) throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (Bucket bucket : s3Client.listBuckets())
+			names.add(bucket.getName());
+		Collections.sort(names);
+
+		File file = new File(directory, BUCKETS_FILE);
+		File temp = new File(directory, BUCKETS_FILE + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(names.size());
+			for (String name : names)
+				out.writeUTF(name);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		buckets = names;
+		bucketsRefreshedAt = System.currentTimeMillis();
+		return names;
+	}
+
+	/***
+	 * Gets the bucket names stored in the index.
+	 * @return The bucket names, or null if the bucket list was never refreshed or is out of date.
+	 * @throws IOException Error encountered while reading the index
+	 */
+	public synchronized List<String> getBuckets() throws IOException {
+		if (buckets == null) {
+			File file = new File(directory, BUCKETS_FILE);
+			if (!file.isFile())
+				return null;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				checkHeader(in, file);
+				int count = in.readInt();
+				List<String> names = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++)
+					names.add(in.readUTF());
+				buckets = names;
+			}
+			bucketsRefreshedAt = file.lastModified();
+		}
+		if (System.currentTimeMillis() - bucketsRefreshedAt > bucketsMaxAge)
+			return null;
+		return Collections.unmodifiableList(buckets);
+	}
+
+	/***
+	 * Drops the bucket list, for example after a bucket was created or deleted, so it is listed again.
+	 */
+	public synchronized void invalidateBuckets() {
+		buckets = null;
+		new File(directory, BUCKETS_FILE).delete();
+	}
+
+	/***
+	 * Lists the objects under the specified prefix and replaces that range of the index.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param bucketName The name of the bucket to index
+	 * @param prefix The prefix to refresh, or an empty string for the whole bucket
+	 * @return The number of objects found under the prefix.
+	 * @throws IOException Error encountered while writing the index
+	 */
+	public long refresh(AmazonS3 s3Client, String bucketName, String prefix) throws IOException {
+
+		// List outside the lock so queries are not blocked by the network.
+		NavigableMap<String, Entry> listed = new TreeMap<String, Entry>();
+		ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix);
+		try (Stream<S3ObjectSummary> objects = ObjectListings.stream(s3Client, request, ObjectListings.DEFAULT_LOOK_AHEAD)) {
+			objects.forEach(summary -> listed.put(summary.getKey(), new Entry(summary.getKey(),
+					summary.getSize(), summary.getETag(), summary.getLastModified().getTime())));
+		}
+
+		synchronized (this) {
+			NavigableMap<String, Entry> index = load(bucketName);
+			NavigableMap<String, Entry> range = range(index, prefix);
+			hotEntries -= index.size();
+			range.clear();
+			index.putAll(listed);
+			hotEntries += index.size();
+			save(bucketName, index);
+			evict();
+		}
+		return listed.size();
+	}
+
+	/***
+	 * Checks if the specified bucket has been indexed.
+	 * @param bucketName The name of the bucket
+	 * @return true if an index exists for the bucket.
+	 */
+	public synchronized boolean isIndexed(String bucketName) {
+		return indexFile(bucketName).isFile();
+	}
+
+	/***
+	 * Lists the indexed objects under the specified prefix.
+	 * @param bucketName The name of the bucket
+	 * @param prefix The prefix of the keys to list, or an empty string for all the keys
+	 * @return A copy of the entries, in key order.
+	 * @throws IOException Error encountered while reading the index
+	 */
+	public synchronized List<Entry> list(String bucketName, String prefix) throws IOException {
+		return new ArrayList<Entry>(range(load(bucketName), prefix).values());
+	}
+
+	/***
+	 * Gets the indexed metadata of an object.
+	 * @param bucketName The name of the bucket
+	 * @param keyName The name of the object
+	 * @return The entry, or null if the object is not in the index.
+	 * @throws IOException Error encountered while reading the index
+	 */
+	public synchronized Entry get(String bucketName, String keyName) throws IOException {
+		return load(bucketName).get(keyName);
+	}
+
+	/*
+	 * Gets the range of keys starting with the prefix.
+	 */
+	private static NavigableMap<String, Entry> range(NavigableMap<String, Entry> index, String prefix) {
+		if (prefix == null || prefix.isEmpty())
+			return index;
+		return index.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+	}
+
+	/*
+	 * Gets the index of a bucket from the hot set, reading it from disk if needed.
+	 * A bucket that was never indexed has an empty index.
+	 */
+	private NavigableMap<String, Entry> load(String bucketName) throws IOException {
+		NavigableMap<String, Entry> index = hotSet.get(bucketName);
+		if (index != null)
+			return index;
+
+		index = new TreeMap<String, Entry>();
+		File file = indexFile(bucketName);
+		if (file.isFile()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				checkHeader(in, file);
+				int count = in.readInt();
+				String previous = "";
+				for (int i = 0; i < count; i++) {
+					int shared = in.readUnsignedShort();
+					String key = previous.substring(0, shared) + in.readUTF();
+					index.put(key, new Entry(key, in.readLong(), in.readUTF(), in.readLong()));
+					previous = key;
+				}
+			}
+		}
+		hotSet.put(bucketName, index);
+		hotEntries += index.size();
+		evict();
+		return index;
+	}
+
+	/*
+	 * Writes the index of a bucket. The file is replaced atomically.
+	 */
+	private void save(String bucketName, NavigableMap<String, Entry> index) throws IOException {
+		File file = indexFile(bucketName);
+		File temp = new File(directory, file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(index.size());
+			String previous = "";
+			for (Entry entry : index.values()) {
+				// Store only the part of the key that differs from the previous key.
+				int shared = sharedPrefix(previous, entry.key);
+				out.writeShort(shared);
+				out.writeUTF(entry.key.substring(shared));
+				out.writeLong(entry.size);
+				out.writeUTF(entry.eTag == null ? "" : entry.eTag);
+				out.writeLong(entry.lastModified);
+				previous = entry.key;
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/*
+	 * Drops the least recently used bucket indexes until the hot set fits its bound.
+	 * The most recently used index is always kept.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, NavigableMap<String, Entry>>> iterator = hotSet.entrySet().iterator();
+		while (hotEntries > maxHotEntries && hotSet.size() > 1 && iterator.hasNext()) {
+			hotEntries -= iterator.next().getValue().size();
+			iterator.remove();
+		}
+	}
+
+	/*
+	 * Checks the header of an index file.
+	 */
+	private static void checkHeader(DataInputStream in, File file) throws IOException {
+		if (in.readInt() != MAGIC || in.readShort() != VERSION)
+			throw new IOException(String.format("%s is not a valid index file", file));
+	}
+
+	/*
+	 * Gets the index file of a bucket.
+	 */
+	private File indexFile(String bucketName) {
+		return new File(directory, bucketName + INDEX_EXTENSION);
+	}
+
+	/*
+	 * Computes the length of the common prefix of two keys.
+	 */
+	private static int sharedPrefix(String a, String b) {
+		int max = Math.min(Math.min(a.length(), b.length()), 0xFFFF);
+		int i = 0;
+		while (i < max && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
+	}
+
+	/***
+	 * Gets the number of object entries held in memory.
+	 * @return The number of object entries in the hot set.
+	 */
+	public synchronized long getHotEntries() {
+		return hotEntries;
+	}
+}
@@ -0,0 +1,388 @@
+package com.acloudysky.s3;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/***
+ * Uploads the bytes written to it as an object whose length is not known in advance.
+ * <p>
+ * The bytes are collected in part buffers. Each full buffer is sent as a part of a multipart
+ * upload while the next one is filled, with at most the configured concurrency of parts in
+ * flight: a writer faster than the network waits for a buffer to be free, so the memory used
+ * is bounded by (concurrency + 1) parts. The buffers are direct buffers taken from the memory
+ * budget of the application, see {@link TransferMemory}, which also makes the writer wait
+ * while other transfers hold the memory. If the stream is closed before the first part is full,
+ * the object is sent with a single PUT request instead. Closing the stream completes the upload;
+ * if a part cannot be sent, the multipart upload is aborted. When checksums are enabled, they
+ * are computed from the part buffers, which are already in memory, see {@link Checksums}.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class MultipartOutputStream extends OutputStream {
+
+	// Size of the work array used to read a stream into a direct buffer.
+	private static final int READ_SCRATCH_SIZE = 64 * 1024;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Part size, concurrency and retry settings.
+	private final TransferSettings settings;
+
+	private final String bucketName;
+	private final String keyName;
+
+	// Metadata of the object.
+	private final ObjectMetadata metadata;
+
+	// Size of each part.
+	private final int partSize;
+
+	// Part buffers: the one being filled and the ones in flight.
+	private final BufferPool buffers;
+
+	// Buffer being filled, or null before the first write and once sent.
+	private ByteBuffer buffer;
+
+	// Buffers of the parts not sent yet. A buffer is released by whoever removes it.
+	private final Set<ByteBuffer> inFlight = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>()));
+
+	// Work array used to read a stream into a direct buffer, allocated on first use.
+	private byte[] scratch;
+
+	// Multipart upload, started when the first part is full.
+	private String uploadId;
+	private ExecutorService workers;
+	private final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+
+	// Request that started the multipart upload, or null before the first part.
+	private InitiateMultipartUploadRequest upload;
+
+	// Checksums of the parts, or null if checksums are disabled.
+	private Checksums checksums;
+
+	// Number of leading parts known to be sent.
+	private int checkedParts;
+
+	// Number of bytes written.
+	private long bytesWritten;
+
+	private boolean closed;
+
+	/***
+	 * Creates a stream uploading an object.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param settings The transfer settings. The part size must fit in memory.
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param metadata The metadata of the object, such as the content type, or null
+	 */
+	public MultipartOutputStream(AmazonS3 s3Client, TransferSettings settings, String bucketName, String keyName,
+			ObjectMetadata metadata) {
+		if (settings.getPartSize() > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Part size too large for a stream upload");
+		this.s3Client = s3Client;
+		this.settings = settings;
+		this.bucketName = bucketName;
+		this.keyName = keyName;
+		this.metadata = metadata == null ? new ObjectMetadata() : metadata;
+		this.partSize = (int) settings.getPartSize();
+		this.buffers = new BufferPool(settings.getConcurrency() + 1, partSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (len > 0) {
+			if (buffer == null || !buffer.hasRemaining())
+				nextBuffer();
+			int count = Math.min(len, buffer.remaining());
+			buffer.put(b, off, count);
+			off += count;
+			len -= count;
+			bytesWritten += count;
+		}
+	}
+
+	/***
+	 * Reads a stream to its end, straight into the part buffers. Each part is sent as soon as it
+	 * is full, so a stream of any length is uploaded with the memory of (concurrency + 1) parts.
+	 * @param in The content to upload. It is read to the end but not closed.
+	 * @return The number of bytes read.
+	 * @throws IOException Error encountered while reading the content or sending a part.
+	 */
+	public long transferFrom(InputStream in) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		// A file or the standard input is read straight into the direct buffers.
+		ReadableByteChannel channel = in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : null;
+		long total = 0;
+		while (true) {
+			if (buffer == null || !buffer.hasRemaining())
+				nextBuffer();
+			int count;
+			if (channel != null)
+				count = channel.read(buffer);
+			else {
+				if (scratch == null)
+					scratch = new byte[READ_SCRATCH_SIZE];
+				count = in.read(scratch, 0, Math.min(scratch.length, buffer.remaining()));
+				if (count > 0)
+					buffer.put(scratch, 0, count);
+			}
+			if (count < 0)
+				return total;
+			bytesWritten += count;
+			total += count;
+		}
+	}
+
+	/***
+	 * Gets the number of bytes written, that is the size of the object.
+	 * @return The number of bytes.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/***
+	 * Sends the last part and completes the upload.
+	 * @throws IOException Error encountered while uploading. The upload is aborted.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (uploadId == null) {
+				// The whole object fits in one part.
+				ByteBuffer data = buffer == null ? ByteBuffer.allocate(0) : (ByteBuffer) buffer.duplicate().flip();
+				ObjectMetadata single = metadata.clone();
+				single.setContentLength(data.remaining());
+				// The content is in memory: its checksums are sent with it.
+				Checksums.Digest digest = settings.isChecksums() ? Checksums.Digest.of(data) : null;
+				if (digest != null) {
+					single.setContentMD5(digest.getContentMD5());
+					digest.addTo(single);
+				}
+				Retries.call(() -> {
+					String eTag = s3Client.putObject(new PutObjectRequest(bucketName, keyName,
+							new ByteBufferInputStream(data), single)).getETag();
+					if (digest != null)
+						digest.verify(keyName, eTag);
+					return eTag;
+				}, settings.getMaxPartAttempts());
+				return;
+			}
+			if (buffer != null && buffer.position() > 0)
+				sendPart();
+			List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+			for (Future<PartETag> part : parts)
+				partETags.add(part.get());
+			String eTag = s3Client.completeMultipartUpload(
+					new CompleteMultipartUploadRequest(bucketName, keyName, uploadId, partETags)).getETag();
+			// The upload is complete, there is nothing left to abort.
+			uploadId = null;
+			if (checksums != null) {
+				checksums.verify(keyName, eTag);
+				if (!checksums.store(s3Client, upload, eTag))
+					System.out.println(String.format("Checksums of %s not stored: the object is over 5 GB or was replaced", keyName));
+			}
+		}
+		catch (ExecutionException e) {
+			abort();
+			throw new IOException(String.format("Unable to upload %s: %s", keyName, e.getCause().getMessage()), e.getCause());
+		}
+		catch (InterruptedException e) {
+			abort();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Upload of %s interrupted", keyName));
+		}
+		catch (AmazonClientException e) {
+			abort();
+			throw new IOException(String.format("Unable to upload %s: %s", keyName, e.getMessage()), e);
+		}
+		finally {
+			releaseBuffers();
+		}
+	}
+
+	/***
+	 * Abandons the upload: the parts already sent are deleted and nothing is stored.
+	 */
+	public void abort() {
+		closed = true;
+		if (uploadId == null) {
+			releaseBuffers();
+			return;
+		}
+		for (Future<PartETag> part : parts)
+			part.cancel(true);
+		try {
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+		}
+		catch (AmazonClientException ace) {
+			System.out.println(String.format("Unable to abort upload %s: %s", uploadId, ace.getMessage()));
+		}
+		finally {
+			// The upload is gone, a second abort has nothing to do.
+			uploadId = null;
+			releaseBuffers();
+		}
+	}
+
+	/*
+	 * Returns the buffer being filled and the buffers of the parts to the pool. The parts being
+	 * sent still read their buffer, which their worker returns once done: the workers are stopped
+	 * and waited for first, then the buffers of the parts that never started are returned.
+	 */
+	private void releaseBuffers() {
+		if (buffer != null) {
+			buffers.release(buffer);
+			buffer = null;
+		}
+		if (workers != null) {
+			workers.shutdownNow();
+			boolean interrupted = false;
+			while (!workers.isTerminated()) {
+				try {
+					workers.awaitTermination(1, TimeUnit.MINUTES);
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		ByteBuffer[] pending;
+		synchronized (inFlight) {
+			pending = inFlight.toArray(new ByteBuffer[0]);
+		}
+		for (ByteBuffer data : pending)
+			release(data);
+	}
+
+	/*
+	 * Returns the buffer of a part to the pool, unless it was already returned.
+	 */
+	private void release(ByteBuffer data) {
+		if (inFlight.remove(data))
+			buffers.release(data);
+	}
+
+	/*
+	 * Makes room for more bytes: sends the full part, if any, and switches to a free buffer.
+	 */
+	private void nextBuffer() throws IOException {
+		try {
+			if (buffer != null)
+				sendPart();
+			// Wait until a part has been sent, or other transfers released memory.
+			buffer = buffers.acquire();
+		}
+		catch (InterruptedException e) {
+			abort();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Upload of %s interrupted", keyName));
+		}
+		catch (AmazonClientException e) {
+			abort();
+			throw new IOException(String.format("Unable to upload %s: %s", keyName, e.getMessage()), e);
+		}
+	}
+
+	/*
+	 * Sends the current buffer as the next part, starting the multipart upload if needed.
+	 * The buffer is returned to the free buffers once sent.
+	 */
+	private void sendPart() throws IOException {
+		// Stop at the first part that failed, rather than after the last one.
+		for (; checkedParts < parts.size() && parts.get(checkedParts).isDone(); checkedParts++) {
+			try {
+				parts.get(checkedParts).get();
+			}
+			catch (ExecutionException | InterruptedException e) {
+				abort();
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				throw new IOException(String.format("Unable to upload %s: %s", keyName, cause.getMessage()), cause);
+			}
+		}
+		if (uploadId == null) {
+			upload = new InitiateMultipartUploadRequest(bucketName, keyName, metadata);
+			uploadId = s3Client.initiateMultipartUpload(upload).getUploadId();
+			workers = Executors.newFixedThreadPool(settings.getConcurrency());
+			checksums = settings.isChecksums() ? new Checksums() : null;
+		}
+		int partNumber = parts.size() + 1;
+		if (partNumber > TransferSettings.MAX_PARTS) {
+			abort();
+			throw new IOException(String.format("%s exceeds %d parts of %d bytes", keyName, TransferSettings.MAX_PARTS, partSize));
+		}
+		ByteBuffer data = buffer;
+		data.flip();
+		int size = data.remaining();
+		String id = uploadId;
+		// From now on the buffer belongs to the part.
+		inFlight.add(data);
+		buffer = null;
+		parts.add(workers.submit(() -> {
+			try {
+				// The part is in memory: its checksums are computed before it is sent, and S3 checks its MD5.
+				Checksums.Digest digest = checksums == null ? null : Checksums.Digest.of(data);
+				PartETag partETag = Retries.call(() -> {
+					PartETag sent = s3Client.uploadPart(new UploadPartRequest()
+							.withBucketName(bucketName)
+							.withKey(keyName)
+							.withUploadId(id)
+							.withPartNumber(partNumber)
+							.withInputStream(new ByteBufferInputStream(data))
+							.withPartSize(size)
+							.withMD5Digest(digest == null ? null : digest.getContentMD5())).getPartETag();
+					if (digest != null)
+						digest.verify(String.format("Part %d of %s", partNumber, keyName), sent.getETag());
+					return sent;
+				}, settings.getMaxPartAttempts());
+				if (digest != null)
+					checksums.addPart(partNumber, digest);
+				return partETag;
+			}
+			finally {
+				release(data);
+			}
+		}));
+	}
+}
@@ -0,0 +1,180 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/***
+ * Uploads a file to S3 in parts.
+ * The file is split in parts of the configured size and the parts are sent
+ * concurrently through a bounded pool of worker threads. Each part is retried
+ * on its own; if a part cannot be sent the multipart upload is aborted so that
+ * no orphan parts are left (and billed) in the bucket.
+ * When checksums are enabled, each part is read once: its checksums are computed while it is sent
+ * and checked against its ETag. Once the upload is complete, they are combined and stored in the
+ * metadata of the object, see {@link Checksums}.
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/uploadobjusingmpu.html" target="_blank">Uploading Objects Using Multipart Upload API</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class MultipartUploader {
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Part size, concurrency and retry settings.
+	private final TransferSettings settings;
+
+	/***
+	 * Creates an uploader.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param settings The transfer settings to use.
+	 */
+	public MultipartUploader(AmazonS3 s3Client, TransferSettings settings) {
+		this.s3Client = s3Client;
+		this.settings = settings;
+	}
+
+	/***
+	 * Uploads the specified file in parts.
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param file The file to upload
+	 * @return The result of the completed multipart upload.
+	 * @throws AmazonClientException Error encountered while uploading a part. The upload is aborted.
+	 * @throws InterruptedException The thread was interrupted while waiting for the parts. The upload is aborted.
+	 */
+	public CompleteMultipartUploadResult upload(String bucketName, String keyName, File file) throws InterruptedException {
+		return upload(bucketName, keyName, file, null);
+	}
+
+	/***
+	 * Uploads the specified file in parts, with the specified metadata.
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param file The file to upload
+	 * @param metadata The metadata of the object, such as the user metadata, or null
+	 * @return The result of the completed multipart upload.
+	 * @throws AmazonClientException Error encountered while uploading a part, the upload is aborted;
+	 * 	or the checksums of the completed object do not match.
+	 * @throws InterruptedException The thread was interrupted while waiting for the parts. The upload is aborted.
+	 */
+	public CompleteMultipartUploadResult upload(String bucketName, String keyName, File file, ObjectMetadata metadata)
+			throws InterruptedException {
+
+		long contentLength = file.length();
+		long partSize = settings.partSizeFor(contentLength);
+
+		InitiateMultipartUploadRequest upload = new InitiateMultipartUploadRequest(bucketName, keyName, metadata);
+		String uploadId = s3Client.initiateMultipartUpload(upload).getUploadId();
+
+		// Checksums of the parts, computed while they are sent.
+		final Checksums checksums = settings.isChecksums() ? new Checksums() : null;
+
+		ExecutorService workers = Executors.newFixedThreadPool(settings.getConcurrency());
+		List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+		CompleteMultipartUploadResult result;
+		try {
+			long offset = 0;
+			for (int partNumber = 1; offset < contentLength; partNumber++) {
+				final UploadPartRequest request = new UploadPartRequest()
+						.withBucketName(bucketName)
+						.withKey(keyName)
+						.withUploadId(uploadId)
+						.withPartNumber(partNumber)
+						.withFile(file)
+						.withFileOffset(offset)
+						.withPartSize(Math.min(partSize, contentLength - offset));
+				parts.add(workers.submit(() -> Retries.call(
+						() -> checksums == null ? s3Client.uploadPart(request).getPartETag() : uploadPart(request, checksums),
+						settings.getMaxPartAttempts())));
+				offset += partSize;
+			}
+
+			List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+			for (Future<PartETag> part : parts)
+				partETags.add(part.get());
+
+			result = s3Client.completeMultipartUpload(
+					new CompleteMultipartUploadRequest(bucketName, keyName, uploadId, partETags));
+		}
+		catch (ExecutionException e) {
+			abort(bucketName, keyName, uploadId, parts);
+			if (e.getCause() instanceof AmazonClientException)
+				throw (AmazonClientException) e.getCause();
+			throw new AmazonClientException("Unable to upload part: " + e.getCause().getMessage(), e.getCause());
+		}
+		catch (InterruptedException | RuntimeException e) {
+			abort(bucketName, keyName, uploadId, parts);
+			throw e;
+		}
+		finally {
+			workers.shutdownNow();
+		}
+
+		if (checksums != null) {
+			checksums.verify(keyName, result.getETag());
+			if (!checksums.store(s3Client, upload, result.getETag()))
+				System.out.println(String.format("Checksums of %s not stored: the object is over 5 GB or was replaced", keyName));
+		}
+		return result;
+	}
+
+	/*
+	 * Sends a part of the file, computing its checksums as it is read, and checks its ETag.
+	 */
+	private PartETag uploadPart(UploadPartRequest request, Checksums checksums) throws IOException {
+		String name = String.format("Part %d of %s", request.getPartNumber(), request.getKey());
+		try (FileInputStream file = new FileInputStream(request.getFile())) {
+			file.getChannel().position(request.getFileOffset());
+			// Fails if the file ends before the part.
+			ChecksumInputStream content = new ChecksumInputStream(file, name, request.getPartSize(), null, null);
+			UploadPartRequest part = new UploadPartRequest()
+					.withBucketName(request.getBucketName())
+					.withKey(request.getKey())
+					.withUploadId(request.getUploadId())
+					.withPartNumber(request.getPartNumber())
+					.withInputStream(content)
+					.withPartSize(request.getPartSize());
+			PartETag partETag = s3Client.uploadPart(part).getPartETag();
+			Checksums.Digest digest = content.getDigest();
+			if (digest.getLength() != request.getPartSize())
+				throw new AmazonClientException(String.format("%s: sent %d bytes instead of %d", name, digest.getLength(), request.getPartSize()));
+			digest.verify(name, partETag.getETag());
+			checksums.addPart(request.getPartNumber(), digest);
+			return partETag;
+		}
+	}
+
+	/*
+	 * Cancels the pending parts and aborts the multipart upload.
+	 */
+	private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts) {
+		for (Future<PartETag> part : parts)
+			part.cancel(true);
+		try {
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+		}
+		catch (AmazonClientException ace) {
+			System.out.println(String.format("Unable to abort upload %s: %s", uploadId, ace.getMessage()));
+		}
+	}
+}
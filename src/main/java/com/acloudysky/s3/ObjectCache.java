@@ -0,0 +1,536 @@
+package com.acloudysky.s3;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.HttpGet;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/***
+ * Local read-through cache of objects, stored on disk and keyed by bucket, key and ETag.
+ * <p>
+ * An object read through the cache is downloaded once; later reads are served from the local
+ * copy. A copy younger than the maximum age (see {@link #withMaxAge(long, TimeUnit)}) is used
+ * without any request. An older copy is revalidated with a conditional GET (<i>If-None-Match</i>
+ * with its ETag, or <i>If-Modified-Since</i> with its date), which S3 answers with a 304 and no
+ * content while the object is unchanged; only a changed object is downloaded again.
+ * </p>
+ * <p>
+ * Each object is stored in one file holding its metadata followed by its content as stored in
+ * S3, so compressed objects stay compressed on disk. New copies are written to a temporary
+ * file, verified against the stored checksums, then moved into place; a reader holding the
+ * previous copy open keeps reading it. The least recently used copies are removed when the
+ * total size exceeds the bound. Objects larger than the bound are not cached.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ObjectCache {
+
+	// Identifies a cache file ("S3OC").
+	private static final int MAGIC = 0x53334F43;
+
+	// Version of the file format.
+	private static final short VERSION = 1;
+
+	// Extension of the cache files.
+	private static final String CACHE_EXTENSION = ".obj";
+
+	// Extension of the files being downloaded.
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	// Default maximum size of the cached objects.
+	public static final long DEFAULT_MAX_BYTES = 1024 * TransferSettings.MB;
+
+	// Size of the buffer used to copy the content to disk.
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/*
+	 * A cached object: its metadata and the file holding it.
+	 */
+	private static class Entry {
+		final File file;
+		final String eTag;
+		final long lastModified;
+		final long size;
+		final ObjectMetadata metadata;
+
+		// Time of the last download or revalidation, 0 if unknown.
+		volatile long validatedAt;
+
+		Entry(File file, ObjectMetadata metadata, long validatedAt) {
+			this.file = file;
+			this.eTag = metadata.getETag();
+			this.lastModified = metadata.getLastModified() == null ? 0 : metadata.getLastModified().getTime();
+			this.size = file.length();
+			this.metadata = metadata;
+			this.validatedAt = validatedAt;
+		}
+	}
+
+	// Authorized client, used when there is no client pool.
+	private final AmazonS3 s3Client;
+
+	// Regional clients, or null to send all the requests through the authorized client.
+	private final S3ClientPool clientPool;
+
+	// Directory holding the cache files.
+	private final File directory;
+
+	// Maximum total size of the cache files.
+	private final long maxBytes;
+
+	// Cached objects by bucket and key, least recently used first.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// Total size of the cache files.
+	private long totalBytes;
+
+	// Number of invalidations, so a download started before one is not cached.
+	private long generation;
+
+	// Time during which a copy is used without revalidation, in milliseconds.
+	private volatile long maxAgeMillis;
+
+	// Number of attempts of each GET request.
+	private volatile int maxAttempts = 3;
+
+	// Reads served without a request, after a 304, and by downloading the object.
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/***
+	 * Creates a cache sending the requests through the authorized client.
+	 * The copies left in the directory by a previous run are reused.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param directory The directory holding the cache files. It is created if it does not exist.
+	 * @param maxBytes The maximum total size of the cached objects.
+	 * @throws IOException Error encountered while creating or reading the directory
+	 */
+	public ObjectCache(AmazonS3 authorizedClient, File directory, long maxBytes) throws IOException {
+		this(authorizedClient, null, directory, maxBytes);
+	}
+
+	/***
+	 * Creates a cache sending each request to the client of the region that holds the bucket.
+	 * The copies left in the directory by a previous run are reused.
+	 * @param pool The regional clients.
+	 * @param directory The directory holding the cache files. It is created if it does not exist.
+	 * @param maxBytes The maximum total size of the cached objects.
+	 * @throws IOException Error encountered while creating or reading the directory
+	 */
+	public ObjectCache(S3ClientPool pool, File directory, long maxBytes) throws IOException {
+		this(pool.getClient(pool.getHomeRegion()), pool, directory, maxBytes);
+	}
+
+	private ObjectCache(AmazonS3 s3Client, S3ClientPool clientPool, File directory, long maxBytes) throws IOException {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("Maximum size must be positive");
+		Files.createDirectories(directory.toPath());
+		this.s3Client = s3Client;
+		this.clientPool = clientPool;
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		load();
+	}
+
+	/***
+	 * Sets the time during which a cached copy is used without asking S3 if the object changed.
+	 * With the default 0, every read sends a conditional GET.
+	 * @param maxAge The time, or 0 to always revalidate.
+	 * @param unit The unit of the time.
+	 * @return This object, for chaining.
+	 */
+	public ObjectCache withMaxAge(long maxAge, TimeUnit unit) {
+		if (maxAge < 0)
+			throw new IllegalArgumentException("Maximum age must not be negative");
+		this.maxAgeMillis = unit.toMillis(maxAge);
+		return this;
+	}
+
+	/***
+	 * Sets the number of attempts of each GET request before the read fails.
+	 * @param maxAttempts The number of attempts, at least 1.
+	 * @return This object, for chaining.
+	 */
+	public ObjectCache withMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("Maximum attempts must be at least 1");
+		this.maxAttempts = maxAttempts;
+		return this;
+	}
+
+	/***
+	 * Reads an object through the cache.
+	 * The content is returned as stored in S3: it must still be decompressed if the object was
+	 * compressed on upload, see {@link Compression#decompress(InputStream, ObjectMetadata)}.
+	 * The stored checksums were verified when the copy was downloaded.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @return The object, whose content must be closed by the caller.
+	 * @throws IOException Error encountered while reading or writing the local copy
+	 * @throws InterruptedException The thread was interrupted while waiting to retry a request
+	 */
+	public S3Object getObject(String bucketName, String keyName) throws IOException, InterruptedException {
+		String id = bucketName + "/" + keyName;
+		Entry entry;
+		long started;
+		synchronized (this) {
+			entry = entries.get(id);
+			started = generation;
+		}
+
+		long now = System.currentTimeMillis();
+		if (entry != null && now - entry.validatedAt < maxAgeMillis) {
+			S3Object cached = open(bucketName, keyName, entry);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return cached;
+			}
+			entry = null;
+		}
+
+		// S3 returns no object (304) if the copy is still current. The date is only
+		// compared when there is no ETag, since S3 ignores it when the ETag is sent.
+		GetObjectRequest request = new GetObjectRequest(bucketName, keyName);
+		if (entry != null && entry.eTag != null && !entry.eTag.isEmpty())
+			request.withNonmatchingETagConstraint(entry.eTag);
+		else if (entry != null && entry.lastModified > 0)
+			request.withModifiedSinceConstraint(new Date(entry.lastModified));
+		S3Object object = Retries.call(() -> client(bucketName).getObject(request), maxAttempts);
+		if (object == null && entry != null) {
+			entry.validatedAt = now;
+			S3Object cached = open(bucketName, keyName, entry);
+			if (cached != null) {
+				revalidations.incrementAndGet();
+				return cached;
+			}
+			// The copy was evicted in the meantime.
+			object = Retries.call(() -> client(bucketName).getObject(new GetObjectRequest(bucketName, keyName)), maxAttempts);
+		}
+		misses.incrementAndGet();
+		return store(id, object, now, started);
+	}
+
+	/***
+	 * Removes the cached copy of an object, for example after the object was deleted.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 */
+	public synchronized void invalidate(String bucketName, String keyName) {
+		generation++;
+		Entry entry = entries.remove(bucketName + "/" + keyName);
+		if (entry != null) {
+			totalBytes -= entry.size;
+			entry.file.delete();
+		}
+	}
+
+	/***
+	 * Removes the cached copies of the objects under a prefix, for example after they were overwritten by copies.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The prefix of the keys, or an empty string for the whole bucket
+	 */
+	public synchronized void invalidatePrefix(String bucketName, String prefix) {
+		generation++;
+		String id = bucketName + "/" + prefix;
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Entry> cached = iterator.next();
+			if (cached.getKey().startsWith(id)) {
+				iterator.remove();
+				totalBytes -= cached.getValue().size;
+				cached.getValue().file.delete();
+			}
+		}
+	}
+
+	/***
+	 * Gets the number of reads served from a local copy without any request.
+	 * @return The number of reads.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/***
+	 * Gets the number of reads served from a local copy after S3 answered that the object did not change.
+	 * @return The number of reads.
+	 */
+	public long getRevalidationCount() {
+		return revalidations.get();
+	}
+
+	/***
+	 * Gets the number of reads that downloaded the object.
+	 * @return The number of reads.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/***
+	 * Gets the number of copies removed to keep the cache within its bound.
+	 * @return The number of copies.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/***
+	 * Gets the number of cached objects.
+	 * @return The number of objects.
+	 */
+	public synchronized int getObjectCount() {
+		return entries.size();
+	}
+
+	/***
+	 * Gets the total size of the cached objects.
+	 * @return The size in bytes.
+	 */
+	public synchronized long getSize() {
+		return totalBytes;
+	}
+
+	/***
+	 * Formats the counters of the cache.
+	 * @return One line of text.
+	 */
+	public String report() {
+		long reads = hits.get() + revalidations.get() + misses.get();
+		return String.format("Object cache: %d objects, %.1f of %.1f MB; %d reads, %d hits, %d revalidated (304), %d misses (%.1f%% hit rate), %d evicted%n",
+				getObjectCount(), getSize() / (double) TransferSettings.MB, maxBytes / (double) TransferSettings.MB,
+				reads, hits.get(), revalidations.get(), misses.get(),
+				reads == 0 ? 0.0 : 100.0 * (hits.get() + revalidations.get()) / reads, evictions.get());
+	}
+
+	/*
+	 * Gets the client to use for the specified bucket.
+	 */
+	private AmazonS3 client(String bucketName) {
+		return clientPool == null ? s3Client : clientPool.getClientForBucket(bucketName);
+	}
+
+	/*
+	 * Opens a cached copy, positioned after its header.
+	 * Returns null if the copy was removed.
+	 */
+	private S3Object open(String bucketName, String keyName, Entry entry) throws IOException {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new FileInputStream(entry.file));
+		}
+		catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			readHeader(in, entry.file);
+		}
+		catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+		S3Object object = new S3Object();
+		object.setBucketName(bucketName);
+		object.setKey(keyName);
+		object.setObjectMetadata(entry.metadata.clone());
+		object.setObjectContent(new S3ObjectInputStream(in, new HttpGet()));
+		return object;
+	}
+
+	/*
+	 * Writes a downloaded object to the cache, then opens the new copy.
+	 * Objects larger than the cache are returned as downloaded. The copy of a download started
+	 * before an invalidation may predate a write: it is returned, then dropped, but not cached.
+	 */
+	private S3Object store(String id, S3Object object, long now, long started) throws IOException {
+		ObjectMetadata metadata = object.getObjectMetadata();
+		if (metadata.getContentLength() > maxBytes)
+			return object;
+
+		File temp = new File(directory, UUID.randomUUID() + TEMP_EXTENSION);
+		try (InputStream in = Checksums.verifying(object.getObjectContent(), object.getKey(), metadata);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), COPY_BUFFER_SIZE))) {
+			writeHeader(out, object.getBucketName(), object.getKey(), metadata);
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+				out.write(buffer, 0, read);
+		}
+		catch (IOException | RuntimeException e) {
+			temp.delete();
+			throw e;
+		}
+
+		File file = new File(directory, fileName(id));
+		Entry entry;
+		synchronized (this) {
+			if (generation != started) {
+				S3Object uncached = open(object.getBucketName(), object.getKey(), new Entry(temp, metadata, now));
+				// The open file stays readable; a file that cannot be deleted yet is removed on the next start.
+				temp.delete();
+				return uncached;
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			entry = new Entry(file, metadata, now);
+			Entry previous = entries.put(id, entry);
+			if (previous != null)
+				totalBytes -= previous.size;
+			totalBytes += entry.size;
+			evict();
+		}
+		S3Object cached = open(object.getBucketName(), object.getKey(), entry);
+		if (cached == null)
+			throw new FileNotFoundException(String.format("%s was removed from the cache while it was read", file));
+		return cached;
+	}
+
+	/*
+	 * Removes the least recently used copies until the cache fits its bound.
+	 * The most recently used copy is always kept.
+	 */
+	private void evict() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (totalBytes > maxBytes && entries.size() > 1 && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			iterator.remove();
+			totalBytes -= entry.size;
+			entry.file.delete();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/*
+	 * Reads the copies left by a previous run, oldest first, and deletes the unfinished downloads.
+	 * The copies are revalidated on their first read.
+	 */
+	private void load() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException(String.format("Unable to list %s", directory));
+		List<File> copies = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_EXTENSION))
+				file.delete();
+			else if (file.getName().endsWith(CACHE_EXTENSION))
+				copies.add(file);
+		}
+		copies.sort(Comparator.comparingLong(File::lastModified));
+
+		synchronized (this) {
+			for (File file : copies) {
+				try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+					String[] name = new String[2];
+					ObjectMetadata metadata = readHeader(in, file, name);
+					Entry entry = new Entry(file, metadata, 0);
+					entries.put(name[0] + "/" + name[1], entry);
+					totalBytes += entry.size;
+				}
+				catch (IOException e) {
+					file.delete();
+				}
+			}
+			evict();
+		}
+	}
+
+	/*
+	 * Writes the header of a cache file: the bucket, the key and the metadata of the object.
+	 */
+	private static void writeHeader(DataOutputStream out, String bucketName, String keyName, ObjectMetadata metadata)
+			throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeUTF(bucketName);
+		out.writeUTF(keyName);
+		out.writeUTF(metadata.getETag() == null ? "" : metadata.getETag());
+		out.writeLong(metadata.getLastModified() == null ? 0 : metadata.getLastModified().getTime());
+		out.writeLong(metadata.getContentLength());
+		out.writeUTF(metadata.getContentType() == null ? "" : metadata.getContentType());
+		out.writeUTF(metadata.getContentEncoding() == null ? "" : metadata.getContentEncoding());
+		Map<String, String> userMetadata = metadata.getUserMetadata();
+		out.writeShort(userMetadata == null ? 0 : userMetadata.size());
+		if (userMetadata != null) {
+			for (Map.Entry<String, String> item : userMetadata.entrySet()) {
+				out.writeUTF(item.getKey());
+				out.writeUTF(item.getValue());
+			}
+		}
+	}
+
+	/*
+	 * Skips the header of a cache file.
+	 */
+	private static void readHeader(DataInputStream in, File file) throws IOException {
+		readHeader(in, file, new String[2]);
+	}
+
+	/*
+	 * Reads the header of a cache file. The bucket and the key are returned in name.
+	 */
+	private static ObjectMetadata readHeader(DataInputStream in, File file, String[] name) throws IOException {
+		if (in.readInt() != MAGIC || in.readShort() != VERSION)
+			throw new IOException(String.format("%s is not a valid cache file", file));
+		name[0] = in.readUTF();
+		name[1] = in.readUTF();
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setHeader("ETag", in.readUTF());
+		metadata.setLastModified(new Date(in.readLong()));
+		metadata.setContentLength(in.readLong());
+		String contentType = in.readUTF();
+		if (!contentType.isEmpty())
+			metadata.setContentType(contentType);
+		String contentEncoding = in.readUTF();
+		if (!contentEncoding.isEmpty())
+			metadata.setContentEncoding(contentEncoding);
+		int count = in.readUnsignedShort();
+		Map<String, String> userMetadata = new HashMap<String, String>();
+		for (int i = 0; i < count; i++)
+			userMetadata.put(in.readUTF(), in.readUTF());
+		metadata.setUserMetadata(userMetadata);
+		return metadata;
+	}
+
+	/*
+	 * Gets the name of the cache file of an object, derived from its bucket and key.
+	 */
+	private static String fileName(String id) {
+		MessageDigest sha256 = Checksums.messageDigest("SHA-256");
+		byte[] digest = Arrays.copyOf(sha256.digest(id.getBytes(StandardCharsets.UTF_8)), 16);
+		StringBuilder name = new StringBuilder(digest.length * 2 + CACHE_EXTENSION.length());
+		for (byte b : digest)
+			name.append(String.format("%02x", b & 0xFF));
+		return name.append(CACHE_EXTENSION).toString();
+	}
+}
@@ -0,0 +1,163 @@
+package com.acloudysky.s3;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Lists the objects of a bucket as a lazy stream.
+ * The pages are fetched by a background thread which stays a bounded number of
+ * pages ahead of the caller: while the caller consumes page N, page N+1 is already
+ * on its way. The background thread stops when the stream is exhausted or closed,
+ * so the stream should be used in a <i>try-with-resources</i> statement:
+ * <pre>
+ *   try (Stream&lt;S3ObjectSummary&gt; objects = ObjectListings.stream(s3Client, bucketName)) {
+ *       objects.forEach(o -&gt; System.out.println(o.getKey()));
+ *   }
+ * </pre>
+ * @author Michael Miele
+ *
+ */
+public class ObjectListings {
+
+	// Default number of pages fetched ahead of the caller.
+	public static final int DEFAULT_LOOK_AHEAD = 2;
+
+	// Threads fetching the pages. Daemon threads so an abandoned stream does not block the exit.
+	private static final ExecutorService fetchers = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "s3-listing-prefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/***
+	 * Lists all the objects in the specified bucket.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @return The lazy stream of object summaries, in key order.
+	 */
+	public static Stream<S3ObjectSummary> stream(AmazonS3 s3Client, String bucketName) {
+		return stream(s3Client, new ListObjectsRequest().withBucketName(bucketName), DEFAULT_LOOK_AHEAD);
+	}
+
+	/***
+	 * Lists the objects selected by the specified request.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param request The listing request; bucket name, prefix, marker and page size are honored.
+	 * @param lookAhead The maximum number of pages fetched ahead of the caller.
+	 * @return The lazy stream of object summaries, in key order.
+	 */
+	public static Stream<S3ObjectSummary> stream(AmazonS3 s3Client, ListObjectsRequest request, int lookAhead) {
+		PrefetchingSpliterator spliterator = new PrefetchingSpliterator(s3Client, request, lookAhead);
+		return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+	}
+
+	/*
+	 * A page handed over from the background thread to the consumer.
+	 * The last page is empty and carries the listing error, if any.
+	 */
+	private static class Page {
+		final List<S3ObjectSummary> summaries;
+		final boolean last;
+		final RuntimeException error;
+
+		Page(List<S3ObjectSummary> summaries, boolean last, RuntimeException error) {
+			this.summaries = summaries;
+			this.last = last;
+			this.error = error;
+		}
+	}
+
+	/*
+	 * Spliterator fed by a background thread through a bounded queue of pages.
+	 */
+	private static class PrefetchingSpliterator extends Spliterators.AbstractSpliterator<S3ObjectSummary> {
+
+		private final BlockingQueue<Page> pages;
+		private final Future<?> fetcher;
+		private Iterator<S3ObjectSummary> current = Collections.<S3ObjectSummary>emptyList().iterator();
+		private boolean done;
+
+		PrefetchingSpliterator(AmazonS3 s3Client, ListObjectsRequest request, int lookAhead) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+			this.pages = new ArrayBlockingQueue<Page>(Math.max(lookAhead, 1));
+			this.fetcher = fetchers.submit(() -> fetch(s3Client, request));
+		}
+
+		/*
+		 * Fetches the pages until the listing is complete or the consumer goes away.
+		 */
+		private void fetch(AmazonS3 s3Client, ListObjectsRequest request) {
+			try {
+				ObjectListing listing = s3Client.listObjects(request);
+				while (listing.isTruncated()) {
+					pages.put(new Page(listing.getObjectSummaries(), false, null));
+					listing = s3Client.listNextBatchOfObjects(listing);
+				}
+				pages.put(new Page(listing.getObjectSummaries(), false, null));
+				pages.put(new Page(Collections.<S3ObjectSummary>emptyList(), true, null));
+			}
+			catch (InterruptedException e) {
+				// The stream was closed.
+			}
+			catch (RuntimeException e) {
+				try {
+					pages.put(new Page(Collections.<S3ObjectSummary>emptyList(), true, e));
+				}
+				catch (InterruptedException ie) {
+					// The stream was closed.
+				}
+			}
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super S3ObjectSummary> action) {
+			while (!current.hasNext()) {
+				if (done)
+					return false;
+				Page page;
+				try {
+					page = pages.take();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					close();
+					throw new AmazonClientException("Listing interrupted", e);
+				}
+				if (page.last) {
+					done = true;
+					if (page.error != null)
+						throw page.error;
+					return false;
+				}
+				current = page.summaries.iterator();
+			}
+			action.accept(current.next());
+			return true;
+		}
+
+		/*
+		 * Stops the background thread.
+		 */
+		void close() {
+			done = true;
+			fetcher.cancel(true);
+		}
+	}
+}
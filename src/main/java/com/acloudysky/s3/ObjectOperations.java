@@ -1,207 +1,819 @@
-package com.acloudysky.s3;
-
-import java.io.IOException;
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.DeleteObjectRequest;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.model.S3Object;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-
-/***
- * Performs S3 object operations. 
- * Each method calls the related AWS s3 API. 
- * <p>For more information, see 
- * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingObjects.html" target="_blank">Working with Amazon S3 Objects</a>.
- * </p>
- * @author Michael Miele
- *
- */
-public class ObjectOperations {
-	
-	// Authorized client
-	private static AmazonS3 s3Client;
-	
-	
-	/***
-	 * Initializes global status variables.
-	 * @param authorizedClient Client authorized to access the S3 service.
-	 */
-	public static void initObjectOperations(AmazonS3 authorizedClient) {
-		s3Client = authorizedClient;
-	}
-	
-	    
-    /***
-     * Uploads an object to a bucket. 
-     * <b>Notes</b> 
-     * <ul>
-     *   <li>You can easily upload a file to S3, or upload directly an 
-     * 		InputStream if you know the length of the data in the stream </li>
-     *   <li>You can also specify your own metadata when uploading to S3, which allows you 
-     * 		to set a variety of options like content-type and content-encoding, plus additional 
-     * 		metadata specific to your applications</li>
-     * </ul>
-     * @param bucketName The name of the bucket to hold the object
-     * @param keyName The name (key name) of the object to upload
-     * @param fileName The name of the object to upload. In the example this is a text file 
-     * that must already exist in the resources folder. 
-     * @throws IOException Error encountered while uploading the object
-     */
-	public static void uploadObject(String bucketName, String keyName, String fileName) throws IOException {			
-		
-		try {
-	            // Upload an object to the selected bucket. 
-				System.out.println(String.format("\nUpload %s to S3", keyName));
-	            s3Client.putObject(new PutObjectRequest(bucketName, keyName, Utility.getResourceFile(fileName)));
-          
-            }
-        	catch (AmazonServiceException ase) {
-	        	StringBuffer err = new StringBuffer();
-	        	
-	        	err.append(("Caught an AmazonServiceException, which means your request made it "
-	                      + "to Amazon S3, but was rejected with an error response for some reason."));
-	       	   	err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
-	       	   	err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
-	       	   	err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
-	       	   	err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
-	       	   	err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
-	        	
-        	} 
-			catch (AmazonClientException ace) {
-	            System.out.println("Caught an AmazonClientException, which means the client encountered "
-	                    + "a serious internal problem while trying to communicate with S3, "
-	                    + "such as not being able to access the network.");
-	            System.out.println("Error Message: " + ace.getMessage());
-        }
-    }
-	
-    
-	/***
-	 * Downloads an object. 
-	 * <b>Notes</b>
-	 * <ul>
-	 * 	<li>When you download an object, you get all of the object's metadata and a stream 
-	 * 	from which to read the contents</li>
-	 * 	<li>It's important to read the contents of the stream as quickly as possible 
-	 * 	since the data is streamed directly from Amazon S3 and your network connection 
-	 * 	remains open until you read all the data or close the input stream</li>
-	 * 	<li>GetObjectRequest also supports several other options, including conditional 
-	 * 	downloading of objects based on modification times, ETags, and selectively 
-	 * 	downloading a range of an object</li>
-	 * </ul>
-	 * @param bucketName The name of the bucket that contains the object
-	 * @param keyName The name of the object to download
-	 * @throws IOException Error encountered while downloading the object
-	 */
-	public static void downloadObject(String bucketName, String keyName) throws IOException {
-	
-		try {
-		
-				System.out.println(String.format("\nDownload %s", keyName));
-				S3Object object = s3Client.getObject(new GetObjectRequest(bucketName, keyName));
-				System.out.println(String.format("Content-Type: %s", object.getObjectMetadata().getContentType()));
-				Utility.displayTextInputStream(object.getObjectContent());
-        }
-        
-     	catch (AmazonServiceException ase) {
-     		StringBuffer err = new StringBuffer();
-    	
-     		err.append(("Caught an AmazonServiceException, which means your request made it "
-                  + "to Amazon S3, but was rejected with an error response for some reason."));
-   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
-   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
-   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
-   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
-   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
-    	
-     	} 
-		catch (AmazonClientException ace) {
-     		System.out.println("Caught an AmazonClientException, which means the client encountered "
-                + "a serious internal problem while trying to communicate with S3, "
-                + "such as not being able to access the network.");
-     		System.out.println("Error Message: " + ace.getMessage());
-     	}
-    }
-	
-	/***
-	 * Lists objects contained in the specified object.
-	 * @param bucketName The name of the bucket that contains the objects
-	 * @throws IOException Error encountered while lisitng the objects
-	 */
-	public static void listObject(String bucketName) throws IOException {			
-		
-		try {
-				System.out.println(String.format("\nList objects"));
-			   
-	            ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-	            	.withBucketName(bucketName);
-	            ObjectListing objectListing;            
-	            do {
-	                objectListing = s3Client.listObjects(listObjectsRequest);
-	                for (S3ObjectSummary objectSummary : 
-	                	objectListing.getObjectSummaries()) {
-	                    System.out.println(" - " + objectSummary.getKey() + "  " +
-	                            "(size = " + objectSummary.getSize() + 
-	                            ")");
-	                }
-	                listObjectsRequest.setMarker(objectListing.getNextMarker());
-	            } while (objectListing.isTruncated());
-		}
-		catch (AmazonServiceException ase) {
-     		StringBuffer err = new StringBuffer();
-    	
-     		err.append(("Caught an AmazonServiceException, which means your request made it "
-                  + "to Amazon S3, but was rejected with an error response for some reason."));
-   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
-   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
-   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
-   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
-   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
-    	
-     	} 
-		catch (AmazonClientException ace) {
-     		System.out.println("Caught an AmazonClientException, which means the client encountered "
-                + "a serious internal problem while trying to communicate with S3, "
-                + "such as not being able to access the network.");
-     		System.out.println("Error Message: " + ace.getMessage());
-     	}	
- 	}
-	
-	/***
-	 * Deletes object in a non-versioned bucket.
-	 * @param bucketName he name of the bucket that contains the object
-	 * @param keyName The name of the object to delete
-	 * @throws IOException Error encountered while deleting the object
-	 */
-	public static void deleteObject(String bucketName, String keyName) throws IOException {
-		
-		try {
-				System.out.println(String.format("\nDelete object %s", keyName));
-				s3Client.deleteObject(new DeleteObjectRequest(bucketName, keyName));
-        }  
-     	catch (AmazonServiceException ase) {
-     		StringBuffer err = new StringBuffer();
-    	
-     		err.append(("Caught an AmazonServiceException, which means your request made it "
-                  + "to Amazon S3, but was rejected with an error response for some reason."));
-   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
-   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
-   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
-   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
-   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
-    	
-     	} 
-		catch (AmazonClientException ace) {
-     		System.out.println("Caught an AmazonClientException, which means the client encountered "
-                + "a serious internal problem while trying to communicate with S3, "
-                + "such as not being able to access the network.");
-     		System.out.println("Error Message: " + ace.getMessage());
-     	}
-    }
-	
-}
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.stream.Stream;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Performs S3 object operations. 
+ * Each method calls the related AWS s3 API. 
+ * <p>For more information, see 
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/UsingObjects.html" target="_blank">Working with Amazon S3 Objects</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ObjectOperations {
+	
+	// Authorized client
+	private static AmazonS3 s3Client;
+	
+	// Part size and concurrency settings used by the transfer operations.
+	private static TransferSettings transferSettings = new TransferSettings();
+	
+	// Regional clients, or null to send all the requests through the authorized client.
+	private static S3ClientPool clientPool;
+
+	// Local copies of the downloaded objects, or null to always download them.
+	private static ObjectCache objectCache;
+
+	// true when the standard output is reserved for the object content, the messages going to the standard error.
+	private static boolean standardOutputForData;
+
+	// Serializes the objects streamed to the standard output, so their bytes do not interleave.
+	private static final Object STANDARD_OUTPUT_LOCK = new Object();
+
+	// true when the standard input is not read by the application, so it can carry object content.
+	private static boolean standardInputForData;
+	
+	
+	/***
+	 * Initializes global status variables.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public static void initObjectOperations(AmazonS3 authorizedClient) {
+		s3Client = authorizedClient;
+	}
+	
+	/***
+	 * Initializes global status variables.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 * @param settings The settings used by the transfer operations.
+	 */
+	public static void initObjectOperations(AmazonS3 authorizedClient, TransferSettings settings) {
+		s3Client = authorizedClient;
+		transferSettings = settings;
+	}
+	
+	/***
+	 * Initializes global status variables. 
+	 * Each request is sent to the client of the region that holds the bucket.
+	 * @param pool The regional clients.
+	 * @param settings The settings used by the transfer operations.
+	 */
+	public static void initObjectOperations(S3ClientPool pool, TransferSettings settings) {
+		clientPool = pool;
+		s3Client = pool.getClient(pool.getHomeRegion());
+		transferSettings = settings;
+	}
+
+	/***
+	 * Sets the cache through which {@link #downloadObject(String, String)} reads the objects.
+	 * @param cache The cache, or null to always download the objects.
+	 */
+	public static void initObjectCache(ObjectCache cache) {
+		objectCache = cache;
+	}
+
+	/***
+	 * Reserves the standard output for the object content, so that {@link #streamObject(String, String, String)}
+	 * accepts "-" as destination. The caller must send all the messages of the application to the standard error.
+	 * @param reserved true if nothing but the object content is written to the standard output.
+	 */
+	public static void initStandardOutput(boolean reserved) {
+		standardOutputForData = reserved;
+	}
+
+	/***
+	 * Frees the standard input for the object content, so that {@link #uploadStream(String, String, String)}
+	 * accepts "-" as source. It must not be set when the menu or the batch script are read from the standard input.
+	 * @param free true if the application does not read the standard input otherwise.
+	 */
+	public static void initStandardInput(boolean free) {
+		standardInputForData = free;
+	}
+
+	/***
+	 * Gets the cache through which the objects are read.
+	 * @return The cache, or null if the objects are always downloaded.
+	 */
+	public static ObjectCache getObjectCache() {
+		return objectCache;
+	}
+
+	/*
+	 * Gets the client to use for the specified bucket.
+	 */
+	private static AmazonS3 client(String bucketName) {
+		return clientPool == null ? s3Client : clientPool.getClientForBucket(bucketName);
+	}
+	
+	    
+    /***
+     * Uploads an object to a bucket. 
+     * <b>Notes</b> 
+     * <ul>
+     *   <li>You can easily upload a file to S3, or upload directly an 
+     * 		InputStream if you know the length of the data in the stream </li>
+     *   <li>You can also specify your own metadata when uploading to S3, which allows you 
+     * 		to set a variety of options like content-type and content-encoding, plus additional 
+     * 		metadata specific to your applications</li>
+     * </ul>
+     * @param bucketName The name of the bucket to hold the object
+     * @param keyName The name (key name) of the object to upload
+     * @param fileName The name of the object to upload. In the example this is a text file 
+     * that must already exist in the resources folder. 
+     * @throws IOException Error encountered while uploading the object
+     * @see #uploadFile(String, String, File)
+     */
+	public static void uploadObject(String bucketName, String keyName, String fileName) throws IOException {			
+		uploadFile(bucketName, keyName, Utility.getResourceFile(fileName));
+    }
+	
+	/***
+	 * Uploads a local file to a bucket. 
+	 * <b>Notes</b> 
+	 * <ul>
+	 *   <li>Files smaller than the multipart threshold are sent with a single PUT request</li>
+	 *   <li>Larger files are split in parts which are sent concurrently, see {@link MultipartUploader}. 
+	 *   	The part size and the number of concurrent parts are defined by the {@link TransferSettings}</li>
+	 *   <li>When a codec is set in the {@link TransferSettings}, the file is compressed while it is sent, 
+	 *   	see {@link Compression}</li>
+	 *   <li>When checksums are enabled in the {@link TransferSettings}, they are computed while the file is sent, 
+	 *   	checked against the ETags and stored as metadata, see {@link Checksums}</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param file The file to upload
+	 * @throws IOException Error encountered while uploading the object
+	 */
+	public static void uploadFile(String bucketName, String keyName, File file) throws IOException {
+		
+		if (file == null || !file.isFile())
+			throw new FileNotFoundException(String.format("File %s not found", file));
+		
+		try {
+	            // Upload an object to the selected bucket. 
+				System.out.println(String.format("\nUpload %s to S3", keyName));
+				if (transferSettings.getCompression() != null) {
+					long stored = Compression.upload(client(bucketName), transferSettings, bucketName, keyName, file);
+					System.out.println(String.format("Compressed %d bytes to %d (%s, %.1f%%)", file.length(), stored,
+							transferSettings.getCompression(), 100.0 * stored / Math.max(file.length(), 1)));
+				}
+				else if (file.length() >= transferSettings.getMultipartThreshold()) {
+					MultipartUploader uploader = new MultipartUploader(client(bucketName), transferSettings);
+					uploader.upload(bucketName, keyName, file);
+				}
+				else if (transferSettings.isChecksums()) {
+					// The file is read once into memory, where its checksums are computed before it is sent.
+					try (MultipartOutputStream out = new MultipartOutputStream(client(bucketName), transferSettings, bucketName, keyName, null)) {
+						Files.copy(file.toPath(), out);
+					}
+				}
+				else
+					client(bucketName).putObject(new PutObjectRequest(bucketName, keyName, file));
+          
+            }
+        	catch (AmazonServiceException ase) {
+	        	StringBuffer err = new StringBuffer();
+	        	
+	        	err.append(("Caught an AmazonServiceException, which means your request made it "
+	                      + "to Amazon S3, but was rejected with an error response for some reason."));
+	       	   	err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+	       	   	err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+	       	   	err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+	       	   	err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+	       	   	err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+	       	   	System.out.print(err.toString());
+	        	
+        	} 
+			catch (AmazonClientException ace) {
+	            System.out.println("Caught an AmazonClientException, which means the client encountered "
+	                    + "a serious internal problem while trying to communicate with S3, "
+	                    + "such as not being able to access the network.");
+	            System.out.println("Error Message: " + ace.getMessage());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(String.format("Upload of %s interrupted", keyName));
+			}
+			finally {
+				// The object may have been replaced, even by an upload that failed at the end.
+				if (objectCache != null)
+					objectCache.invalidate(bucketName, keyName);
+			}
+	}
+	
+	
+	/***
+	 * Uploads the content of a stream whose length is not known in advance, such as the output of another tool.
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The content is read into part buffers; each part is sent as soon as it is full, 
+	 * 	while the next one is read, see {@link MultipartOutputStream}</li>
+	 * 	<li>At most (concurrency + 1) parts are held in memory; the content is never 
+	 * 	spooled to disk, and a short stream is sent with a single request</li>
+	 * 	<li>The object can hold up to 10,000 parts: raise the part size for streams 
+	 * 	larger than 10,000 times the part size</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket to hold the object
+	 * @param keyName The name (key name) of the object to upload
+	 * @param source "-" for the standard input, or the path of a named pipe or file
+	 * @throws IOException Error encountered while reading the content or uploading the object
+	 * @throws IllegalArgumentException The source is the standard input, which also carries the menu or the commands
+	 */
+	public static void uploadStream(String bucketName, String keyName, String source) throws IOException {
+		
+		boolean fromStandardInput = "-".equals(source);
+		if (fromStandardInput && !standardInputForData)
+			throw new IllegalArgumentException(
+					"The standard input carries the menu or the commands: give a named pipe or a file, or read the commands from a script file");
+		// The standard input is read through its file descriptor, straight into the part buffers.
+		InputStream in = fromStandardInput ? new FileInputStream(FileDescriptor.in) : new FileInputStream(source);
+		try {
+				System.out.println(String.format("\nUpload %s to S3 from %s", keyName, fromStandardInput ? "standard input" : source));
+				long start = System.currentTimeMillis();
+				long bytes;
+				if (transferSettings.getCompression() != null)
+					bytes = Compression.upload(client(bucketName), transferSettings, bucketName, keyName, in, -1);
+				else {
+					MultipartOutputStream out = new MultipartOutputStream(client(bucketName), transferSettings, bucketName, keyName, null);
+					try {
+						out.transferFrom(in);
+						out.close();
+					}
+					catch (IOException | RuntimeException e) {
+						out.abort();
+						throw e;
+					}
+					bytes = out.getBytesWritten();
+				}
+				long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+				System.out.println(String.format("Uploaded %d bytes in %d ms (%.1f MB/s)", 
+						bytes, elapsed, (bytes / (double) TransferSettings.MB) / (elapsed / 1000.0)));
+		}
+		catch (AmazonServiceException ase) {
+        	StringBuffer err = new StringBuffer();
+        	
+        	err.append(("Caught an AmazonServiceException, which means your request made it "
+                      + "to Amazon S3, but was rejected with an error response for some reason."));
+       	   	err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+       	   	err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+       	   	err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+       	   	err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+       	   	err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+       	   	System.out.print(err.toString());
+        	
+    	} 
+		catch (AmazonClientException ace) {
+            System.out.println("Caught an AmazonClientException, which means the client encountered "
+                    + "a serious internal problem while trying to communicate with S3, "
+                    + "such as not being able to access the network.");
+            System.out.println("Error Message: " + ace.getMessage());
+		}
+		finally {
+			// The standard input stays open for the rest of the application.
+			if (!fromStandardInput)
+				in.close();
+			if (objectCache != null)
+				objectCache.invalidate(bucketName, keyName);
+		}
+	}
+	
+    
+	/***
+	 * Downloads an object. 
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>When you download an object, you get all of the object's metadata and a stream 
+	 * 	from which to read the contents</li>
+	 * 	<li>It's important to read the contents of the stream as quickly as possible 
+	 * 	since the data is streamed directly from Amazon S3 and your network connection 
+	 * 	remains open until you read all the data or close the input stream</li>
+	 * 	<li>GetObjectRequest also supports several other options, including conditional 
+	 * 	downloading of objects based on modification times, ETags, and selectively 
+	 * 	downloading a range of an object</li>
+	 * 	<li>An object compressed on upload is decompressed transparently, see {@link Compression}</li>
+	 * 	<li>The checksums stored on upload are verified as the content is read, see {@link Checksums}</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @throws IOException Error encountered while downloading the object
+	 */
+	public static void downloadObject(String bucketName, String keyName) throws IOException {
+	
+		try {
+		
+				System.out.println(String.format("\nDownload %s", keyName));
+				if (objectCache != null) {
+					// Read the local copy, revalidated with a conditional GET; it was verified when downloaded.
+					S3Object object = objectCache.getObject(bucketName, keyName);
+					System.out.println(String.format("Content-Type: %s", object.getObjectMetadata().getContentType()));
+					try (InputStream content = object.getObjectContent()) {
+						Utility.displayTextInputStream(Compression.decompress(content, object.getObjectMetadata()));
+					}
+					return;
+				}
+				// Retry transient errors; duplicate a slow request if hedging is enabled.
+				GetObjectRequest request = new GetObjectRequest(bucketName, keyName);
+				S3Object object = Retries.call(() -> transferSettings.getHedgePercentile() > 0
+						? new HedgedGetter(client(bucketName), transferSettings.getHedgePercentile()).getObject(request)
+						: client(bucketName).getObject(request), transferSettings.getMaxPartAttempts());
+				System.out.println(String.format("Content-Type: %s", object.getObjectMetadata().getContentType()));
+				// Objects compressed on upload are decompressed while they are read.
+				Utility.displayTextInputStream(Compression.decompress(
+						Checksums.verifying(object.getObjectContent(), keyName, object.getObjectMetadata()), object.getObjectMetadata()));
+        }
+        
+     	catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+    	
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		System.out.print(err.toString());
+    	
+     	} 
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Download of %s interrupted", keyName));
+		}
+    }
+	
+	/***
+	 * Downloads an object to a local file.
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The object is split in byte ranges which are downloaded concurrently, 
+	 * 	see {@link RangedDownloader}</li>
+	 * 	<li>The bytes are written to the file as they arrive, they are never 
+	 * 	decoded as text, so this method works for binary objects of any size</li>
+	 * 	<li>An object compressed on upload is decompressed into the file</li>
+	 * 	<li>The CRC-32C stored on upload is verified as the ranges arrive</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @param file The destination file. An existing file is overwritten.
+	 * @throws IOException Error encountered while downloading the object
+	 */
+	public static void downloadObjectToFile(String bucketName, String keyName, File file) throws IOException {
+	
+		try {
+		
+				System.out.println(String.format("\nDownload %s to %s", keyName, file.getPath()));
+				RangedDownloader downloader = new RangedDownloader(client(bucketName), transferSettings);
+				long start = System.currentTimeMillis();
+				long bytes = downloader.download(bucketName, keyName, file);
+				long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+				System.out.println(String.format("Downloaded %d bytes in %d ms (%.1f MB/s)", 
+						bytes, elapsed, (bytes / (double) TransferSettings.MB) / (elapsed / 1000.0)));
+        }
+        
+     	catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+    	
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		System.out.print(err.toString());
+    	
+     	} 
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Download of %s interrupted", keyName));
+		}
+    }
+	
+	/***
+	 * Streams the bytes of an object, unchanged, to the standard output, a named pipe or a file.
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The bytes are copied through a buffer as they arrive, they are never decoded 
+	 * 	as text, so the output can be piped into another tool</li>
+	 * 	<li>An object compressed on upload is decompressed on the way, and its stored 
+	 * 	checksums are verified</li>
+	 * 	<li>The standard output can carry the object only when it is reserved for the object 
+	 * 	content, see {@link #initStandardOutput(boolean)}; the objects streamed to it are written one at a time</li>
+	 * 	<li>The progress and the transfer rate are displayed on the standard error 
+	 * 	when the standard output carries the object</li>
+	 * </ul>
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @param destination "-" for the standard output, or the path of a file or named pipe. An existing file is overwritten.
+	 * @throws IOException Error encountered while downloading or writing the object
+	 * @throws IllegalArgumentException The destination is the standard output, which also carries the messages
+	 */
+	public static void streamObject(String bucketName, String keyName, String destination) throws IOException {
+	
+		// Keep the messages out of the standard output when it carries the object.
+		boolean toStandardOutput = "-".equals(destination);
+		if (toStandardOutput && !standardOutputForData)
+			throw new IllegalArgumentException(
+					"The standard output carries the messages: start the application with --stdout-data to stream objects to it");
+		PrintStream console = toStandardOutput ? System.err : System.out;
+		try {
+		
+				console.println(String.format("\nStream %s to %s", keyName, toStandardOutput ? "standard output" : destination));
+				GetObjectRequest request = new GetObjectRequest(bucketName, keyName);
+				S3Object object = Retries.call(() -> transferSettings.getHedgePercentile() > 0
+						? new HedgedGetter(client(bucketName), transferSettings.getHedgePercentile()).getObject(request)
+						: client(bucketName).getObject(request), transferSettings.getMaxPartAttempts());
+				ObjectMetadata metadata = object.getObjectMetadata();
+				long expectedLength = Compression.isCompressed(metadata) 
+						? Compression.getUncompressedLength(metadata) : metadata.getContentLength();
+				
+				long start = System.currentTimeMillis();
+				long bytes;
+				try (InputStream content = Compression.decompress(
+						Checksums.verifying(object.getObjectContent(), keyName, metadata), metadata)) {
+					// The standard output is written directly, not through the line-oriented System.out.
+					if (toStandardOutput) {
+						// The standard output stays open for the rest of the application.
+						synchronized (STANDARD_OUTPUT_LOCK) {
+							bytes = Utility.copyStream(content, new FileOutputStream(FileDescriptor.out),
+									new byte[transferSettings.getBufferSize()], expectedLength, console);
+						}
+					}
+					else {
+						try (OutputStream out = new FileOutputStream(destination)) {
+							bytes = Utility.copyStream(content, out, new byte[transferSettings.getBufferSize()], expectedLength, console);
+						}
+					}
+				}
+				long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+				console.println(String.format("Streamed %d bytes in %d ms (%.1f MB/s)", 
+						bytes, elapsed, (bytes / (double) TransferSettings.MB) / (elapsed / 1000.0)));
+        }
+        
+     	catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+    	
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		console.print(err.toString());
+    	
+     	} 
+		catch (AmazonClientException ace) {
+     		console.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		console.println("Error Message: " + ace.getMessage());
+     	}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Download of %s interrupted", keyName));
+		}
+    }
+	
+	/***
+	 * Lists objects contained in the specified object.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @throws IOException Error encountered while lisitng the objects
+	 */
+	public static void listObject(String bucketName) throws IOException {			
+		
+		try {
+				System.out.println(String.format("\nList objects"));
+			   
+	            // The next page is fetched while the current one is printed.
+	            try (Stream<S3ObjectSummary> objects = ObjectListings.stream(client(bucketName), bucketName)) {
+	            	objects.forEach(objectSummary -> 
+	            		System.out.println(" - " + objectSummary.getKey() + "  " +
+	                            "(size = " + objectSummary.getSize() + 
+	                            ")"));
+	            }
+		}
+		catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+    	
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		System.out.print(err.toString());
+    	
+     	} 
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}	
+ 	}
+	
+	/***
+	 * Lists objects contained in the specified bucket, listing partitions of the keyspace concurrently.
+	 * This is meant for very large buckets, see {@link ParallelLister}.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param concurrency The number of partitions listed at the same time
+	 * @param ordered true to display the objects in key order
+	 * @throws IOException Error encountered while listing the objects
+	 */
+	public static void listObjectParallel(String bucketName, int concurrency, boolean ordered) throws IOException {			
+		
+		try {
+				System.out.println(String.format("\nList objects (%d partitions at a time)", concurrency));
+				
+				long start = System.currentTimeMillis();
+				long[] count = new long[1];
+				ParallelLister lister = new ParallelLister(client(bucketName), concurrency);
+				try (Stream<S3ObjectSummary> objects = lister.list(bucketName, "", ordered)) {
+	            	objects.forEach(objectSummary -> {
+	            		count[0]++;
+	            		System.out.println(" - " + objectSummary.getKey() + "  " +
+	                            "(size = " + objectSummary.getSize() + 
+	                            ")");
+	            	});
+	            }
+				System.out.println(String.format("Listed %d objects in %d ms", count[0], System.currentTimeMillis() - start));
+		}
+		catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+    	
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		System.out.print(err.toString());
+    	
+     	} 
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}	
+ 	}
+	
+	/***
+	 * Synchronizes a local directory to a bucket.
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>Only the files that are new or changed are uploaded, see {@link DirectorySync}</li>
+	 * 	<li>The files are transferred concurrently, as defined by the {@link TransferSettings}</li>
+	 * </ul>
+	 * @param bucketName The name of the destination bucket
+	 * @param directory The local directory
+	 * @param prefix The prefix under which the files are stored, or an empty string for the bucket root
+	 * @param deleteOrphans true to delete the objects under the prefix that have no matching local file
+	 * @throws IOException Error encountered while reading the directory
+	 */
+	public static void syncDirectory(String bucketName, File directory, String prefix, boolean deleteOrphans) throws IOException {
+
+		try {
+				System.out.println(String.format("\nSync %s to %s/%s", directory.getPath(), bucketName, prefix));
+				long start = System.currentTimeMillis();
+				DirectorySync sync = new DirectorySync(client(bucketName), transferSettings);
+				DirectorySync.Result result = sync.sync(directory, bucketName, prefix, deleteOrphans);
+				System.out.println(String.format("%d uploaded (%d bytes), %d unchanged, %d deleted, %d failed in %d ms",
+						result.getUploaded(), result.getBytesUploaded(), result.getUnchanged(),
+						result.getDeleted(), result.getFailed(), System.currentTimeMillis() - start));
+		}
+		catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		System.out.print(err.toString());
+
+     	}
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Sync of %s interrupted", directory));
+		}
+		finally {
+			// The objects under the prefix may have been replaced or deleted.
+			if (objectCache != null)
+				objectCache.invalidatePrefix(bucketName, prefix);
+		}
+	}
+
+	/***
+	 * Copies the objects under a prefix to another bucket or prefix.
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The copies are performed by S3: the content does not go through the client, see {@link ParallelCopier}</li>
+	 * 	<li>The objects larger than 256 MB are copied in parts, the parts being copied concurrently</li>
+	 * </ul>
+	 * @param sourceBucket The name of the bucket that contains the objects
+	 * @param sourcePrefix The prefix of the keys to copy, or an empty string for the whole bucket
+	 * @param destinationBucket The name of the bucket to hold the copies
+	 * @param destinationPrefix The prefix replacing the source prefix in the keys of the copies, or null to keep the keys
+	 * @param concurrency The number of objects, and of parts, copied at the same time, or 0 for the transfer settings
+	 * @throws IOException The copy was interrupted
+	 */
+	public static void copyObjects(String sourceBucket, String sourcePrefix, String destinationBucket,
+			String destinationPrefix, int concurrency) throws IOException {
+
+		try {
+				System.out.println(String.format("\nCopy %s/%s to %s/%s", sourceBucket, sourcePrefix, destinationBucket,
+						destinationPrefix == null ? sourcePrefix : destinationPrefix));
+				long start = System.currentTimeMillis();
+				TransferSettings settings = new TransferSettings()
+						.withConcurrency(concurrency > 0 ? concurrency : transferSettings.getConcurrency())
+						.withMaxPartAttempts(transferSettings.getMaxPartAttempts());
+				// The copy requests are sent to the region of the destination.
+				ParallelCopier copier = new ParallelCopier(client(destinationBucket), settings)
+						.withSourceClients(ObjectOperations::client);
+				ParallelCopier.Result result = copier.copy(sourceBucket, sourcePrefix, destinationBucket, destinationPrefix);
+				long elapsed = Math.max(1, System.currentTimeMillis() - start);
+				System.out.println(String.format("%d copied (%d in parts, %d bytes), %d failed in %d ms, %.1f objects/s, %.1f MB/s",
+						result.getCopied(), result.getMultipart(), result.getBytesCopied(), result.getFailed(), elapsed,
+						result.getCopied() * 1000.0 / elapsed, result.getBytesCopied() * 1000.0 / elapsed / TransferSettings.MB));
+		}
+		catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		System.out.print(err.toString());
+
+     	}
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Copy of %s/%s interrupted", sourceBucket, sourcePrefix));
+		}
+		finally {
+			// The copies may have replaced objects under the destination prefix.
+			if (objectCache != null)
+				objectCache.invalidatePrefix(destinationBucket, destinationPrefix == null ? sourcePrefix : destinationPrefix);
+		}
+	}
+
+	/***
+	 * Runs an operation on each object listed in a manifest.
+	 * <b>Notes</b>
+	 * <ul>
+	 * 	<li>The manifest is streamed and the operations run concurrently, see {@link ManifestRunner}</li>
+	 * 	<li>A run that stopped is resumed from the checkpoint saved next to the manifest</li>
+	 * </ul>
+	 * @param operation The operation: delete, copy, restore or head
+	 * @param manifest The manifest: a CSV file of bucket,key[,version] rows, or a file of keys
+	 * @param bucketName The name of the bucket of the keys, or null for a CSV manifest
+	 * @param target The destination bucket and prefix (bucket/prefix) of a copy, the number of days of a restore, or null
+	 * @param concurrency The number of requests sent at the same time, or 0 for the transfer settings
+	 * @throws IOException Error encountered while reading the manifest or saving the progress
+	 */
+	public static void runManifest(String operation, File manifest, String bucketName, String target, int concurrency)
+			throws IOException {
+
+		try {
+				ManifestRunner.Operation op = ManifestRunner.Operation.valueOf(operation.toUpperCase());
+				System.out.println(String.format("\nRun %s on %s", op.toString().toLowerCase(), manifest));
+				long start = System.currentTimeMillis();
+				TransferSettings settings = new TransferSettings()
+						.withConcurrency(concurrency > 0 ? concurrency : transferSettings.getConcurrency())
+						.withMaxPartAttempts(transferSettings.getMaxPartAttempts());
+				ManifestRunner runner = new ManifestRunner(ObjectOperations::client, settings, op)
+						.withBucket(bucketName)
+						.withObjectCache(objectCache);
+				if (op == ManifestRunner.Operation.COPY) {
+					if (target == null)
+						throw new IllegalArgumentException("The destination of the copies is missing");
+					int slash = target.indexOf('/');
+					runner.withDestination(slash < 0 ? target : target.substring(0, slash), slash < 0 ? null : target.substring(slash + 1));
+				}
+				else if (op == ManifestRunner.Operation.RESTORE && target != null)
+					runner.withRestoreDays(Integer.parseInt(target));
+				ManifestRunner.Result result = runner.run(manifest);
+				System.out.println(String.format("%d succeeded, %d failed in %d ms%s", result.getSucceeded(), result.getFailed(),
+						System.currentTimeMillis() - start,
+						result.getResumedLine() > 0 ? String.format(" (resumed after line %d)", result.getResumedLine()) : ""));
+				if (result.getFailures() != null)
+					System.out.println(String.format("Failed lines written to %s", result.getFailures()));
+				if (result.getMetadata() != null)
+					System.out.println(String.format("Metadata written to %s", result.getMetadata()));
+		}
+		catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		System.out.print(err.toString());
+
+     	}
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(String.format("Run of %s interrupted, resume it with the same command", manifest));
+		}
+	}
+
+	/***
+	 * Deletes object in a non-versioned bucket.
+	 * @param bucketName he name of the bucket that contains the object
+	 * @param keyName The name of the object to delete
+	 * @throws IOException Error encountered while deleting the object
+	 */
+	public static void deleteObject(String bucketName, String keyName) throws IOException {
+		
+		try {
+				System.out.println(String.format("\nDelete object %s", keyName));
+				client(bucketName).deleteObject(new DeleteObjectRequest(bucketName, keyName));
+				if (objectCache != null)
+					objectCache.invalidate(bucketName, keyName);
+        }  
+     	catch (AmazonServiceException ase) {
+     		StringBuffer err = new StringBuffer();
+    	
+     		err.append(("Caught an AmazonServiceException, which means your request made it "
+                  + "to Amazon S3, but was rejected with an error response for some reason."));
+   	   		err.append(String.format("%n Error Message:  %s %n", ase.getMessage()));
+   	   		err.append(String.format(" HTTP Status Code: %s %n", ase.getStatusCode()));
+   	   		err.append(String.format(" AWS Error Code: %s %n", ase.getErrorCode()));
+   	   		err.append(String.format(" Error Type: %s %n", ase.getErrorType()));
+   	   		err.append(String.format(" Request ID: %s %n", ase.getRequestId()));
+   	   		System.out.print(err.toString());
+    	
+     	} 
+		catch (AmazonClientException ace) {
+     		System.out.println("Caught an AmazonClientException, which means the client encountered "
+                + "a serious internal problem while trying to communicate with S3, "
+                + "such as not being able to access the network.");
+     		System.out.println("Error Message: " + ace.getMessage());
+     	}
+    }
+	
+}
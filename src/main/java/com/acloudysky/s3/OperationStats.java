@@ -0,0 +1,87 @@
+package com.acloudysky.s3;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Latency and request statistics of one S3 operation, such as <i>PutObject</i>.
+ * The latencies are recorded in microseconds.
+ * @author Michael Miele
+ *
+ */
+public class OperationStats implements OperationStatsMBean {
+
+	private final String name;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final LongAdder errors = new LongAdder();
+
+	OperationStats(String name) {
+		this.name = name;
+	}
+
+	/***
+	 * Records a request.
+	 * @param micros The latency of the request in microseconds.
+	 * @param failed true if the request failed.
+	 */
+	void record(long micros, boolean failed) {
+		latencies.record(micros);
+		if (failed)
+			errors.increment();
+	}
+
+	/***
+	 * Gets the name of the operation.
+	 * @return The name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/***
+	 * Gets the latency histogram of the operation.
+	 * @return The histogram, in microseconds.
+	 */
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	@Override
+	public long getRequestCount() {
+		return latencies.getCount();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return latencies.getMean() / 1000;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return latencies.getPercentile(50) / 1000.0;
+	}
+
+	@Override
+	public double getP90Millis() {
+		return latencies.getPercentile(90) / 1000.0;
+	}
+
+	@Override
+	public double getP99Millis() {
+		return latencies.getPercentile(99) / 1000.0;
+	}
+
+	@Override
+	public double getP999Millis() {
+		return latencies.getPercentile(99.9) / 1000.0;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return latencies.getMax() / 1000.0;
+	}
+}
@@ -0,0 +1,50 @@
+package com.acloudysky.s3;
+
+/***
+ * JMX view of the statistics of one S3 operation.
+ * @see OperationStats
+ * @author Michael Miele
+ *
+ */
+public interface OperationStatsMBean {
+
+	/***
+	 * @return The number of requests, failed ones included.
+	 */
+	long getRequestCount();
+
+	/***
+	 * @return The number of failed requests.
+	 */
+	long getErrorCount();
+
+	/***
+	 * @return The mean latency in milliseconds.
+	 */
+	double getMeanMillis();
+
+	/***
+	 * @return The median latency in milliseconds.
+	 */
+	double getP50Millis();
+
+	/***
+	 * @return The 90th percentile latency in milliseconds.
+	 */
+	double getP90Millis();
+
+	/***
+	 * @return The 99th percentile latency in milliseconds.
+	 */
+	double getP99Millis();
+
+	/***
+	 * @return The 99.9th percentile latency in milliseconds.
+	 */
+	double getP999Millis();
+
+	/***
+	 * @return The maximum latency in milliseconds.
+	 */
+	double getMaxMillis();
+}
@@ -0,0 +1,391 @@
+package com.acloudysky.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.SSEAwsKeyManagementParams;
+import com.amazonaws.services.s3.model.StorageClass;
+
+/***
+ * Copies objects between buckets and prefixes with server-side copies.
+ * <p>
+ * The content never goes through the client: S3 copies the bytes and only the requests and
+ * their responses are exchanged, so a copy is bounded by the request rate instead of the
+ * bandwidth of the host. An object up to the multipart threshold is copied with a single
+ * request. A larger object (and any object over 5 GB, the limit of a single copy) is copied
+ * in ranges with concurrent part copies, which S3 performs in parallel.
+ * </p>
+ * <p>
+ * A prefix is copied while it is listed: the objects are handed out to a bounded pool of
+ * workers as soon as they are listed, and the listing waits when the workers fall behind.
+ * Each copy is conditional on the ETag of the listed source, so an object overwritten during
+ * the copy fails instead of producing a mix of two versions. A failed object does not stop
+ * the others.
+ * </p>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/CopyingObjctsUsingLLJavaMPUapi.html" target="_blank">Copy an Object Using the Multipart Upload API</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class ParallelCopier {
+
+	// Largest object that can be copied with a single request.
+	public static final long MAX_COPY_SIZE = 5L * 1024L * TransferSettings.MB;
+
+	// Objects larger than this are copied in parts by default.
+	public static final long DEFAULT_MULTIPART_THRESHOLD = 256 * TransferSettings.MB;
+
+	// Default size of a part copy. No bytes are transferred, so parts are larger than for uploads.
+	public static final long DEFAULT_PART_SIZE = 128 * TransferSettings.MB;
+
+	// Server-side encryption algorithm of the objects encrypted with KMS keys.
+	private static final String KMS_ALGORITHM = "aws:kms";
+
+	/***
+	 * Outcome of the copy of a prefix.
+	 */
+	public static class Result {
+
+		// Counters, updated by the workers.
+		private final AtomicLong copied = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong multipart = new AtomicLong();
+		private final AtomicLong bytesCopied = new AtomicLong();
+
+		/***
+		 * @return The number of objects copied.
+		 */
+		public long getCopied() {
+			return copied.get();
+		}
+
+		/***
+		 * @return The number of objects that could not be copied.
+		 */
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/***
+		 * @return The number of objects copied in parts.
+		 */
+		public long getMultipart() {
+			return multipart.get();
+		}
+
+		/***
+		 * @return The number of bytes copied by the service.
+		 */
+		public long getBytesCopied() {
+			return bytesCopied.get();
+		}
+	}
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Clients authorized to list and read the source buckets, by bucket name.
+	private Function<String, AmazonS3> sourceClients;
+
+	// Concurrency and retry settings.
+	private final TransferSettings settings;
+
+	// Size above which objects are copied in parts.
+	private long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+
+	// Size of the part copies.
+	private long partSize = DEFAULT_PART_SIZE;
+
+	/***
+	 * Creates a copier.
+	 * @param s3Client Client authorized to access the S3 service. The requests are sent to the destination bucket.
+	 * @param settings The transfer settings. The concurrency is both the number of objects and the number
+	 * 	of parts copied at the same time.
+	 */
+	public ParallelCopier(AmazonS3 s3Client, TransferSettings settings) {
+		this.s3Client = s3Client;
+		this.settings = settings;
+		this.sourceClients = bucketName -> s3Client;
+	}
+
+	/***
+	 * Sets the clients used to list and read the sources, when they are not in the region
+	 * or the account of the destination bucket. The copy requests still go to the destination.
+	 * @param sourceClients The client of each source bucket, by bucket name.
+	 * @return This copier.
+	 */
+	public ParallelCopier withSourceClients(Function<String, AmazonS3> sourceClients) {
+		this.sourceClients = sourceClients;
+		return this;
+	}
+
+	/***
+	 * Sets the size above which objects are copied in parts.
+	 * @param multipartThreshold The number of bytes, up to {@link #MAX_COPY_SIZE}.
+	 * @return This copier.
+	 */
+	public ParallelCopier withMultipartThreshold(long multipartThreshold) {
+		if (multipartThreshold < 0 || multipartThreshold > MAX_COPY_SIZE)
+			throw new IllegalArgumentException("Multipart threshold must be between 0 and 5 GB");
+		this.multipartThreshold = multipartThreshold;
+		return this;
+	}
+
+	/***
+	 * Sets the size of the part copies. It is raised for the objects that would have more than
+	 * {@link TransferSettings#MAX_PARTS} parts.
+	 * @param partSize The number of bytes, between 5 MB and 5 GB.
+	 * @return This copier.
+	 */
+	public ParallelCopier withPartSize(long partSize) {
+		if (partSize < TransferSettings.MIN_PART_SIZE || partSize > MAX_COPY_SIZE)
+			throw new IllegalArgumentException("Part size must be between 5 MB and 5 GB");
+		this.partSize = partSize;
+		return this;
+	}
+
+	/***
+	 * Copies the objects under a prefix.
+	 * @param sourceBucket The name of the bucket that contains the objects
+	 * @param sourcePrefix The prefix of the keys to copy, or an empty string for the whole bucket
+	 * @param destinationBucket The name of the bucket to hold the copies
+	 * @param destinationPrefix The prefix replacing the source prefix in the keys of the copies, or null to keep the keys
+	 * @return The outcome of the copy.
+	 * @throws IllegalArgumentException The copies would overwrite their sources, or be listed and copied again.
+	 * @throws InterruptedException The thread was interrupted while waiting for the copies
+	 */
+	public Result copy(String sourceBucket, String sourcePrefix, String destinationBucket, String destinationPrefix)
+			throws InterruptedException {
+
+		String from = sourcePrefix == null ? "" : sourcePrefix;
+		String to = destinationPrefix == null ? from : destinationPrefix;
+		if (sourceBucket.equals(destinationBucket) && from.equals(to))
+			throw new IllegalArgumentException("The source and the destination are the same");
+		if (sourceBucket.equals(destinationBucket) && to.startsWith(from))
+			throw new IllegalArgumentException("The destination is under the source prefix: the copies would be copied again");
+
+		Result result = new Result();
+		int concurrency = settings.getConcurrency();
+		ExecutorService objects = Executors.newFixedThreadPool(concurrency);
+		ExecutorService parts = Executors.newFixedThreadPool(concurrency);
+		// Listed objects waiting for a worker: the listing is paused beyond this.
+		Semaphore queued = new Semaphore(concurrency * 2);
+		try (Stream<S3ObjectSummary> listing = new ParallelLister(sourceClients.apply(sourceBucket), concurrency).list(sourceBucket, from, false)) {
+			for (S3ObjectSummary source : (Iterable<S3ObjectSummary>) listing::iterator) {
+				String destinationKey = to + source.getKey().substring(from.length());
+				queued.acquire();
+				objects.submit(() -> {
+					try {
+						copyObject(source, destinationBucket, destinationKey, parts);
+						if (source.getSize() > multipartThreshold)
+							result.multipart.incrementAndGet();
+						result.copied.incrementAndGet();
+						result.bytesCopied.addAndGet(source.getSize());
+					}
+					catch (RuntimeException | InterruptedException e) {
+						// Any error, not only those of the requests, fails the object rather than the pool.
+						result.failed.incrementAndGet();
+						System.out.println(String.format("Unable to copy %s: %s", source.getKey(), e.getMessage()));
+					}
+					finally {
+						queued.release();
+					}
+				});
+			}
+			// Wait for the last copies.
+			queued.acquire(concurrency * 2);
+		}
+		finally {
+			objects.shutdownNow();
+			parts.shutdownNow();
+		}
+		return result;
+	}
+
+	/***
+	 * Copies an object, in parts if it is larger than the multipart threshold.
+	 * @param source The summary of the object to copy, as listed.
+	 * @param destinationBucket The name of the bucket to hold the copy
+	 * @param destinationKey The key of the copy
+	 * @return The ETag of the copy.
+	 * @throws AmazonClientException Error encountered while copying the object, or the object was
+	 * 	changed since it was listed. A multipart copy is aborted.
+	 * @throws InterruptedException The thread was interrupted while waiting for the parts. A multipart copy is aborted.
+	 */
+	public String copyObject(S3ObjectSummary source, String destinationBucket, String destinationKey)
+			throws InterruptedException {
+		if (source.getSize() <= multipartThreshold)
+			return copyObject(source, destinationBucket, destinationKey, null);
+		ExecutorService parts = Executors.newFixedThreadPool(settings.getConcurrency());
+		try {
+			return copyObject(source, destinationBucket, destinationKey, parts);
+		}
+		finally {
+			parts.shutdownNow();
+		}
+	}
+
+	/*
+	 * Copies an object with a single request, or in parts on the specified workers.
+	 */
+	private String copyObject(S3ObjectSummary source, String destinationBucket, String destinationKey,
+			ExecutorService workers) throws InterruptedException {
+		if (source.getSize() > multipartThreshold)
+			return copyParts(source, destinationBucket, destinationKey, workers);
+
+		CopyObjectRequest request = new CopyObjectRequest(source.getBucketName(), source.getKey(), destinationBucket, destinationKey)
+				.withMatchingETagConstraint(source.getETag());
+		// A copy is stored in the standard class unless another one is requested.
+		if (source.getStorageClass() != null && !StorageClass.Standard.toString().equals(source.getStorageClass()))
+			request.setStorageClass(source.getStorageClass());
+		CopyObjectResult result = Retries.call(() -> s3Client.copyObject(request), settings.getMaxPartAttempts());
+		if (result == null)
+			throw changed(source);
+		return result.getETag();
+	}
+
+	/*
+	 * Copies an object in ranges of the part size, all conditional on the listed ETag, and
+	 * aborts the multipart upload if a part fails.
+	 */
+	private String copyParts(S3ObjectSummary source, String destinationBucket, String destinationKey,
+			ExecutorService workers) throws InterruptedException {
+
+		long contentLength = source.getSize();
+		long size = Math.max(partSize, (contentLength + TransferSettings.MAX_PARTS - 1) / TransferSettings.MAX_PARTS);
+
+		// The metadata is not carried over by the part copies: set it on the new object.
+		ObjectMetadata metadata = Retries.call(() -> sourceClients.apply(source.getBucketName())
+				.getObjectMetadata(source.getBucketName(), source.getKey()), settings.getMaxPartAttempts());
+		if (!source.getETag().equals(metadata.getETag()))
+			throw changed(source);
+		String uploadId = s3Client.initiateMultipartUpload(newUpload(destinationBucket, destinationKey, metadata)).getUploadId();
+
+		List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+		try {
+			long offset = 0;
+			for (int partNumber = 1; offset < contentLength; partNumber++) {
+				final CopyPartRequest request = new CopyPartRequest()
+						.withSourceBucketName(source.getBucketName())
+						.withSourceKey(source.getKey())
+						.withDestinationBucketName(destinationBucket)
+						.withDestinationKey(destinationKey)
+						.withUploadId(uploadId)
+						.withPartNumber(partNumber)
+						.withFirstByte(offset)
+						.withLastByte(Math.min(offset + size, contentLength) - 1)
+						.withMatchingETagConstraint(source.getETag());
+				parts.add(workers.submit(() -> {
+					CopyPartResult part = Retries.call(() -> s3Client.copyPart(request), settings.getMaxPartAttempts());
+					if (part == null)
+						throw changed(source);
+					return part.getPartETag();
+				}));
+				offset += size;
+			}
+
+			List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+			for (Future<PartETag> part : parts)
+				partETags.add(part.get());
+
+			CompleteMultipartUploadRequest complete = new CompleteMultipartUploadRequest(destinationBucket, destinationKey, uploadId, partETags);
+			return Retries.call(() -> s3Client.completeMultipartUpload(complete), settings.getMaxPartAttempts()).getETag();
+		}
+		catch (ExecutionException e) {
+			abort(destinationBucket, destinationKey, uploadId, parts);
+			if (e.getCause() instanceof AmazonClientException)
+				throw (AmazonClientException) e.getCause();
+			throw new AmazonClientException("Unable to copy part: " + e.getCause().getMessage(), e.getCause());
+		}
+		catch (InterruptedException | RuntimeException e) {
+			abort(destinationBucket, destinationKey, uploadId, parts);
+			throw e;
+		}
+	}
+
+	/*
+	 * Builds the multipart upload of a copy with the metadata, the storage class and the
+	 * server-side encryption of the source.
+	 */
+	private static InitiateMultipartUploadRequest newUpload(String bucketName, String keyName, ObjectMetadata source) {
+		InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, keyName, newMetadata(source));
+		Object storageClass = source.getRawMetadataValue(Headers.STORAGE_CLASS);
+		if (storageClass != null) {
+			try {
+				request.setStorageClass(StorageClass.fromValue(storageClass.toString()));
+			}
+			catch (IllegalArgumentException e) {
+				// A class this SDK does not know yet.
+				request.putCustomRequestHeader(Headers.STORAGE_CLASS, storageClass.toString());
+			}
+		}
+		if (KMS_ALGORITHM.equals(source.getSSEAlgorithm()))
+			request.setSSEAwsKeyManagementParams(source.getSSEAwsKmsKeyId() == null
+					? new SSEAwsKeyManagementParams() : new SSEAwsKeyManagementParams(source.getSSEAwsKmsKeyId()));
+		return request;
+	}
+
+	/*
+	 * Copies the headers and the user metadata of an object, leaving out what describes
+	 * the stored content (length, ETag, dates). A KMS encryption is requested with its key
+	 * on the upload instead.
+	 */
+	private static ObjectMetadata newMetadata(ObjectMetadata source) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		if (source.getContentType() != null)
+			metadata.setContentType(source.getContentType());
+		if (source.getContentEncoding() != null)
+			metadata.setContentEncoding(source.getContentEncoding());
+		if (source.getContentDisposition() != null)
+			metadata.setContentDisposition(source.getContentDisposition());
+		if (source.getCacheControl() != null)
+			metadata.setCacheControl(source.getCacheControl());
+		if (source.getSSEAlgorithm() != null && !KMS_ALGORITHM.equals(source.getSSEAlgorithm()))
+			metadata.setSSEAlgorithm(source.getSSEAlgorithm());
+		metadata.setUserMetadata(source.getUserMetadata());
+		return metadata;
+	}
+
+	/*
+	 * Builds the error of a source changed since it was listed.
+	 */
+	private static AmazonClientException changed(S3ObjectSummary source) {
+		return new AmazonClientException(String.format("%s was modified during the copy", source.getKey()));
+	}
+
+	/*
+	 * Cancels the pending part copies and aborts the multipart upload.
+	 */
+	private void abort(String bucketName, String keyName, String uploadId, List<Future<PartETag>> parts) {
+		for (Future<PartETag> part : parts)
+			part.cancel(true);
+		try {
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, keyName, uploadId));
+		}
+		catch (AmazonClientException ace) {
+			System.out.println(String.format("Unable to abort upload %s: %s", uploadId, ace.getMessage()));
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package com.acloudysky.s3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/***
+ * Lists a large bucket by splitting its keyspace in key ranges which are listed concurrently.
+ * <p>
+ * The listing starts with a single range covering the whole prefix. Each time a page of a
+ * range comes back truncated, the rest of the range is split in ranges which should hold a
+ * few pages each if the keys are as dense as in the page, until there are enough ranges to
+ * keep the workers busy. The ranges start at the <i>marker</i> of their list requests, so no
+ * delimiter is needed and flat or hashed keyspaces are split as well as hierarchical ones.
+ * Ranges which turn out empty cost a single request, and the busy ones keep splitting as the
+ * others complete.
+ * </p>
+ * <p>The ranges are listed page by page on a fork-join pool, the first ones in key order first.
+ * The listing waits once a few pages per worker are waiting to be consumed, so the memory held
+ * stays bounded whatever the size of the bucket. The pages are merged into a single stream,
+ * either in key order, by following the ranges in key order, or in the order they are listed.</p>
+ * @author Michael Miele
+ *
+ */
+public class ParallelLister {
+
+	// Number of pages listed or being listed per worker before the listing waits for them to be consumed.
+	private static final int PAGES_PER_WORKER = 4;
+
+	// Number of pages a range is expected to hold before it is split off.
+	private static final int MIN_RANGE_PAGES = 2;
+
+	// Smallest difference between two key positions, well above the precision of a double.
+	private static final double PRECISION = 1e-12;
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Number of ranges listed at the same time.
+	private final int parallelism;
+
+	/***
+	 * Creates a lister.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param parallelism The number of ranges listed at the same time.
+	 */
+	public ParallelLister(AmazonS3 s3Client, int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		this.s3Client = s3Client;
+		this.parallelism = parallelism;
+	}
+
+	/***
+	 * Lists the objects under the specified prefix.
+	 * The stream owns a thread pool and must be closed, preferably with a <i>try-with-resources</i> statement.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param prefix The prefix of the keys to list, or an empty string for the whole bucket
+	 * @param ordered true to return the keys in key order, false to return them as soon as they are listed
+	 * @return The stream of object summaries.
+	 */
+	public Stream<S3ObjectSummary> list(String bucketName, String prefix, boolean ordered) {
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			Iterator<List<S3ObjectSummary>> pages = new RangeListing(bucketName, prefix == null ? "" : prefix, pool, ordered);
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.NONNULL), false)
+					.flatMap(List::stream)
+					.onClose(pool::shutdownNow);
+		}
+		catch (RuntimeException e) {
+			pool.shutdownNow();
+			throw e;
+		}
+	}
+
+	/*
+	 * Compares two keys in the order S3 lists them, which is the order of their
+	 * UTF-8 bytes, that is the order of their code points.
+	 */
+	static int compareKeys(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int ca = a.codePointAt(i);
+			int cb = b.codePointAt(j);
+			if (ca != cb)
+				return Integer.compare(ca, cb);
+			i += Character.charCount(ca);
+			j += Character.charCount(cb);
+		}
+		return Integer.compare(a.length() - i, b.length() - j);
+	}
+
+	/*
+	 * Places a key in [0, 1) from its characters after the shared ones, read as the digits
+	 * of a fraction whose digits are the characters found in the keys. The position follows
+	 * the key order.
+	 */
+	static double position(String key, int shared, char[] digits) {
+		double position = 0;
+		double scale = 1;
+		for (int i = shared; i < key.length() && scale > PRECISION; i++) {
+			scale /= digits.length;
+			int digit = Arrays.binarySearch(digits, key.charAt(i));
+			if (digit < 0)
+				digit = Math.max(-digit - 2, 0);
+			position += digit * scale;
+		}
+		return position;
+	}
+
+	/*
+	 * Builds the key at a position after the shared characters, the inverse of position().
+	 */
+	static String key(String shared, double position, char[] digits) {
+		StringBuilder key = new StringBuilder(shared);
+		for (double scale = 1; position > 0 && scale > PRECISION; scale /= digits.length) {
+			position *= digits.length;
+			int digit = Math.min((int) position, digits.length - 1);
+			key.append(digits[digit]);
+			position -= digit;
+		}
+		return key.toString();
+	}
+
+	/*
+	 * A range of keys after a key and up to a key included. A null start is the
+	 * beginning of the prefix and a null end is the end of the prefix.
+	 */
+	private static class Range {
+		String after;
+		String last;
+		Range next;
+		final Deque<List<S3ObjectSummary>> pages = new ArrayDeque<List<S3ObjectSummary>>();
+		boolean listing;
+		boolean complete;
+
+		Range(String after, String last) {
+			this.after = after;
+			this.last = last;
+		}
+	}
+
+	/*
+	 * Lists the ranges page by page and iterates the pages. The ranges are chained in key
+	 * order; all the state is guarded by the listing.
+	 */
+	private class RangeListing implements Iterator<List<S3ObjectSummary>> {
+
+		private final String bucketName;
+		private final String prefix;
+		private final ForkJoinPool pool;
+		private final boolean ordered;
+
+		// Ranges with pages to consume, once per page, in the order the pages are listed (unordered only).
+		private final Deque<Range> ready = new ArrayDeque<Range>();
+
+		// First range not consumed yet, in key order.
+		private Range current;
+
+		// Number of ranges not completely listed.
+		private int open;
+
+		// Number of pages waiting to be consumed and of pages being listed.
+		private int buffered;
+		private int inFlight;
+
+		private RuntimeException failure;
+
+		RangeListing(String bucketName, String prefix, ForkJoinPool pool, boolean ordered) {
+			this.bucketName = bucketName;
+			this.prefix = prefix;
+			this.pool = pool;
+			this.ordered = ordered;
+			synchronized (this) {
+				current = new Range(null, null);
+				open = 1;
+				fill();
+			}
+		}
+
+		/*
+		 * Lists the next page of the range on the pool.
+		 */
+		private void schedule(Range range) {
+			range.listing = true;
+			inFlight++;
+			try {
+				pool.execute(() -> listPage(range));
+			}
+			catch (RejectedExecutionException e) {
+				// The stream was closed.
+				range.listing = false;
+				inFlight--;
+			}
+		}
+
+		/*
+		 * Lists the ranges which are not listing, first in key order, while the pages
+		 * waiting to be consumed and being listed are within the budget. Drops the
+		 * ranges completely listed and consumed from the chain on the way.
+		 */
+		private void fill() {
+			Range previous = null;
+			for (Range range = current; range != null && buffered + inFlight < parallelism * PAGES_PER_WORKER; range = range.next) {
+				if (range.complete && range.pages.isEmpty()) {
+					if (previous == null)
+						current = range.next;
+					else
+						previous.next = range.next;
+					continue;
+				}
+				if (!range.complete && !range.listing)
+					schedule(range);
+				previous = range;
+			}
+		}
+
+		/*
+		 * Lists one page of the range and splits the rest of the range while there are
+		 * too few ranges.
+		 */
+		private void listPage(Range range) {
+			String after;
+			String last;
+			synchronized (this) {
+				after = range.after;
+				last = range.last;
+			}
+			ObjectListing listing;
+			try {
+				listing = s3Client.listObjects(new ListObjectsRequest()
+						.withBucketName(bucketName)
+						.withPrefix(prefix)
+						.withMarker(after));
+			}
+			catch (RuntimeException e) {
+				synchronized (this) {
+					range.listing = false;
+					inFlight--;
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+
+			List<S3ObjectSummary> page = new ArrayList<S3ObjectSummary>();
+			boolean complete = !listing.isTruncated();
+			for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+				if (last != null && compareKeys(summary.getKey(), last) > 0) {
+					complete = true;
+					break;
+				}
+				page.add(summary);
+			}
+
+			synchronized (this) {
+				range.listing = false;
+				inFlight--;
+				if (!page.isEmpty()) {
+					range.pages.add(page);
+					buffered++;
+					if (!ordered)
+						ready.add(range);
+					range.after = page.get(page.size() - 1).getKey();
+					// The page may end on the last key of the range.
+					if (range.last != null && compareKeys(range.after, range.last) >= 0)
+						complete = true;
+				}
+				if (complete) {
+					range.complete = true;
+					open--;
+				}
+				else if (open < parallelism * 2)
+					split(range, page);
+				fill();
+				notifyAll();
+			}
+		}
+
+		/*
+		 * Splits the rest of the range in ranges listed concurrently. The split keys are
+		 * spread evenly from the first character where the keys of the page start to
+		 * differ, with the characters found in the page, so that each range holds a few
+		 * pages if the rest of the range is as dense as the page.
+		 */
+		private void split(Range range, List<S3ObjectSummary> page) {
+			String first = page.get(0).getKey();
+			String after = range.after;
+			int shared = prefix.length();
+			while (shared < first.length() && shared < after.length() && first.charAt(shared) == after.charAt(shared))
+				shared++;
+			// Split one character above, where the page covers only a part of the range.
+			if (shared > prefix.length())
+				shared--;
+			if (shared > prefix.length() && Character.isHighSurrogate(after.charAt(shared - 1)))
+				shared--;
+			String common = after.substring(0, shared);
+
+			SortedSet<Character> found = new TreeSet<Character>();
+			for (S3ObjectSummary summary : page) {
+				String key = summary.getKey();
+				for (int i = shared; i < key.length(); i++)
+					found.add(key.charAt(i));
+			}
+			if (found.size() < 2)
+				return;
+			char[] digits = new char[found.size()];
+			int n = 0;
+			for (char c : found)
+				digits[n++] = c;
+
+			double start = position(first, shared, digits);
+			double from = position(after, shared, digits);
+			// A last key past the shared characters is after all the keys which have them.
+			double end = range.last != null && range.last.startsWith(common) ? position(range.last, shared, digits) : 1;
+			if (from <= start || end <= from)
+				return;
+			int count = (int) Math.min(parallelism * 2 - open + 1, (end - from) / (from - start) / MIN_RANGE_PAGES);
+
+			Range tail = range;
+			for (int i = 1; i < count; i++) {
+				String middle = key(common, from + (end - from) * i / count, digits);
+				if (compareKeys(middle, tail.after) <= 0 || (tail.last != null && compareKeys(middle, tail.last) >= 0))
+					continue;
+				Range rest = new Range(middle, tail.last);
+				rest.next = tail.next;
+				tail.next = rest;
+				tail.last = middle;
+				tail = rest;
+				open++;
+			}
+		}
+
+		@Override
+		public synchronized boolean hasNext() {
+			try {
+				while (true) {
+					if (failure != null)
+						throw failure;
+					if (ordered) {
+						while (current != null && current.complete && current.pages.isEmpty())
+							current = current.next;
+						if (current == null || !current.pages.isEmpty())
+							return current != null;
+					}
+					else if (!ready.isEmpty() || open == 0)
+						return !ready.isEmpty();
+					wait();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AmazonClientException("Listing interrupted", e);
+			}
+		}
+
+		@Override
+		public synchronized List<S3ObjectSummary> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Range range = ordered ? current : ready.poll();
+			List<S3ObjectSummary> page = range.pages.poll();
+			buffered--;
+			fill();
+			return page;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/***
+ * Downloads an object to a local file using concurrent byte-range GET requests.
+ * Each range is read through a pooled direct buffer and written straight into the
+ * file at its offset, so the heap use does not depend on the object size.
+ * All the ranges are pinned to the ETag read at the start of the download, so an
+ * object replaced while it is being downloaded is detected instead of being mixed.
+ * Slow range requests can be hedged, see {@link TransferSettings#withHedgePercentile(double)}.
+ * An object compressed on upload is downloaded with a single request and decompressed
+ * into the file, see {@link Compression}. When a CRC-32C was stored on upload, the CRC of each
+ * range is computed as it arrives and the CRCs are combined to check the whole object, see {@link Checksums}.
+ * A range whose content cannot be read to the end, for example because the connection was reset, is
+ * requested again; checksum mismatches and errors writing the file end the download.
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/API/RESTObjectGET.html" target="_blank">GET Object</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class RangedDownloader {
+
+	// Authorized client
+	private final AmazonS3 s3Client;
+
+	// Size of the array through which the bytes of a direct buffer are added to a CRC.
+	private static final int CHECKSUM_SCRATCH_SIZE = 16 * 1024;
+
+	// Range size, concurrency and retry settings.
+	private final TransferSettings settings;
+
+	/***
+	 * Creates a downloader.
+	 * @param s3Client Client authorized to access the S3 service.
+	 * @param settings The transfer settings to use. The part size is used as range size.
+	 */
+	public RangedDownloader(AmazonS3 s3Client, TransferSettings settings) {
+		this.s3Client = s3Client;
+		this.settings = settings;
+	}
+
+	/***
+	 * Downloads the specified object to a file. An existing file is overwritten.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object to download
+	 * @param file The destination file
+	 * @return The number of bytes downloaded.
+	 * @throws IOException Error encountered while writing the file
+	 * @throws AmazonClientException Error encountered while downloading a range
+	 * @throws InterruptedException The thread was interrupted while waiting for the ranges
+	 */
+	public long download(String bucketName, String keyName, File file) throws IOException, InterruptedException {
+
+		ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, keyName);
+		if (Compression.isCompressed(metadata))
+			return Retries.call(() -> downloadCompressed(bucketName, keyName, metadata.getETag(), file),
+					settings.getMaxPartAttempts());
+
+		final long contentLength = metadata.getContentLength();
+		final String eTag = metadata.getETag();
+		final long rangeSize = settings.getPartSize();
+
+		// CRC stored on upload, and CRC of each range, computed as it arrives.
+		final Long expectedCrc32c = Checksums.getCrc32c(metadata);
+		final long[] crcs = new long[(int) ((contentLength + rangeSize - 1) / rangeSize)];
+
+		final BufferPool buffers = new BufferPool(settings.getConcurrency(), settings.getBufferSize());
+		ExecutorService workers = Executors.newFixedThreadPool(settings.getConcurrency());
+		List<Future<Long>> ranges = new ArrayList<Future<Long>>();
+
+		try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+			output.setLength(contentLength);
+			final FileChannel channel = output.getChannel();
+
+			for (long start = 0; start < contentLength; start += rangeSize) {
+				final long first = start;
+				final long last = Math.min(start + rangeSize, contentLength) - 1;
+				final Checksum crc32c = expectedCrc32c == null ? null : Crc32c.create();
+				final int index = ranges.size();
+				ranges.add(workers.submit(() -> Retries.call(() -> {
+					long length = downloadRange(bucketName, keyName, eTag, first, last, channel, buffers, crc32c);
+					if (crc32c != null)
+						crcs[index] = crc32c.getValue();
+					return length;
+				}, settings.getMaxPartAttempts())));
+			}
+
+			long total = 0;
+			long crc = 0;
+			for (int i = 0; i < ranges.size(); i++) {
+				long length = ranges.get(i).get();
+				crc = Crc32c.combine(crc, crcs[i], length);
+				total += length;
+			}
+			if (expectedCrc32c != null && crc != expectedCrc32c)
+				throw new IOException(String.format("%s: CRC-32C mismatch, expected %s, computed %s",
+						keyName, Crc32c.toBase64(expectedCrc32c), Crc32c.toBase64(crc)));
+			return total;
+		}
+		catch (ExecutionException e) {
+			for (Future<Long> range : ranges)
+				range.cancel(true);
+			if (e.getCause() instanceof AmazonClientException)
+				throw (AmazonClientException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new AmazonClientException("Unable to download range: " + e.getCause().getMessage(), e.getCause());
+		}
+		finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/*
+	 * Downloads the range [first, last] and writes it into the channel at the same offset.
+	 */
+	private long downloadRange(String bucketName, String keyName, String eTag, long first, long last,
+			FileChannel channel, BufferPool buffers, Checksum crc32c) throws IOException, InterruptedException {
+
+		ByteBuffer buffer = buffers.acquire();
+		byte[] scratch = crc32c == null ? null : new byte[CHECKSUM_SCRATCH_SIZE];
+		if (crc32c != null)
+			crc32c.reset();
+		try {
+			GetObjectRequest request = new GetObjectRequest(bucketName, keyName)
+					.withRange(first, last)
+					.withMatchingETagConstraint(eTag);
+			S3Object object = settings.getHedgePercentile() > 0
+					? new HedgedGetter(s3Client, settings.getHedgePercentile()).getObject(request)
+					: s3Client.getObject(request);
+			if (object == null)
+				throw new AmazonClientException(String.format("Object %s changed during the download", keyName));
+
+			S3ObjectInputStream content = object.getObjectContent();
+			boolean complete = false;
+			try {
+				ReadableByteChannel source = Channels.newChannel(retryable(content, keyName));
+				long position = first;
+				while (source.read(buffer) >= 0) {
+					if (!buffer.hasRemaining())
+						position += drain(buffer, channel, position, crc32c, scratch);
+				}
+				position += drain(buffer, channel, position, crc32c, scratch);
+				if (position != last + 1)
+					throw new AmazonClientException(String.format("Range %d-%d of %s ended at %d", first, last, keyName, position));
+				complete = true;
+				return last - first + 1;
+			}
+			finally {
+				// Abort rather than drain a stream that was not fully read.
+				if (complete)
+					content.close();
+				else
+					content.abort();
+			}
+		}
+		finally {
+			buffers.release(buffer);
+		}
+	}
+
+	/*
+	 * Downloads a compressed object with a single request and decompresses it into the file.
+	 * The ranges of a compressed object cannot be decompressed independently.
+	 */
+	private long downloadCompressed(String bucketName, String keyName, String eTag, File file)
+			throws IOException, InterruptedException {
+
+		GetObjectRequest request = new GetObjectRequest(bucketName, keyName).withMatchingETagConstraint(eTag);
+		S3Object object = settings.getHedgePercentile() > 0
+				? new HedgedGetter(s3Client, settings.getHedgePercentile()).getObject(request)
+				: s3Client.getObject(request);
+		if (object == null)
+			throw new AmazonClientException(String.format("Object %s changed during the download", keyName));
+
+		S3ObjectInputStream content = object.getObjectContent();
+		boolean complete = false;
+		InputStream verified = Checksums.verifying(retryable(content, keyName), keyName, object.getObjectMetadata());
+		try (InputStream in = Compression.decompress(verified, object.getObjectMetadata());
+				OutputStream out = new FileOutputStream(file)) {
+			byte[] buffer = new byte[settings.getBufferSize()];
+			long total = 0;
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+				total += read;
+			}
+			// Read what follows the compressed stream, if anything, so the checksums cover the whole object.
+			while (verified.read(buffer) >= 0)
+				;
+			complete = true;
+			return total;
+		}
+		finally {
+			// Abort rather than drain a stream that was not fully read.
+			if (!complete)
+				content.abort();
+		}
+	}
+
+	/*
+	 * Reads the content of a response, turning the network errors, such as a reset connection,
+	 * a timeout or a premature end of the content, into retryable errors so the request is sent again.
+	 */
+	private static InputStream retryable(InputStream content, String keyName) {
+		return new FilterInputStream(content) {
+			@Override
+			public int read() throws IOException {
+				try {
+					return super.read();
+				}
+				catch (IOException e) {
+					throw new AmazonClientException(String.format("Unable to read %s: %s", keyName, e.getMessage()), e);
+				}
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					return super.read(b, off, len);
+				}
+				catch (IOException e) {
+					throw new AmazonClientException(String.format("Unable to read %s: %s", keyName, e.getMessage()), e);
+				}
+			}
+		};
+	}
+
+	/*
+	 * Writes the buffer content into the channel at the specified position, adding it to the CRC if any.
+	 */
+	private static long drain(ByteBuffer buffer, FileChannel channel, long position, Checksum crc32c, byte[] scratch)
+			throws IOException {
+		buffer.flip();
+		if (crc32c != null)
+			Crc32c.update(crc32c, buffer, scratch);
+		long written = 0;
+		while (buffer.hasRemaining())
+			written += channel.write(buffer, position + written);
+		buffer.clear();
+		return written;
+	}
+}
@@ -0,0 +1,174 @@
+package com.acloudysky.s3;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Runs S3 requests concurrently with a cap on the number of requests in flight.
+ * <p>
+ * In virtual-thread mode each request runs on its own virtual thread, so a blocking SDK
+ * call only parks a cheap thread and one JVM can keep thousands of small-object requests
+ * in flight. Otherwise the requests run on a pool of platform threads, one per request
+ * allowed in flight. In both modes a semaphore caps the requests in flight: submitting
+ * a request blocks until a permit is free, which also holds back a producer that is
+ * faster than S3. The connection pool of the client should have at least as many
+ * connections as requests in flight, see {@link S3ClientPool#tunedConfiguration(int)}.
+ * </p>
+ * <p>
+ * Virtual threads need Java 21. They are looked up by reflection so the class still runs
+ * on older JVMs, where the virtual-thread mode falls back to platform threads.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class RequestExecutor extends AbstractExecutorService {
+
+	// Factory of virtual-thread executors, or null if the JVM has no virtual threads.
+	private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = virtualThreadFactory();
+
+	// Runs the requests.
+	private final ExecutorService delegate;
+
+	// Permits of the requests in flight.
+	private final Semaphore permits;
+
+	// Maximum number of requests in flight.
+	private final int maxInFlight;
+
+	// true if the requests run on virtual threads.
+	private final boolean virtual;
+
+	/***
+	 * Creates an executor.
+	 * @param maxInFlight The maximum number of requests in flight.
+	 * @param virtualThreads true to run each request on a virtual thread when the JVM supports them.
+	 */
+	public RequestExecutor(int maxInFlight, boolean virtualThreads) {
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("Maximum requests in flight must be at least 1");
+		ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+		this.virtual = virtualExecutor != null;
+		this.delegate = virtual ? virtualExecutor : Executors.newFixedThreadPool(maxInFlight);
+		this.permits = new Semaphore(maxInFlight);
+		this.maxInFlight = maxInFlight;
+	}
+
+	/***
+	 * Checks if the JVM supports virtual threads.
+	 * @return true if the virtual-thread mode is available.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+	}
+
+	/***
+	 * Checks if the requests run on virtual threads.
+	 * @return false if the requests run on platform threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/***
+	 * Gets the maximum number of requests in flight.
+	 * @return The maximum number of requests.
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/***
+	 * Gets the number of requests in flight.
+	 * @return The number of requests submitted and not yet complete.
+	 */
+	public int getInFlight() {
+		return maxInFlight - permits.availablePermits();
+	}
+
+	/***
+	 * Runs a request, waiting until fewer than the maximum requests are in flight.
+	 * @param command The request.
+	 * @throws RejectedExecutionException The executor is shut down, or the thread was interrupted while waiting.
+	 */
+	@Override
+	public void execute(Runnable command) {
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for a request to complete", e);
+		}
+		try {
+			delegate.execute(() -> {
+				try {
+					command.run();
+				}
+				finally {
+					permits.release();
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return delegate.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return delegate.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return delegate.awaitTermination(timeout, unit);
+	}
+
+	/*
+	 * Creates an executor starting a virtual thread per task, or returns null if the JVM has no virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		if (NEW_VIRTUAL_THREAD_EXECUTOR == null)
+			return null;
+		try {
+			return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Looks up Executors.newVirtualThreadPerTaskExecutor, available since Java 21.
+	 */
+	private static Method virtualThreadFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
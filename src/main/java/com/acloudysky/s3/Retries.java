@@ -0,0 +1,84 @@
+package com.acloudysky.s3;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/***
+ * Retries a single S3 request with exponential backoff and full jitter.
+ * Used by the transfer engines so that one failed part does not
+ * abort a whole transfer. The delay before each retry is drawn at random
+ * below the exponential bound, so requests throttled together do not
+ * retry together.
+ * @author Michael Miele
+ *
+ */
+public class Retries {
+
+	// Delay before the first retry, in milliseconds.
+	private static final long BASE_DELAY_MS = 200;
+
+	// Upper bound for the delay between two attempts, in milliseconds.
+	private static final long MAX_DELAY_MS = 10000;
+
+	/***
+	 * Calls the specified request until it succeeds, fails with a non retryable
+	 * error or the number of attempts is exhausted.
+	 * @param request The request to perform.
+	 * @param maxAttempts The maximum number of attempts.
+	 * @param <T> The type of the request result.
+	 * @return The request result.
+	 * @throws AmazonClientException The last error returned by the request.
+	 * @throws InterruptedException The thread was interrupted while waiting to retry.
+	 */
+	public static <T> T call(Callable<T> request, int maxAttempts) throws InterruptedException {
+
+		int attempt = 1;
+		while (true) {
+			try {
+				return request.call();
+			}
+			catch (AmazonClientException ace) {
+				if (attempt >= maxAttempts || !isRetryable(ace))
+					throw ace;
+			}
+			catch (InterruptedException | RuntimeException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				throw new AmazonClientException(e.getMessage(), e);
+			}
+			Thread.sleep(delay(attempt));
+			attempt++;
+		}
+	}
+
+	/***
+	 * Checks if the specified error is worth retrying.
+	 * Throttling (503 SlowDown), server errors and network errors are retried;
+	 * client errors such as 403 or 404 are not.
+	 * @param ace The error returned by the request.
+	 * @return true if the request can be retried.
+	 */
+	public static boolean isRetryable(AmazonClientException ace) {
+		if (ace instanceof AmazonServiceException) {
+			AmazonServiceException ase = (AmazonServiceException) ace;
+			return ase.getStatusCode() >= 500
+					|| ase.getStatusCode() == 429
+					|| "RequestTimeout".equals(ase.getErrorCode())
+					|| "SlowDown".equals(ase.getErrorCode());
+		}
+		return ace.isRetryable();
+	}
+
+	/*
+	 * Computes the delay before the specified attempt is retried: a random
+	 * value up to the exponential bound.
+	 */
+	private static long delay(int attempt) {
+		long bound = Math.min(BASE_DELAY_MS << Math.min(attempt - 1, 16), MAX_DELAY_MS);
+		return ThreadLocalRandom.current().nextLong(bound + 1);
+	}
+}
@@ -0,0 +1,186 @@
+package com.acloudysky.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/***
+ * Keeps one tuned S3 client per region and routes each bucket to the client of its region.
+ * <p>
+ * Sending a request for a bucket to the endpoint of another region costs a redirect
+ * (or fails with signature V4). The region of each bucket is looked up once with
+ * <i>GetBucketLocation</i> and cached, so later requests go straight to the right endpoint.
+ * All the clients share the same connection settings: pool size, TCP keep-alive,
+ * socket buffers and timeouts. Connections can be opened ahead of time with
+ * {@link #prewarm(Regions, int)} to avoid the connection setup latency on the first requests.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class S3ClientPool {
+
+	// Default size of the connection pool of each client.
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+	// Credentials shared by all the clients.
+	private final AWSCredentialsProvider credentials;
+
+	// Connection settings shared by all the clients.
+	private final ClientConfiguration configuration;
+
+	// Region of the client used when the bucket region is unknown.
+	private final Regions homeRegion;
+
+	// One client per region.
+	private final Map<Regions, AmazonS3Client> clients = new ConcurrentHashMap<Regions, AmazonS3Client>();
+
+	// Instrumented view of each client, see S3Metrics.
+	private final Map<Regions, AmazonS3> instrumentedClients = new ConcurrentHashMap<Regions, AmazonS3>();
+
+	// Region of each bucket looked up so far.
+	private final Map<String, Regions> bucketRegions = new ConcurrentHashMap<String, Regions>();
+
+	/***
+	 * Creates a pool.
+	 * @param credentials The credentials used by all the clients.
+	 * @param configuration The connection settings used by all the clients, see {@link #tunedConfiguration(int)}.
+	 * @param homeRegion The region used when the region of a bucket is unknown.
+	 */
+	public S3ClientPool(AWSCredentialsProvider credentials, ClientConfiguration configuration, Regions homeRegion) {
+		this.credentials = credentials;
+		this.configuration = configuration;
+		this.homeRegion = homeRegion;
+	}
+
+	/***
+	 * Creates connection settings tuned for high throughput transfers.
+	 * @param maxConnections The size of the connection pool of each client.
+	 * @return The connection settings.
+	 */
+	public static ClientConfiguration tunedConfiguration(int maxConnections) {
+		return new ClientConfiguration()
+				.withMaxConnections(maxConnections)
+				.withTcpKeepAlive(true)
+				.withSocketBufferSizeHints(1024 * 1024, 1024 * 1024)
+				.withConnectionTimeout(5000)
+				.withSocketTimeout(30000)
+				.withConnectionTTL(5 * 60 * 1000);
+	}
+
+	/***
+	 * Gets the region used when the region of a bucket is unknown.
+	 * @return The home region.
+	 */
+	public Regions getHomeRegion() {
+		return homeRegion;
+	}
+
+	/***
+	 * Gets the client of the specified region, creating it if needed.
+	 * The requests of the client are recorded in the {@link S3Metrics#getDefault() application metrics}
+	 * and held to the {@link ConcurrencyController#getDefault() application concurrency limits}.
+	 * @param region The region.
+	 * @return The client.
+	 */
+	public AmazonS3 getClient(Regions region) {
+		return instrumentedClients.computeIfAbsent(region, r -> {
+			AmazonS3Client client = new AmazonS3Client(credentials, configuration);
+			client.setRegion(Region.getRegion(r));
+			clients.put(r, client);
+			return ConcurrencyController.getDefault().limit(S3Metrics.getDefault().instrument(client));
+		});
+	}
+
+	/***
+	 * Gets the client of the region that holds the specified bucket.
+	 * The home region client is returned if the bucket region cannot be determined,
+	 * for example because the bucket does not exist yet.
+	 * @param bucketName The name of the bucket.
+	 * @return The client.
+	 */
+	public AmazonS3 getClientForBucket(String bucketName) {
+		Regions region = bucketRegions.get(bucketName);
+		if (region == null) {
+			try {
+				String location = getClient(homeRegion).getBucketLocation(bucketName);
+				region = toRegions(location);
+				bucketRegions.put(bucketName, region);
+			}
+			catch (AmazonClientException | IllegalArgumentException e) {
+				region = homeRegion;
+			}
+		}
+		return getClient(region);
+	}
+
+	/***
+	 * Forgets the region of a bucket, for example after the bucket has been deleted.
+	 * @param bucketName The name of the bucket.
+	 */
+	public void forgetBucket(String bucketName) {
+		bucketRegions.remove(bucketName);
+	}
+
+	/***
+	 * Opens connections to the endpoint of the specified region ahead of time.
+	 * The requests are sent at the same time so that each one opens its own connection,
+	 * which then stays in the client connection pool (TCP keep-alive).
+	 * Errors are ignored: the purpose is only to establish the connections.
+	 * @param region The region.
+	 * @param connections The number of connections to open.
+	 */
+	public void prewarm(Regions region, int connections) {
+		final AmazonS3 client = getClient(region);
+		ExecutorService openers = Executors.newFixedThreadPool(connections);
+		try {
+			List<Future<?>> requests = new ArrayList<Future<?>>();
+			for (int i = 0; i < connections; i++)
+				requests.add(openers.submit(() -> client.listBuckets()));
+			for (Future<?> request : requests) {
+				try {
+					request.get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				catch (Exception e) {
+					// Only the connection matters.
+				}
+			}
+		}
+		finally {
+			openers.shutdownNow();
+		}
+	}
+
+	/***
+	 * Releases the connections of all the clients.
+	 */
+	public void shutdown() {
+		for (AmazonS3Client client : clients.values())
+			client.shutdown();
+		instrumentedClients.clear();
+		clients.clear();
+	}
+
+	/*
+	 * Converts a bucket location constraint such as "US", "EU" or "us-west-2" into a region.
+	 */
+	private static Regions toRegions(String location) {
+		Region region = com.amazonaws.services.s3.model.Region.fromValue(location).toAWSRegion();
+		return Regions.fromName(region.getName());
+	}
+}
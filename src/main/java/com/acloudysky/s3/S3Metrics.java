@@ -0,0 +1,423 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/***
+ * Records the latency, the errors and the bytes transferred by every S3 request.
+ * <p>
+ * The requests are measured by wrapping a client with {@link #instrument(AmazonS3)}: each
+ * call of the client is timed and recorded per operation (<i>PutObject</i>, <i>GetObject</i>...)
+ * in a {@link LatencyHistogram}, the failures are counted by error code and the uploaded and
+ * downloaded bytes are added up. All the counters are lock-free.
+ * </p>
+ * <p>
+ * The statistics are published as MBeans in the <i>com.acloudysky.s3</i> JMX domain, one for
+ * the totals and one per operation, and can also be written periodically to a file
+ * with {@link #startDump(File, long)}.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class S3Metrics implements S3MetricsMBean {
+
+	// JMX domain of the MBeans.
+	public static final String JMX_DOMAIN = "com.acloudysky.s3";
+
+	// Error code recorded for the failures without an S3 error code.
+	private static final String CLIENT_ERROR = "ClientError";
+
+	// Client methods that do not send requests.
+	private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList(
+			"generatePresignedUrl", "setEndpoint", "setRegion", "setS3ClientOptions", "shutdown",
+			"getCachedResponseMetadata"));
+
+	// Metrics shared by all the clients of the application.
+	private static final S3Metrics DEFAULT = new S3Metrics(true);
+
+	// Statistics of each operation.
+	private final Map<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+
+	// Number of failures of each error code.
+	private final Map<String, LongAdder> errorCodes = new ConcurrentHashMap<String, LongAdder>();
+
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	// Time the recording started, used to compute the rates.
+	private final long startNanos = System.nanoTime();
+
+	// Whether the statistics are published over JMX.
+	private final boolean jmx;
+
+	// Writes the dump file, or null if not started.
+	private ScheduledExecutorService dumper;
+
+	/***
+	 * Creates an empty set of metrics.
+	 * @param jmx true to publish the statistics over JMX.
+	 */
+	public S3Metrics(boolean jmx) {
+		this.jmx = jmx;
+		if (jmx)
+			register(this, new String[] { "type", "S3Metrics" });
+	}
+
+	/***
+	 * Gets the metrics shared by the application clients.
+	 * @return The metrics, published over JMX.
+	 */
+	public static S3Metrics getDefault() {
+		return DEFAULT;
+	}
+
+	/***
+	 * Wraps a client so that each of its requests is recorded.
+	 * @param s3Client The client to instrument.
+	 * @return The instrumented client.
+	 */
+	public AmazonS3 instrument(AmazonS3 s3Client) {
+		return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new Recorder(s3Client));
+	}
+
+	/***
+	 * Records a request.
+	 * @param operation The name of the operation, for example PutObject.
+	 * @param nanos The latency of the request in nanoseconds.
+	 * @param errorCode The error code if the request failed, null otherwise.
+	 */
+	public void record(String operation, long nanos, String errorCode) {
+		getOperation(operation).record(TimeUnit.NANOSECONDS.toMicros(nanos), errorCode != null);
+		if (errorCode != null)
+			errorCodes.computeIfAbsent(errorCode, code -> new LongAdder()).increment();
+	}
+
+	/***
+	 * Gets the statistics of an operation, creating them if needed.
+	 * @param operation The name of the operation, for example PutObject.
+	 * @return The statistics.
+	 */
+	public OperationStats getOperation(String operation) {
+		OperationStats stats = operations.get(operation);
+		if (stats == null) {
+			stats = operations.computeIfAbsent(operation, OperationStats::new);
+			if (jmx)
+				register(stats, new String[] { "type", "Operation", "name", operation });
+		}
+		return stats;
+	}
+
+	/***
+	 * Adds downloaded bytes.
+	 * @param bytes The number of bytes.
+	 */
+	public void addBytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	/***
+	 * Adds uploaded bytes.
+	 * @param bytes The number of bytes.
+	 */
+	public void addBytesOut(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	@Override
+	public long getRequestCount() {
+		long total = 0;
+		for (OperationStats stats : operations.values())
+			total += stats.getRequestCount();
+		return total;
+	}
+
+	@Override
+	public long getErrorCount() {
+		long total = 0;
+		for (OperationStats stats : operations.values())
+			total += stats.getErrorCount();
+		return total;
+	}
+
+	@Override
+	public String[] getErrorCodes() {
+		Map<String, LongAdder> sorted = new TreeMap<String, LongAdder>(errorCodes);
+		String[] codes = new String[sorted.size()];
+		int i = 0;
+		for (Map.Entry<String, LongAdder> entry : sorted.entrySet())
+			codes[i++] = entry.getKey() + "=" + entry.getValue().sum();
+		return codes;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public double getBytesInPerSecond() {
+		return bytesIn.sum() / elapsedSeconds();
+	}
+
+	@Override
+	public double getBytesOutPerSecond() {
+		return bytesOut.sum() / elapsedSeconds();
+	}
+
+	/***
+	 * Formats the statistics as a text report, one line per operation.
+	 * @return The report.
+	 */
+	public String report() {
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+		out.println(String.format("S3 metrics at %s", new Date()));
+		out.println(String.format("%-28s %10s %8s %10s %10s %10s %10s %10s %10s",
+				"Operation", "Requests", "Errors", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "Max ms"));
+		for (OperationStats stats : new TreeMap<String, OperationStats>(operations).values())
+			out.println(String.format("%-28s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+					stats.getName(), stats.getRequestCount(), stats.getErrorCount(), stats.getMeanMillis(),
+					stats.getP50Millis(), stats.getP90Millis(), stats.getP99Millis(), stats.getP999Millis(),
+					stats.getMaxMillis()));
+		out.println(String.format("Errors by code: %s", Arrays.toString(getErrorCodes())));
+		out.println(String.format("Bytes in: %d (%.1f MB/s), bytes out: %d (%.1f MB/s)",
+				getBytesIn(), getBytesInPerSecond() / TransferSettings.MB,
+				getBytesOut(), getBytesOutPerSecond() / TransferSettings.MB));
+		out.flush();
+		return text.toString();
+	}
+
+	/***
+	 * Writes the report to a file periodically. The file is replaced atomically each time.
+	 * @param file The file to write.
+	 * @param periodSeconds The time between two writes, in seconds.
+	 */
+	public synchronized void startDump(File file, long periodSeconds) {
+		stopDump();
+		dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "s3-metrics-dump");
+			thread.setDaemon(true);
+			return thread;
+		});
+		dumper.scheduleAtFixedRate(() -> {
+			try {
+				dump(file);
+			}
+			catch (IOException e) {
+				System.out.println(String.format("Unable to write the metrics to %s: %s", file, e.getMessage()));
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/***
+	 * Stops writing the report file.
+	 */
+	public synchronized void stopDump() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+		}
+	}
+
+	/***
+	 * Writes the report to a file. The file is replaced atomically.
+	 * @param file The file to write.
+	 * @throws IOException Error encountered while writing the file
+	 */
+	public void dump(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		Files.createDirectories(directory.toPath());
+		File temp = new File(directory, file.getName() + ".tmp");
+		Files.write(temp.toPath(), report().getBytes(StandardCharsets.UTF_8));
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/*
+	 * Gets the time since the recording started, at least one millisecond.
+	 */
+	private double elapsedSeconds() {
+		return Math.max(System.nanoTime() - startNanos, TimeUnit.MILLISECONDS.toNanos(1)) / 1e9;
+	}
+
+	/*
+	 * Publishes an MBean. A name already in use is replaced.
+	 */
+	static void register(Object mbean, String[] properties) {
+		StringBuilder name = new StringBuilder(JMX_DOMAIN).append(':');
+		for (int i = 0; i < properties.length; i += 2)
+			name.append(i == 0 ? "" : ",").append(properties[i]).append('=').append(properties[i + 1]);
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name.toString());
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(mbean, objectName);
+		}
+		catch (JMException e) {
+			System.out.println(String.format("Unable to publish %s over JMX: %s", name, e.getMessage()));
+		}
+	}
+
+	/*
+	 * Gets the operation name of a client method: the name of the S3 API call.
+	 */
+	private static String operationName(Method method) {
+		String name = method.getName();
+		if (name.equals("listNextBatchOfObjects"))
+			name = "listObjects";
+		else if (name.equals("listNextBatchOfVersions"))
+			name = "listVersions";
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	/*
+	 * Gets the error code of a failure.
+	 */
+	private static String errorCode(Throwable failure) {
+		if (failure instanceof AmazonServiceException) {
+			AmazonServiceException ase = (AmazonServiceException) failure;
+			return ase.getErrorCode() != null ? ase.getErrorCode() : String.valueOf(ase.getStatusCode());
+		}
+		if (failure instanceof AmazonClientException)
+			return CLIENT_ERROR;
+		return failure.getClass().getSimpleName();
+	}
+
+	/*
+	 * Times the calls of a client and counts the bytes they transfer.
+	 */
+	private class Recorder implements InvocationHandler {
+
+		private final AmazonS3 target;
+
+		Recorder(AmazonS3 target) {
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class || LOCAL_METHODS.contains(method.getName()))
+				return invokeTarget(method, args);
+
+			String operation = operationName(method);
+			long start = System.nanoTime();
+			Object result;
+			try {
+				result = invokeTarget(method, args);
+			}
+			catch (Throwable failure) {
+				record(operation, System.nanoTime() - start, errorCode(failure));
+				throw failure;
+			}
+			record(operation, System.nanoTime() - start, null);
+
+			countBytesOut(args);
+			if (result instanceof S3Object) {
+				// The content is counted as it is read.
+				S3Object object = (S3Object) result;
+				S3ObjectInputStream content = object.getObjectContent();
+				if (content != null)
+					object.setObjectContent(new S3ObjectInputStream(new CountingInputStream(content), content.getHttpRequest()));
+			}
+			else if (result instanceof ObjectMetadata && method.getName().equals("getObject"))
+				addBytesIn(((ObjectMetadata) result).getContentLength());
+			return result;
+		}
+
+		private Object invokeTarget(Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		/*
+		 * Counts the bytes sent by the upload requests.
+		 */
+		private void countBytesOut(Object[] args) {
+			if (args == null)
+				return;
+			for (Object arg : args) {
+				if (arg instanceof UploadPartRequest)
+					addBytesOut(((UploadPartRequest) arg).getPartSize());
+				else if (arg instanceof PutObjectRequest) {
+					PutObjectRequest request = (PutObjectRequest) arg;
+					if (request.getFile() != null)
+						addBytesOut(request.getFile().length());
+					else if (request.getMetadata() != null)
+						addBytesOut(request.getMetadata().getContentLength());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Counts the bytes read from a downloaded object.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				addBytesIn(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = in.read(b, off, len);
+			if (read > 0)
+				addBytesIn(read);
+			return read;
+		}
+	}
+}
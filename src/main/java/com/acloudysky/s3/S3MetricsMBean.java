@@ -0,0 +1,44 @@
+package com.acloudysky.s3;
+
+/***
+ * JMX view of the totals recorded by {@link S3Metrics}.
+ * @author Michael Miele
+ *
+ */
+public interface S3MetricsMBean {
+
+	/***
+	 * @return The number of requests, all operations included.
+	 */
+	long getRequestCount();
+
+	/***
+	 * @return The number of failed requests, all operations included.
+	 */
+	long getErrorCount();
+
+	/***
+	 * @return The number of failed requests by error code, one "code=count" entry per code.
+	 */
+	String[] getErrorCodes();
+
+	/***
+	 * @return The number of bytes received (downloaded).
+	 */
+	long getBytesIn();
+
+	/***
+	 * @return The number of bytes sent (uploaded).
+	 */
+	long getBytesOut();
+
+	/***
+	 * @return The average download throughput since the start, in bytes per second.
+	 */
+	double getBytesInPerSecond();
+
+	/***
+	 * @return The average upload throughput since the start, in bytes per second.
+	 */
+	double getBytesOutPerSecond();
+}
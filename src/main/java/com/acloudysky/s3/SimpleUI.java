@@ -1,238 +1,482 @@
-package com.acloudysky.s3;
-
-
-import java.io.BufferedReader;
-import java.io.IOException;
-
-import com.acloudysky.s3.Utility;
-
-
-/*** 
- * Displays a selection menu for the user. Processes the  user's input and calls the proper 
- * method based on the user's selection. 
- * Each method calls the related S3 REST API.
- * <p>
- * For more information, see:
- * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/Welcome.html" target="_blank">AWS S3 API</a>.
- * </p>
- * @author Michael Miele.
- *
- */
-public class SimpleUI extends UserInterface {
-	
-
-	private String bucketName, keyName;
-	
-	/**
-	 * Instantiates SimpleUI class along with its superclass.
-	 */
-	SimpleUI() {
-		super();
-		// Display menu.
-		Utility.displayMenu(Utility.getMenuEntries());
-		
-	}
-	
-	/*
-	 * Reads user input.
-	 */
-	private static String readUserInput(String msg) {
-		
-		// Open standard input.
-		BufferedReader br = new BufferedReader(new java.io.InputStreamReader(System.in));
-
-		String selection = null;
-		
-		//  Read the selection from the command-line; need to use try/catch with the
-		//  readLine() method
-		try {
-			if (msg == null)
-				System.out.print("\n>>> ");
-			else
-				System.out.print("\n" + msg);
-			selection = br.readLine();
-		} catch (IOException e) {
-			System.out.println("IO error trying to read your input!");
-			System.out.println(String.format("%s", e.getMessage()));
-			System.exit(1);
-		}
-		
-		return selection;
-
-	}
-	
-	/*
-	 * Executes the selected operation.
-	 */
-	private void performOperation(String operation) {
-	
-		// Select operation to perform.
-		switch(operation) {
-		
-			case "cb": {
-			
-				try{
-					// Create a bucket.
-					do {
-						System.out.println(String.format("%s", "The bucket name must follow the format: chowx-i-92aea747.d.eanitea.com"));
-						bucketName = readUserInput("Bucket name: ").toLowerCase();	
-					} while(bucketName.isEmpty());
-					BucketOperations.createBucket(bucketName);
-				}
-				catch (Exception e){
-					System.out.println(String.format("%s", e.getMessage()));
-				}
-				break;
-			}
-			
-			case "lb": {
-				try{
-					// List the buckets contained in the account.
-					BucketOperations.listBuckets();
-				}
-				catch (Exception e){
-					System.out.println(String.format("%s", e.getMessage()));
-				}
-				break;
-			}
-			
-			case "db": {
-				try{
-					// Delete a bucket.
-					do {
-						bucketName = readUserInput("Bucket name: ").toLowerCase();	
-					}while(bucketName.isEmpty());	
-					BucketOperations.deleteBucket(bucketName);
-				}
-				catch (Exception e){
-					System.out.println(String.format("%s", e.getMessage()));
-				}
-				break;
-			}
-			
-			case "uo": {
-				try{
-					// Upload an object in the specified bucket.
-					// Note that the object to upload ia a text file that must already
-					// exist in the resources folder. 
-					do {
-						bucketName = readUserInput("Bucket name: ").toLowerCase();	
-						keyName = readUserInput("Object (key) name: ").toLowerCase();	
-					}while(bucketName.isEmpty() || keyName.isEmpty());
-					ObjectOperations.uploadObject(bucketName, keyName, "sanmartino.txt");
-				}
-				catch (Exception e){
-					System.out.println(String.format("%s", e.getMessage()));
-				}
-				break;
-			}
-				
-			case "do": {
-				try{
-					// Download an object.
-					do {
-						bucketName = readUserInput("Bucket name: ").toLowerCase();	
-						keyName = readUserInput("Object (key) name: ").toLowerCase();	
-					}while(bucketName.isEmpty() || keyName.isEmpty());
-					ObjectOperations.downloadObject(bucketName, keyName);
-				}
-				catch (Exception e){
-					System.out.println(String.format("%s", e.getMessage()));
-				}
-				break;
-			}
-			
-			case "lo": {
-				try{
-					// List objects contained in the specified bucket.
-					do {
-						bucketName = readUserInput("Bucket name: ").toLowerCase();	
-					}while(bucketName.isEmpty());
-					ObjectOperations.listObject(bucketName);
-				}
-				catch (Exception e){
-					System.out.println(String.format("%s", e.getMessage()));
-				}
-				break;
-			}
-			
-			case "cf": {
-				try{
-					// Get CloudFront signed URL.
-					do {
-						// bucketName = readUserInput("Bucket name: ").toLowerCase();	
-						keyName = readUserInput("Object (key) name: ").toLowerCase();	
-					}while(bucketName.isEmpty() || keyName.isEmpty());
-					BucketOperations.getPresignedUrls(keyName);
-				}
-				catch (Exception e){
-					System.out.println(String.format("%s", e.getMessage()));
-				}
-				break;
-			}
-			
-			case "xo": {
-				try{
-					// Delete an object.
-					do {
-						bucketName = readUserInput("Bucket name: ").toLowerCase();	
-						keyName = readUserInput("Object (key) name: ").toLowerCase();	
-					}while(bucketName.isEmpty() || keyName.isEmpty());
-					ObjectOperations.deleteObject(bucketName, keyName);
-				}
-				catch (Exception e){
-					System.out.println(String.format("%s", e.getMessage()));
-				}
-				break;
-			}
-				
-			
-			default: {
-				System.out.println(String.format("%s is not allowed", operation));
-				break;
-			}
-		}
-				
-
-	}
-	
-	
-	/***
-	 * Gets user selection and calls the related method.
-	 * Loops indefinitely until the user exits the application.
-	 */
-	public void processUserInput() {
-		
-		while (true) {
-			
-			// Get user input.
-			String userSelection = readUserInput(null).toLowerCase();	
-			// Normalize user's input.
-			String normalizedUserSelection = userSelection.trim().toLowerCase();
-			
-
-			try{
-				// Exit the application.
-				if ("x".equals(normalizedUserSelection)){
-					break;
-				}
-				else
-					if ("m".equals(normalizedUserSelection)) {
-						// Display menu
-						Utility.displayMenu(Utility.getMenuEntries());
-						continue;
-					}
-				
-			}
-			catch (Exception e){
-				// System.out.println(e.toString());
-				System.out.println(String.format("Input %s is not allowed%n", userSelection));
-				continue;
-			}
-			
-			performOperation(normalizedUserSelection);
-		}
-		
-	}
-	
-}
+package com.acloudysky.s3;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+
+import com.amazonaws.HttpMethod;
+
+import com.acloudysky.s3.Utility;
+
+
+/*** 
+ * Displays a selection menu for the user. Processes the  user's input and calls the proper 
+ * method based on the user's selection. 
+ * Each method calls the related S3 REST API.
+ * <p>
+ * For more information, see:
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/Welcome.html" target="_blank">AWS S3 API</a>.
+ * </p>
+ * @author Michael Miele.
+ *
+ */
+public class SimpleUI extends UserInterface {
+	
+
+	private String bucketName, keyName;
+	
+	// Standard input, shared by all the prompts.
+	private static final BufferedReader stdin = new BufferedReader(new java.io.InputStreamReader(System.in));
+	
+	/**
+	 * Instantiates SimpleUI class along with its superclass.
+	 */
+	SimpleUI() {
+		super();
+		// Display menu.
+		Utility.displayMenu(Utility.getMenuEntries());
+		
+	}
+	
+	/*
+	 * Reads user input.
+	 */
+	private static String readUserInput(String msg) {
+		
+		String selection = null;
+		
+		//  Read the selection from the command-line; need to use try/catch with the
+		//  readLine() method
+		try {
+			if (msg == null)
+				System.out.print("\n>>> ");
+			else
+				System.out.print("\n" + msg);
+			selection = stdin.readLine();
+		} catch (IOException e) {
+			System.out.println("IO error trying to read your input!");
+			System.out.println(String.format("%s", e.getMessage()));
+			System.exit(1);
+		}
+		
+		return selection;
+
+	}
+	
+	/*
+	 * Executes the selected operation.
+	 */
+	private void performOperation(String operation) {
+	
+		// Select operation to perform.
+		switch(operation) {
+		
+			case "cb": {
+			
+				try{
+					// Create a bucket.
+					do {
+						System.out.println(String.format("%s", "The bucket name must follow the format: chowx-i-92aea747.d.eanitea.com"));
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+					} while(bucketName.isEmpty());
+					BucketOperations.createBucket(bucketName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "lb": {
+				try{
+					// List the buckets contained in the account.
+					BucketOperations.listBuckets();
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "db": {
+				try{
+					// Delete a bucket.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+					}while(bucketName.isEmpty());	
+					BucketOperations.deleteBucket(bucketName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "uo": {
+				try{
+					// Upload an object in the specified bucket.
+					// Note that the object to upload ia a text file that must already
+					// exist in the resources folder. 
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+					}while(bucketName.isEmpty() || keyName.isEmpty());
+					ObjectOperations.uploadObject(bucketName, keyName, "sanmartino.txt");
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+				
+			case "uf": {
+				try{
+					// Upload a local file in the specified bucket.
+					// Large files are uploaded in parts.
+					String filePath;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+						filePath = readUserInput("File path: ").trim();	
+					}while(bucketName.isEmpty() || keyName.isEmpty() || filePath.isEmpty());
+					ObjectOperations.uploadFile(bucketName, keyName, new File(filePath));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+				
+			case "us": {
+				try{
+					// Upload the content of a pipe, whose length is not known. The standard input carries the menu.
+					String source;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+						source = readUserInput("Pipe or file path: ").trim();	
+					}while(bucketName.isEmpty() || keyName.isEmpty() || source.isEmpty());
+					ObjectOperations.uploadStream(bucketName, keyName, source);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "do": {
+				try{
+					// Download an object.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+					}while(bucketName.isEmpty() || keyName.isEmpty());
+					ObjectOperations.downloadObject(bucketName, keyName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "df": {
+				try{
+					// Download an object to a local file.
+					String filePath;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+						filePath = readUserInput("File path: ").trim();	
+					}while(bucketName.isEmpty() || keyName.isEmpty() || filePath.isEmpty());
+					ObjectOperations.downloadObjectToFile(bucketName, keyName, new File(filePath));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "so": {
+				try{
+					// Stream the bytes of an object to the standard output or a file.
+					String destination;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+						destination = readUserInput("File path or pipe (- for standard output with --stdout-data): ").trim();	
+					}while(bucketName.isEmpty() || keyName.isEmpty() || destination.isEmpty());
+					ObjectOperations.streamObject(bucketName, keyName, destination);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "lo": {
+				try{
+					// List objects contained in the specified bucket.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+					}while(bucketName.isEmpty());
+					ObjectOperations.listObject(bucketName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "lp": {
+				try{
+					// List objects contained in the specified bucket, 
+					// listing partitions of the keyspace concurrently.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+					}while(bucketName.isEmpty());
+					String concurrency = readUserInput("Concurrency [8]: ").trim();
+					String ordered = readUserInput("Key order (y/n) [y]: ").trim().toLowerCase();
+					ObjectOperations.listObjectParallel(bucketName, 
+							concurrency.isEmpty() ? 8 : Integer.parseInt(concurrency), 
+							!ordered.startsWith("n"));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "sy": {
+				try{
+					// Upload the new and changed files of a local directory.
+					String directory;
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						directory = readUserInput("Directory path: ").trim();	
+					}while(bucketName.isEmpty() || directory.isEmpty());
+					String prefix = readUserInput("Key prefix []: ").trim();
+					String orphans = readUserInput("Delete orphans (y/n) [n]: ").trim().toLowerCase();
+					ObjectOperations.syncDirectory(bucketName, new File(directory), prefix, orphans.startsWith("y"));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "co": {
+				try{
+					// Copy the objects under a prefix, without downloading them.
+					String sourceBucket, destinationBucket;
+					do {
+						sourceBucket = readUserInput("Source bucket name: ").toLowerCase();	
+						destinationBucket = readUserInput("Destination bucket name: ").toLowerCase();	
+					}while(sourceBucket.isEmpty() || destinationBucket.isEmpty());
+					String prefix = readUserInput("Source prefix []: ").trim();
+					String destinationPrefix = readUserInput("Destination prefix [same as source]: ").trim();
+					String concurrency = readUserInput("Concurrency [transfer settings]: ").trim();
+					ObjectOperations.copyObjects(sourceBucket, prefix, destinationBucket,
+							destinationPrefix.isEmpty() ? null : destinationPrefix,
+							concurrency.isEmpty() ? 0 : Integer.parseInt(concurrency));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "mf": {
+				try{
+					// Run an operation on the objects listed in a manifest, resuming a stopped run.
+					String manifestOperation, manifest;
+					do {
+						manifestOperation = readUserInput("Operation (delete, copy, restore, head): ").trim().toLowerCase();	
+						manifest = readUserInput("Manifest path: ").trim();	
+					}while(manifestOperation.isEmpty() || manifest.isEmpty());
+					bucketName = readUserInput("Bucket name [from a CSV manifest]: ").toLowerCase();
+					String target = "";
+					if (manifestOperation.equals("copy"))
+						target = readUserInput("Destination bucket[/prefix]: ").trim();
+					else if (manifestOperation.equals("restore"))
+						target = readUserInput("Days [7]: ").trim();
+					String concurrency = readUserInput("Concurrency [transfer settings]: ").trim();
+					ObjectOperations.runManifest(manifestOperation, new File(manifest), bucketName.isEmpty() ? null : bucketName,
+							target.isEmpty() ? null : target, concurrency.isEmpty() ? 0 : Integer.parseInt(concurrency));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "ri": {
+				try{
+					// Refresh the local index of the specified bucket and prefix.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+					}while(bucketName.isEmpty());
+					String prefix = readUserInput("Prefix (empty for all): ");
+					IndexOperations.refreshIndex(bucketName, prefix);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "bi": {
+				try{
+					// List the buckets from the local index.
+					IndexOperations.listIndexedBuckets();
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "li": {
+				try{
+					// List objects from the local index.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+					}while(bucketName.isEmpty());
+					String prefix = readUserInput("Prefix (empty for all): ");
+					IndexOperations.listIndexedObjects(bucketName, prefix);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "ci": {
+				try{
+					// Check an object against the local index.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+					}while(bucketName.isEmpty() || keyName.isEmpty());
+					IndexOperations.checkIndexedObject(bucketName, keyName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "pu": {
+				try{
+					// Get a pre-signed URL.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ");	
+					}while(bucketName.isEmpty() || keyName.isEmpty());
+					String method = readUserInput("Method (GET/PUT/DELETE) [GET]: ").trim().toUpperCase();
+					String minutes = readUserInput("Expiration in minutes [60]: ").trim();
+					BucketOperations.getPresignedUrls(bucketName, keyName, 
+							HttpMethod.valueOf(method.isEmpty() ? "GET" : method), 
+							minutes.isEmpty() ? 60 : Long.parseLong(minutes));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "cf": {
+				try{
+					// Get CloudFront signed URL.
+					do {
+						keyName = readUserInput("Object path: ");	
+					}while(keyName.isEmpty());
+					String minutes = readUserInput("Expiration in minutes [60]: ").trim();
+					BucketOperations.getSignedUrls(keyName, minutes.isEmpty() ? 60 : Long.parseLong(minutes));
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "xo": {
+				try{
+					// Delete an object.
+					do {
+						bucketName = readUserInput("Bucket name: ").toLowerCase();	
+						keyName = readUserInput("Object (key) name: ").toLowerCase();	
+					}while(bucketName.isEmpty() || keyName.isEmpty());
+					ObjectOperations.deleteObject(bucketName, keyName);
+				}
+				catch (Exception e){
+					System.out.println(String.format("%s", e.getMessage()));
+				}
+				break;
+			}
+			
+			case "mt": {
+				// Display the request metrics, the concurrency limits, the transfer memory, the hedged requests and the object cache.
+				System.out.print(S3Metrics.getDefault().report());
+				System.out.print(ConcurrencyController.getDefault().report());
+				System.out.print(TransferMemory.getDefault().report());
+				System.out.println(String.format("Hedged GET requests: %d (%d answered first)",
+						HedgedGetter.getHedgeCount(), HedgedGetter.getHedgeWinCount()));
+				if (ObjectOperations.getObjectCache() != null)
+					System.out.print(ObjectOperations.getObjectCache().report());
+				break;
+			}
+				
+			
+			default: {
+				System.out.println(String.format("%s is not allowed", operation));
+				break;
+			}
+		}
+				
+
+	}
+	
+	
+	/***
+	 * Gets user selection and calls the related method.
+	 * Loops indefinitely until the user exits the application.
+	 */
+	public void processUserInput() {
+		
+		while (true) {
+			
+			// Get user input. Stop at the end of the input.
+			String userSelection = readUserInput(null);
+			if (userSelection == null)
+				break;
+			userSelection = userSelection.toLowerCase();	
+			// Normalize user's input.
+			String normalizedUserSelection = userSelection.trim().toLowerCase();
+			
+
+			try{
+				// Exit the application.
+				if ("x".equals(normalizedUserSelection)){
+					break;
+				}
+				else
+					if ("m".equals(normalizedUserSelection)) {
+						// Display menu
+						Utility.displayMenu(Utility.getMenuEntries());
+						continue;
+					}
+				
+			}
+			catch (Exception e){
+				// System.out.println(e.toString());
+				System.out.println(String.format("Input %s is not allowed%n", userSelection));
+				continue;
+			}
+			
+			performOperation(normalizedUserSelection);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,232 @@
+package com.acloudysky.s3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Memory budget shared by the buffers of all the transfers of the application.
+ * <p>
+ * The part buffers of the stream uploads and the buffers of the ranged downloads are direct
+ * (off-heap) buffers taken from this pool, so they do not weigh on the garbage collector. A
+ * released buffer is kept for the next transfer needing the same size. The buffers in use and
+ * the pooled ones never exceed the budget: when it is exhausted, idle buffers of other sizes
+ * are dropped, then {@link #acquire(int)} waits until a transfer releases a buffer. A burst of
+ * concurrent transfers is thus slowed down instead of running out of memory.
+ * </p>
+ * <p>
+ * A request larger than the whole budget is granted when no other buffer is in use, so that
+ * a transfer configured with huge parts still progresses, one buffer at a time. The usage and
+ * the time spent waiting are published over JMX, see {@link TransferMemoryMBean}.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class TransferMemory implements TransferMemoryMBean {
+
+	// Default budget: a quarter of the maximum heap, up to 1 GB. Direct memory is limited to the heap size by default.
+	public static final long DEFAULT_BUDGET = Math.min(Runtime.getRuntime().maxMemory() / 4, 1024 * TransferSettings.MB);
+
+	// Memory shared by all the transfers of the application.
+	private static final TransferMemory DEFAULT = new TransferMemory(DEFAULT_BUDGET, true);
+
+	// Released buffers ready to be reused, by size.
+	private final Map<Integer, ArrayDeque<ByteBuffer>> idle = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+
+	// Maximum number of bytes of buffers, in use or pooled.
+	private long budget;
+
+	// Bytes of buffers allocated (in use or pooled), held by the transfers, and pooled.
+	private long allocatedBytes;
+	private long usedBytes;
+	private long idleBytes;
+	private long peakUsedBytes;
+
+	// Number of buffers handed out, of requests that waited, and total wait time.
+	private long acquires;
+	private long waits;
+	private long waitNanos;
+
+	/***
+	 * Creates a budget.
+	 * @param budget The maximum number of bytes of buffers.
+	 * @param jmx true to publish the usage over JMX.
+	 */
+	public TransferMemory(long budget, boolean jmx) {
+		setBudget(budget);
+		if (jmx)
+			S3Metrics.register(this, new String[] { "type", "TransferMemory" });
+	}
+
+	/***
+	 * Gets the budget shared by the transfers of the application.
+	 * @return The budget, published over JMX.
+	 */
+	public static TransferMemory getDefault() {
+		return DEFAULT;
+	}
+
+	/***
+	 * Sets the maximum number of bytes of buffers. Lowering the budget drops the pooled
+	 * buffers over the new budget; the buffers in use are dropped when released.
+	 * @param budget The number of bytes.
+	 */
+	public synchronized void setBudget(long budget) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("Budget must be positive");
+		this.budget = budget;
+		while (allocatedBytes > budget && idleBytes > 0)
+			dropIdle();
+		notifyAll();
+	}
+
+	/***
+	 * Gets a cleared buffer, waiting while the budget is exhausted.
+	 * @param size The size of the buffer in bytes.
+	 * @return A direct buffer of the requested capacity, to be returned with {@link #release(ByteBuffer)}.
+	 * @throws InterruptedException The thread was interrupted while waiting.
+	 */
+	public ByteBuffer acquire(int size) throws InterruptedException {
+		long waitStart = 0;
+		synchronized (this) {
+			try {
+				while (true) {
+					ArrayDeque<ByteBuffer> free = idle.get(size);
+					if (free != null && !free.isEmpty()) {
+						idleBytes -= size;
+						take(size);
+						ByteBuffer buffer = free.pop();
+						buffer.clear();
+						return buffer;
+					}
+					// Make room by dropping the pooled buffers of other sizes.
+					while (allocatedBytes + size > budget && idleBytes > 0)
+						dropIdle();
+					if (allocatedBytes + size <= budget || usedBytes == 0) {
+						allocatedBytes += size;
+						take(size);
+						break;
+					}
+					if (waitStart == 0) {
+						waitStart = System.nanoTime();
+						waits++;
+					}
+					wait();
+				}
+			}
+			finally {
+				if (waitStart != 0)
+					waitNanos += System.nanoTime() - waitStart;
+			}
+		}
+		// Allocate outside the lock: zeroing a large buffer takes time.
+		try {
+			return ByteBuffer.allocateDirect(size);
+		}
+		catch (OutOfMemoryError e) {
+			synchronized (this) {
+				allocatedBytes -= size;
+				usedBytes -= size;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/***
+	 * Returns a buffer, which is pooled for reuse if it fits in the budget.
+	 * @param buffer The buffer obtained from {@link #acquire(int)}. It must not be used afterwards.
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		int size = buffer.capacity();
+		usedBytes -= size;
+		if (allocatedBytes > budget)
+			allocatedBytes -= size;
+		else {
+			idle.computeIfAbsent(size, s -> new ArrayDeque<ByteBuffer>()).push(buffer);
+			idleBytes += size;
+		}
+		notifyAll();
+	}
+
+	@Override
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	@Override
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	@Override
+	public synchronized long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	@Override
+	public synchronized long getPeakUsedBytes() {
+		return peakUsedBytes;
+	}
+
+	@Override
+	public synchronized double getUtilization() {
+		return usedBytes / (double) budget;
+	}
+
+	@Override
+	public synchronized long getAcquireCount() {
+		return acquires;
+	}
+
+	@Override
+	public synchronized long getWaitCount() {
+		return waits;
+	}
+
+	@Override
+	public synchronized long getWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+	}
+
+	/***
+	 * Formats the usage of the budget.
+	 * @return One line of text.
+	 */
+	public synchronized String report() {
+		return String.format("Transfer memory: %.1f of %.1f MB in use (%.0f%%, peak %.1f MB), %.1f MB pooled; %d buffers, %d waits (%d ms)%n",
+				usedBytes / (double) TransferSettings.MB, budget / (double) TransferSettings.MB, 100.0 * usedBytes / budget,
+				peakUsedBytes / (double) TransferSettings.MB, idleBytes / (double) TransferSettings.MB,
+				acquires, waits, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+	}
+
+	/*
+	 * Records a buffer handed out.
+	 */
+	private void take(int size) {
+		usedBytes += size;
+		peakUsedBytes = Math.max(peakUsedBytes, usedBytes);
+		acquires++;
+	}
+
+	/*
+	 * Drops one pooled buffer; its memory is freed by the garbage collector.
+	 */
+	private void dropIdle() {
+		Iterator<ArrayDeque<ByteBuffer>> lists = idle.values().iterator();
+		while (lists.hasNext()) {
+			ArrayDeque<ByteBuffer> free = lists.next();
+			if (free.isEmpty()) {
+				lists.remove();
+				continue;
+			}
+			int size = free.pop().capacity();
+			idleBytes -= size;
+			allocatedBytes -= size;
+			return;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.acloudysky.s3;
+
+/***
+ * JMX view of the memory used by the transfer buffers.
+ * @see TransferMemory
+ * @author Michael Miele
+ *
+ */
+public interface TransferMemoryMBean {
+
+	/***
+	 * @return The maximum number of bytes of buffers, in use or pooled.
+	 */
+	long getBudget();
+
+	/***
+	 * @return The number of bytes of buffers held by the transfers.
+	 */
+	long getUsedBytes();
+
+	/***
+	 * @return The number of bytes of buffers allocated, in use or pooled.
+	 */
+	long getAllocatedBytes();
+
+	/***
+	 * @return The highest number of bytes of buffers held by the transfers at the same time.
+	 */
+	long getPeakUsedBytes();
+
+	/***
+	 * @return The fraction of the budget held by the transfers, from 0 to 1.
+	 */
+	double getUtilization();
+
+	/***
+	 * @return The number of buffers handed out.
+	 */
+	long getAcquireCount();
+
+	/***
+	 * @return The number of requests for a buffer that had to wait for memory.
+	 */
+	long getWaitCount();
+
+	/***
+	 * @return The total time spent waiting for memory, in milliseconds.
+	 */
+	long getWaitMillis();
+}
@@ -0,0 +1,224 @@
+package com.acloudysky.s3;
+
+/***
+ * Holds the tuning parameters used by the transfer engines, such as the size
+ * above which a file is uploaded in parts and the number of parts sent at the same time.
+ * <p>
+ * The setters follow the AWS SDK <i>withXxx</i> style so a configuration can be
+ * built in a single statement, for example:
+ * </p>
+ * <pre>
+ *   new TransferSettings().withPartSize(16 * MB).withConcurrency(10);
+ * </pre>
+ * @author Michael Miele
+ *
+ */
+public class TransferSettings {
+
+	// One mebibyte.
+	public static final long MB = 1024L * 1024L;
+
+	// Smallest part size accepted by S3 (except for the last part).
+	public static final long MIN_PART_SIZE = 5 * MB;
+
+	// Largest number of parts accepted by S3 for one multipart upload.
+	public static final int MAX_PARTS = 10000;
+
+	// Files at or above this size are uploaded in parts.
+	private long multipartThreshold = 16 * MB;
+
+	// Size of each part.
+	private long partSize = 8 * MB;
+
+	// Number of parts transferred at the same time.
+	private int concurrency = 8;
+
+	// Number of attempts for each part before the transfer is abandoned.
+	private int maxPartAttempts = 3;
+
+	// Size of the pooled I/O buffers used to move bytes between the network and disk.
+	private int bufferSize = 256 * 1024;
+
+	// Latency percentile after which a GET request is duplicated, or 0 to disable hedging.
+	private double hedgePercentile = 0;
+
+	// Codec used to compress the uploaded files, or null to store them as-is.
+	private String compression;
+
+	// true to compute, verify and store the checksums of the uploads.
+	private boolean checksums;
+
+	/***
+	 * Gets the size at or above which a file is uploaded in parts.
+	 * @return The threshold in bytes.
+	 */
+	public long getMultipartThreshold() {
+		return multipartThreshold;
+	}
+
+	/***
+	 * Sets the size at or above which a file is uploaded in parts.
+	 * @param multipartThreshold The threshold in bytes.
+	 * @return This object, for chaining.
+	 */
+	public TransferSettings withMultipartThreshold(long multipartThreshold) {
+		if (multipartThreshold < MIN_PART_SIZE)
+			throw new IllegalArgumentException(String.format("Multipart threshold must be at least %d bytes", MIN_PART_SIZE));
+		this.multipartThreshold = multipartThreshold;
+		return this;
+	}
+
+	/***
+	 * Gets the size of each part.
+	 * @return The part size in bytes.
+	 */
+	public long getPartSize() {
+		return partSize;
+	}
+
+	/***
+	 * Sets the size of each part.
+	 * @param partSize The part size in bytes. Must be at least {@link #MIN_PART_SIZE}.
+	 * @return This object, for chaining.
+	 */
+	public TransferSettings withPartSize(long partSize) {
+		if (partSize < MIN_PART_SIZE)
+			throw new IllegalArgumentException(String.format("Part size must be at least %d bytes", MIN_PART_SIZE));
+		this.partSize = partSize;
+		return this;
+	}
+
+	/***
+	 * Gets the number of parts transferred at the same time.
+	 * @return The number of worker threads.
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/***
+	 * Sets the number of parts transferred at the same time.
+	 * @param concurrency The number of worker threads.
+	 * @return This object, for chaining.
+	 */
+	public TransferSettings withConcurrency(int concurrency) {
+		if (concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/***
+	 * Gets the number of attempts made for each part.
+	 * @return The maximum number of attempts.
+	 */
+	public int getMaxPartAttempts() {
+		return maxPartAttempts;
+	}
+
+	/***
+	 * Sets the number of attempts made for each part.
+	 * @param maxPartAttempts The maximum number of attempts.
+	 * @return This object, for chaining.
+	 */
+	public TransferSettings withMaxPartAttempts(int maxPartAttempts) {
+		if (maxPartAttempts < 1)
+			throw new IllegalArgumentException("Part attempts must be at least 1");
+		this.maxPartAttempts = maxPartAttempts;
+		return this;
+	}
+
+	/***
+	 * Gets the size of the pooled I/O buffers.
+	 * @return The buffer size in bytes.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/***
+	 * Sets the size of the pooled I/O buffers.
+	 * @param bufferSize The buffer size in bytes.
+	 * @return This object, for chaining.
+	 */
+	public TransferSettings withBufferSize(int bufferSize) {
+		if (bufferSize < 4096)
+			throw new IllegalArgumentException("Buffer size must be at least 4096 bytes");
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	/***
+	 * Computes the part size to use for an object of the given length.
+	 * The configured part size is increased when needed so the object
+	 * fits within {@link #MAX_PARTS} parts.
+	 * @param contentLength The length of the object in bytes.
+	 * @return The part size in bytes.
+	 */
+	public long partSizeFor(long contentLength) {
+		long minimum = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+		return Math.max(partSize, minimum);
+	}
+
+	/***
+	 * Gets the latency percentile after which a GET request is duplicated.
+	 * @return The percentile, or 0 if hedging is disabled.
+	 */
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/***
+	 * Sets the latency percentile after which a GET request is duplicated, see {@link HedgedGetter}.
+	 * Hedging is disabled by default.
+	 * @param hedgePercentile The percentile, for example 95, or 0 to disable hedging.
+	 * @return This object, for chaining.
+	 */
+	public TransferSettings withHedgePercentile(double hedgePercentile) {
+		if (hedgePercentile < 0 || hedgePercentile >= 100)
+			throw new IllegalArgumentException("Hedge percentile must be between 0 and 100");
+		this.hedgePercentile = hedgePercentile;
+		return this;
+	}
+
+	/***
+	 * Gets the codec used to compress the uploaded files.
+	 * @return The codec name, or null if the files are stored as-is.
+	 */
+	public String getCompression() {
+		return compression;
+	}
+
+	/***
+	 * Sets the codec used to compress the uploaded files, see {@link Compression}.
+	 * Files are stored as-is by default.
+	 * @param compression The codec name, {@link Compression#GZIP}, or null to disable compression.
+	 * @return This object, for chaining.
+	 */
+	public TransferSettings withCompression(String compression) {
+		if (compression != null && !Compression.isSupported(compression))
+			throw new IllegalArgumentException(String.format("Unsupported codec %s", compression));
+		this.compression = compression == null ? null : compression.toLowerCase();
+		return this;
+	}
+
+	/***
+	 * Checks if the checksums of the uploads are computed, verified and stored.
+	 * @return true if the checksums are stored.
+	 */
+	public boolean isChecksums() {
+		return checksums;
+	}
+
+	/***
+	 * Enables the checksums of the uploads, see {@link Checksums}. Each part is verified
+	 * against its ETag, and the CRC-32C and SHA-256 of the object are stored as metadata.
+	 * Disabled by default; downloads verify the stored checksums in any case.
+	 * @param checksums true to compute, verify and store the checksums.
+	 * @return This object, for chaining.
+	 */
+	public TransferSettings withChecksums(boolean checksums) {
+		this.checksums = checksums;
+		return this;
+	}
+}
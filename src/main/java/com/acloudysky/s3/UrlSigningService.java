@@ -0,0 +1,327 @@
+package com.acloudysky.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.PrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.auth.PEM;
+import com.amazonaws.auth.RSA;
+import com.amazonaws.services.cloudfront.CloudFrontUrlSigner;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.util.HttpUtils;
+
+/***
+ * Generates pre-signed S3 URLs and signed CloudFront URLs at a high rate.
+ * <p>
+ * The CloudFront private keys are read and parsed once, then kept in memory. The signed URLs
+ * are cached until they get too old: a URL is handed out again as long as it is still valid for
+ * most of the requested lifetime, see {@link #withReuseFraction(double)}. A web tier asking for
+ * the URLs of the same popular objects thus gets them from memory, in well under a microsecond,
+ * instead of computing an HMAC (S3) or an RSA signature (CloudFront) for every request.
+ * </p>
+ * <p>
+ * The URLs are signed locally: no request is sent to AWS. The service is thread safe.
+ * </p>
+ * <p>For more information, see
+ * <a href="http://docs.aws.amazon.com/AmazonS3/latest/dev/ShareObjectPreSignedURL.html" target="_blank">Share an Object with Others</a>
+ * and <a href="http://docs.aws.amazon.com/AmazonCloudFront/latest/DeveloperGuide/private-content-signed-urls.html" target="_blank">Using Signed URLs</a>.
+ * </p>
+ * @author Michael Miele
+ *
+ */
+public class UrlSigningService {
+
+	// Default lifetime of the URLs, in milliseconds.
+	public static final long DEFAULT_EXPIRATION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	// Default number of cached URLs.
+	public static final int DEFAULT_MAX_CACHED_URLS = 100000;
+
+	// Parsed private keys, by canonical path of the key file.
+	private static final Map<String, PrivateKey> PRIVATE_KEYS = new ConcurrentHashMap<String, PrivateKey>();
+
+	/*
+	 * A signed URL, either a URL object or a string, and its lifetime.
+	 */
+	private static class SignedUrl {
+		final Object url;
+		final long signedAt;
+		final long expiresAt;
+
+		SignedUrl(Object url, long signedAt, long expiresAt) {
+			this.url = url;
+			this.signedAt = signedAt;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// Authorized client, used when there is no client pool.
+	private final AmazonS3 s3Client;
+
+	// Regional clients, or null to sign all the URLs with the authorized client.
+	private final S3ClientPool clientPool;
+
+	// Signed URLs, by method, resource and lifetime.
+	private final Map<String, SignedUrl> cache = new ConcurrentHashMap<String, SignedUrl>();
+
+	// Maximum number of cached URLs.
+	private volatile int maxCachedUrls = DEFAULT_MAX_CACHED_URLS;
+
+	// Fraction of its lifetime during which a URL is handed out again.
+	private volatile double reuseFraction = 0.1;
+
+	// CloudFront distribution, key pair and private key, or null if not configured.
+	private volatile String distributionDomain;
+	private volatile String keyPairId;
+	private volatile PrivateKey privateKey;
+
+	// Number of URLs signed and number of URLs taken from the cache.
+	private final AtomicLong signed = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	/***
+	 * Creates a service signing the S3 URLs with the authorized client.
+	 * @param authorizedClient Client authorized to access the S3 service.
+	 */
+	public UrlSigningService(AmazonS3 authorizedClient) {
+		this.s3Client = authorizedClient;
+		this.clientPool = null;
+	}
+
+	/***
+	 * Creates a service signing each S3 URL with the client of the region that holds the bucket.
+	 * @param pool The regional clients.
+	 */
+	public UrlSigningService(S3ClientPool pool) {
+		this.s3Client = pool.getClient(pool.getHomeRegion());
+		this.clientPool = pool;
+	}
+
+	/***
+	 * Sets the CloudFront distribution and the key pair used to sign the CloudFront URLs.
+	 * The private key file is parsed once; the key is shared by all the services.
+	 * @param distributionDomain The DNS name of the distribution, or a registered alias, for example d111111abcdef8.cloudfront.net.
+	 * @param keyPairId The ID of the CloudFront key pair.
+	 * @param privateKeyFile The private key of the key pair, in PEM (.pem) or PKCS#8 DER (.der) format.
+	 * @return This object, for chaining.
+	 * @throws IOException Error encountered while reading the key file
+	 * @throws InvalidKeySpecException The key file does not hold an RSA private key
+	 */
+	public UrlSigningService withCloudFront(String distributionDomain, String keyPairId, File privateKeyFile)
+			throws IOException, InvalidKeySpecException {
+		this.privateKey = loadPrivateKey(privateKeyFile);
+		this.distributionDomain = distributionDomain.replaceFirst("^[a-zA-Z]+://", "").replaceAll("/+$", "");
+		this.keyPairId = keyPairId;
+		cache.clear();
+		return this;
+	}
+
+	/***
+	 * Sets the fraction of its lifetime during which a signed URL is handed out again.
+	 * With the default 0.1, a URL valid for one hour is reused for 6 minutes, so the URLs
+	 * returned are always valid for at least 90% of the requested time.
+	 * @param reuseFraction The fraction, from 0 (no reuse) to 1 (reuse until the URL expires).
+	 * @return This object, for chaining.
+	 */
+	public UrlSigningService withReuseFraction(double reuseFraction) {
+		if (reuseFraction < 0 || reuseFraction > 1)
+			throw new IllegalArgumentException("Reuse fraction must be between 0 and 1");
+		this.reuseFraction = reuseFraction;
+		return this;
+	}
+
+	/***
+	 * Sets the maximum number of cached URLs. The URLs too old to be reused are removed first.
+	 * @param maxCachedUrls The number of URLs, or 0 to disable the cache.
+	 * @return This object, for chaining.
+	 */
+	public UrlSigningService withMaxCachedUrls(int maxCachedUrls) {
+		if (maxCachedUrls < 0)
+			throw new IllegalArgumentException("Maximum cached URLs must not be negative");
+		this.maxCachedUrls = maxCachedUrls;
+		return this;
+	}
+
+	/***
+	 * Gets a pre-signed URL giving access to an object.
+	 * @param bucketName The name of the bucket that contains the object
+	 * @param keyName The name of the object
+	 * @param method The HTTP method allowed, for example GET to download or PUT to upload.
+	 * @param expiration The lifetime of the URL.
+	 * @param unit The unit of the lifetime.
+	 * @return The URL.
+	 */
+	public URL presign(String bucketName, String keyName, HttpMethod method, long expiration, TimeUnit unit) {
+		long lifetime = lifetime(expiration, unit);
+		String cacheKey = method + " s3://" + bucketName + "/" + keyName + " " + lifetime;
+		return get(cacheKey, lifetime, expiresAt -> client(bucketName).generatePresignedUrl(
+				new GeneratePresignedUrlRequest(bucketName, keyName, method).withExpiration(new Date(expiresAt))));
+	}
+
+	/***
+	 * Gets the pre-signed URLs giving access to several objects of a bucket.
+	 * @param bucketName The name of the bucket that contains the objects
+	 * @param keyNames The names of the objects
+	 * @param method The HTTP method allowed, for example GET to download or PUT to upload.
+	 * @param expiration The lifetime of the URLs.
+	 * @param unit The unit of the lifetime.
+	 * @return The URLs, by object name, in the order of the names.
+	 */
+	public Map<String, URL> presign(String bucketName, Collection<String> keyNames, HttpMethod method, long expiration, TimeUnit unit) {
+		Map<String, URL> urls = new LinkedHashMap<String, URL>();
+		for (String keyName : keyNames)
+			urls.put(keyName, presign(bucketName, keyName, method, expiration, unit));
+		return urls;
+	}
+
+	/***
+	 * Gets a CloudFront URL signed with a canned policy, giving access to an object of the distribution.
+	 * @param objectPath The path of the object in the distribution, for example images/photo.jpg.
+	 * @param expiration The lifetime of the URL.
+	 * @param unit The unit of the lifetime.
+	 * @return The signed URL.
+	 * @throws IllegalStateException The CloudFront distribution is not set, see {@link #withCloudFront(String, String, File)}.
+	 */
+	public String signCloudFront(String objectPath, long expiration, TimeUnit unit) {
+		if (privateKey == null)
+			throw new IllegalStateException("The CloudFront distribution and key pair are not set");
+		long lifetime = lifetime(expiration, unit);
+		String resource = "https://" + distributionDomain + "/" + HttpUtils.urlEncode(objectPath.replaceFirst("^/", ""), true);
+		return get("CF " + resource + " " + lifetime, lifetime, expiresAt ->
+				CloudFrontUrlSigner.getSignedURLWithCannedPolicy(resource, keyPairId, privateKey, new Date(expiresAt)));
+	}
+
+	/***
+	 * Gets the signed CloudFront URLs of several objects of the distribution.
+	 * @param objectPaths The paths of the objects in the distribution.
+	 * @param expiration The lifetime of the URLs.
+	 * @param unit The unit of the lifetime.
+	 * @return The URLs, by object path, in the order of the paths.
+	 */
+	public Map<String, String> signCloudFront(Collection<String> objectPaths, long expiration, TimeUnit unit) {
+		Map<String, String> urls = new LinkedHashMap<String, String>();
+		for (String objectPath : objectPaths)
+			urls.put(objectPath, signCloudFront(objectPath, expiration, unit));
+		return urls;
+	}
+
+	/***
+	 * Gets the number of URLs signed.
+	 * @return The number of signatures computed.
+	 */
+	public long getSignedCount() {
+		return signed.get();
+	}
+
+	/***
+	 * Gets the number of URLs taken from the cache.
+	 * @return The number of cache hits.
+	 */
+	public long getCacheHitCount() {
+		return cacheHits.get();
+	}
+
+	/***
+	 * Reads a private key file, or gets the key already read from it.
+	 * @param file The private key, in PEM (.pem) or PKCS#8 DER (.der) format.
+	 * @return The private key.
+	 * @throws IOException Error encountered while reading the key file
+	 * @throws InvalidKeySpecException The key file does not hold an RSA private key
+	 */
+	public static PrivateKey loadPrivateKey(File file) throws IOException, InvalidKeySpecException {
+		String path = file.getCanonicalPath();
+		PrivateKey key = PRIVATE_KEYS.get(path);
+		if (key == null) {
+			if (path.toLowerCase().endsWith(".der"))
+				key = RSA.privateKeyFromPKCS8(Files.readAllBytes(file.toPath()));
+			else {
+				try (InputStream in = new FileInputStream(file)) {
+					key = PEM.readPrivateKey(in);
+				}
+			}
+			PRIVATE_KEYS.put(path, key);
+		}
+		return key;
+	}
+
+	/*
+	 * Gets the client to use for the specified bucket.
+	 */
+	private AmazonS3 client(String bucketName) {
+		return clientPool == null ? s3Client : clientPool.getClientForBucket(bucketName);
+	}
+
+	/*
+	 * Gets a cached URL still valid for most of its lifetime, or signs a new one.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T get(String cacheKey, long lifetime, Signer<T> signer) {
+		long now = System.currentTimeMillis();
+		SignedUrl cached = cache.get(cacheKey);
+		if (cached != null && isReusable(cached, now)) {
+			cacheHits.incrementAndGet();
+			return (T) cached.url;
+		}
+		long expiresAt = now + lifetime;
+		T url = signer.sign(expiresAt);
+		signed.incrementAndGet();
+		if (maxCachedUrls > 0) {
+			if (cache.size() >= maxCachedUrls)
+				evict(now);
+			cache.put(cacheKey, new SignedUrl(url, now, expiresAt));
+		}
+		return url;
+	}
+
+	/*
+	 * Checks if a URL is young enough to be handed out again.
+	 */
+	private boolean isReusable(SignedUrl url, long now) {
+		return now - url.signedAt < (url.expiresAt - url.signedAt) * reuseFraction;
+	}
+
+	/*
+	 * Makes room in the cache: removes the URLs too old to be reused, then,
+	 * if the cache is still full, any URLs until it is 90% full.
+	 */
+	private void evict(long now) {
+		cache.values().removeIf(url -> !isReusable(url, now));
+		Iterator<SignedUrl> urls = cache.values().iterator();
+		while (cache.size() >= maxCachedUrls * 0.9 && urls.hasNext()) {
+			urls.next();
+			urls.remove();
+		}
+	}
+
+	/*
+	 * Converts a lifetime to milliseconds.
+	 */
+	private static long lifetime(long expiration, TimeUnit unit) {
+		long lifetime = unit.toMillis(expiration);
+		if (lifetime <= 0)
+			throw new IllegalArgumentException("Expiration must be positive");
+		return lifetime;
+	}
+
+	/*
+	 * Signs a URL expiring at the specified time.
+	 */
+	private interface Signer<T> {
+		T sign(long expiresAt);
+	}
+}